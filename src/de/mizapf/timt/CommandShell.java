@@ -24,6 +24,7 @@ import de.mizapf.timt.basic.BasicLine;
 import de.mizapf.timt.util.*;
 import de.mizapf.timt.ui.Settings;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class CommandShell {
@@ -133,6 +134,58 @@ public class CommandShell {
 					return;
 				}
 			}
+			if (arg[0].equals("check")) {
+				int nThreads = Runtime.getRuntime().availableProcessors();
+				List<String> lstPath = new ArrayList<String>();
+				for (int i=1; i < arg.length; i++) {
+					if (arg[i].equals("-t") && i < arg.length-1) {
+						nThreads = Integer.parseInt(arg[++i]);
+						if (nThreads < 1) throw new IllegalArgumentException(TIImageTool.langstr("CommandMissArg"));
+					}
+					else lstPath.add(arg[i]);
+				}
+				if (lstPath.size() == 0) {
+					System.err.println(TIImageTool.langstr("CommandMissArg"));
+					return;
+				}
+				try {
+					com.check(lstPath, nThreads);
+				}
+				catch (InterruptedException ix) {
+					System.err.println(ix.getMessage());
+				}
+			}
+			if (arg[0].equals("convert")) {
+				int nThreads = Runtime.getRuntime().availableProcessors();
+				String sTargetDir = null;
+				int nType = ImageFormat.NOTYPE;
+				List<String> lstPath = new ArrayList<String>();
+				for (int i=1; i < arg.length; i++) {
+					if (arg[i].equals("-t") && i < arg.length-1) {
+						nThreads = Integer.parseInt(arg[++i]);
+						if (nThreads < 1) throw new IllegalArgumentException(TIImageTool.langstr("CommandMissArg"));
+					}
+					else {
+						if (arg[i].equals("-d") && i < arg.length-1) {
+							sTargetDir = arg[++i];
+						}
+						else {
+							if (nType == ImageFormat.NOTYPE) nType = getTargetType(arg[i]);
+							else lstPath.add(arg[i]);
+						}
+					}
+				}
+				if (lstPath.size() == 0) {
+					System.err.println(TIImageTool.langstr("CommandMissArg"));
+					return;
+				}
+				try {
+					com.convert(lstPath, nType, sTargetDir, nThreads);
+				}
+				catch (InterruptedException ix) {
+					System.err.println(ix.getMessage());
+				}
+			}
 			if (arg[0].equals("import")) {
 				String sSubdir = null;
 				if (arg.length<2) {
@@ -271,7 +324,17 @@ public class CommandShell {
 		
 		// ============== Open the image	
 		FileImageFormat image = (FileImageFormat)ImageFormat.getImageFormat(sAbsFile); // throws ImageExc if unknown
-								
+		Volume vol = openVolume(image, nVolumeNumber);
+		
+		if (vol != null && vol.isReadOnly()) {
+			System.err.println(TIImageTool.langstr("ImageFWP"));
+		}
+		return vol;
+	}
+	
+	/** Opens the volume of the image; for partitioned images, nVolumeNumber
+		selects the partition (starting at 1). */
+	private Volume openVolume(FileImageFormat image, int nVolumeNumber) throws FileNotFoundException, IOException, ImageException {
 		byte[] vibmap = null;
 		TFileSystem fs = null;	
 		Volume vol = null;
@@ -324,10 +387,6 @@ public class CommandShell {
 			return null;
 		}
 		
-		if (vol.isReadOnly()) {
-			System.err.println(TIImageTool.langstr("ImageFWP"));
-		}
-		
 		Directory root = vol.getRootDirectory();	
 		image.setCheckpoint();      // req
 		vol.nextGeneration(true);   // req
@@ -577,4 +636,406 @@ public class CommandShell {
 			System.err.println("Image is write protected");
 		}
 	}
+	
+	/** Checks the file systems of all images in the given files and 
+		directories (including subdirectories), one image per task on a pool
+		of threads. Each fault is printed as a JSON object on one line; a
+		summary with the throughput is printed on stderr.
+	*/
+	public void check(List<String> lstPath, int nThreads) throws InterruptedException {
+		List<String> lstImage = collectImages(lstPath);
+		
+		long nStart = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		CompletionService<List<String>> results = new ExecutorCompletionService<List<String>>(pool);
+		for (final String sImage : lstImage) {
+			results.submit(new Callable<List<String>>() {
+				public List<String> call() {
+					return checkImage(sImage);
+				}
+			});
+		}
+		
+		// Print in the order of completion
+		int nFaults = 0;
+		try {
+			for (int i=0; i < lstImage.size(); i++) {
+				List<String> lstResult = results.take().get();
+				for (String sLine : lstResult) System.out.println(sLine);
+				// The last line is the summary of the image
+				nFaults += lstResult.size() - 1;
+			}
+		}
+		catch (ExecutionException ex) {
+			ex.getCause().printStackTrace();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		double dSeconds = (System.currentTimeMillis() - nStart) / 1000.0;
+		System.err.println(String.format(TIImageTool.langstr("CommandCheckSummary"), lstImage.size(), nFaults, dSeconds, 
+			(dSeconds > 0)? lstImage.size() / dSeconds : 0.0));
+	}
+	
+	/** Delivers the given image files and the images in the given 
+		directories (including subdirectories). */
+	private List<String> collectImages(List<String> lstPath) {
+		List<String> lstImage = new ArrayList<String>();
+		String[] asSuffix = m_Settings.getPropertyString(TIImageTool.IMGSUF).split(" |,");
+		for (String sPath : lstPath) {
+			File file = new File(sPath);
+			if (file.isDirectory()) findImages(file, asSuffix, lstImage);
+			else lstImage.add(sPath);
+		}
+		return lstImage;
+	}
+	
+	private static void findImages(File dir, String[] asSuffix, List<String> lstImage) {
+		File[] afile = dir.listFiles();
+		if (afile == null) return;
+		Arrays.sort(afile);
+		for (File file : afile) {
+			if (file.isDirectory()) {
+				findImages(file, asSuffix, lstImage);
+			}
+			else {
+				String sName = file.getName().toLowerCase();
+				int sufpnt = sName.lastIndexOf(".") + 1;
+				// - stands for no suffix
+				String suffix = (sufpnt == 0)? "-" : sName.substring(sufpnt);
+				for (String s : asSuffix) {
+					if (s.equalsIgnoreCase(suffix)) {
+						lstImage.add(file.getPath());
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	/** Checks all volumes of the image. Called by the worker threads; each
+		image has its own ImageFormat. 
+		@return Faults as JSON lines, followed by a summary line
+	*/
+	private List<String> checkImage(String sImage) {
+		List<String> lstResult = new ArrayList<String>();
+		List<Volume> lstVolume = new ArrayList<Volume>();
+		FileImageFormat image = null;
+		try {
+			image = (FileImageFormat)ImageFormat.getImageFormat(sImage);
+			if (image.isPartitioned()) {
+				Partition[] apart = image.getPartitionTable();
+				for (int i=0; i < apart.length; i++) {
+					// Unformatted volumes have the name "---"
+					if (apart[i] == null || apart[i].getName().equals("---")) continue;
+					Volume vol = openVolume(image, i+1);
+					if (vol != null) lstVolume.add(vol);
+					checkVolume(sImage, i+1, vol, lstResult);
+				}
+			}
+			else {
+				Volume vol = openVolume(image, 0);
+				if (vol != null) lstVolume.add(vol);
+				checkVolume(sImage, 0, vol, lstResult);
+			}
+		}
+		catch (FileNotFoundException fnfx) {
+			lstResult.add(fault(sImage, 0, "error", -1, null, TIImageTool.langstr("FileNotFound") + ": " + fnfx.getMessage()));
+		}
+		catch (IOException iox) {
+			lstResult.add(fault(sImage, 0, "error", -1, null, TIImageTool.langstr("IOError") + ": " + iox.getClass().getName()));
+		}
+		catch (ImageException ix) {
+			lstResult.add(fault(sImage, 0, "error", -1, null, TIImageTool.langstr("ImageError") + ": " + ix.getMessage()));
+		}
+		catch (RuntimeException rx) {
+			lstResult.add(fault(sImage, 0, "error", -1, null, rx.toString()));
+		}
+		finally {
+			// All volumes share the image; the image is also closed when
+			// no volume could be opened
+			for (Volume vol : lstVolume) {
+				try {
+					vol.close();
+				}
+				catch (IOException iox) {
+					iox.printStackTrace();
+				}
+			}
+			try {
+				if (image != null) image.close();
+			}
+			catch (IOException iox) {
+				iox.printStackTrace();
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"image\":").append(jsonString(sImage));
+		sb.append(",\"type\":\"done\",\"faults\":").append(lstResult.size()).append("}");
+		lstResult.add(sb.toString());
+		return lstResult;
+	}
+	
+	/** Runs the checks of the file system check on the volume. */
+	private void checkVolume(String sImage, int nVolume, Volume vol, List<String> lstResult) {
+		if (vol == null) {
+			lstResult.add(fault(sImage, nVolume, "error", -1, null, TIImageTool.langstr("ImageError")));
+			return;
+		}
+		try {
+			vol.loadTree();
+		}
+		catch (IOException iox) {
+			lstResult.add(fault(sImage, nVolume, "error", -1, null, TIImageTool.langstr("IOError") + ": " + iox.getClass().getName()));
+			return;
+		}
+		catch (ImageException ix) {
+			lstResult.add(fault(sImage, nVolume, "error", -1, null, TIImageTool.langstr("ImageError") + ": " + ix.getMessage()));
+			return;
+		}
+		// The reports of ImageCheck are not needed
+		PrintStream ps = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		});
+		
+		AllocationMap allocMap = vol.getAllocationMap();
+		ArrayList<AllocationGapList> broken = new ArrayList<AllocationGapList>();
+		ImageCheck.checkUnderAllocationInDir(vol, vol.getRootDirectory(), allocMap, broken, "", ps);
+		for (AllocationGapList agl : broken) {
+			for (int au : agl.getAllocationGaps()) {
+				lstResult.add(fault(sImage, nVolume, "unallocated", au, agl.getName(), null));
+			}
+		}
+		
+		ArrayList<AllocationDomain> alloc = new ArrayList<AllocationDomain>();
+		ImageCheck.findAllocationFaults(vol, allocMap, alloc, ps);
+		for (AllocationDomain ad : alloc) {
+			if (ad.isUnassigned()) {
+				lstResult.add(fault(sImage, nVolume, "orphan", ad.getAU(), null, null));
+			}
+			else {
+				for (String sEntity : ad.getAllocations()) {
+					lstResult.add(fault(sImage, nVolume, "cross", ad.getAU(), sEntity, null));
+				}
+			}
+		}
+		
+		ArrayList<SectorFaultList> brokensect = new ArrayList<SectorFaultList>();
+		ImageCheck.findBrokenSectors(vol.getRootDirectory(), brokensect, "", ps);
+		for (SectorFaultList sfl : brokensect) {
+			if (sfl.getProblem() != null) {
+				lstResult.add(fault(sImage, nVolume, "damaged", -1, sfl.getName(), sfl.getProblem()));
+			}
+			for (int nSector : sfl.getFaultySectors()) {
+				lstResult.add(fault(sImage, nVolume, "badsector", nSector, sfl.getName(), null));
+			}
+		}
+		
+		ArrayList<TFile> brokenL3 = new ArrayList<TFile>();
+		ImageCheck.checkL3(vol.getRootDirectory(), brokenL3);
+		for (TFile file : brokenL3) {
+			lstResult.add(fault(sImage, nVolume, "l3", -1, file.getPathname(), null));
+		}
+	}
+	
+	/** Creates a JSON line for a fault. Negative locations, null paths and
+		messages are left out. The location is a sector number for bad 
+		sectors and an AU number otherwise. */
+	private static String fault(String sImage, int nVolume, String sType, int nLocation, String sPath, String sMessage) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"image\":").append(jsonString(sImage));
+		if (nVolume > 0) sb.append(",\"volume\":").append(nVolume);
+		sb.append(",\"type\":\"").append(sType).append("\"");
+		if (nLocation >= 0) sb.append(sType.equals("badsector")? ",\"sector\":" : ",\"au\":").append(nLocation);
+		if (sPath != null) sb.append(",\"path\":").append(jsonString(sPath));
+		if (sMessage != null) sb.append(",\"message\":").append(jsonString(sMessage));
+		sb.append("}");
+		return sb.toString();
+	}
+	
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('"');
+		for (int i=0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else {
+				if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+				else sb.append(c);
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
+	/** Image types that can be created by the convert command, with their
+		names in addition to the file suffixes. */
+	private final static int[] TARGETTYPE = { ImageFormat.SECTORDUMP, ImageFormat.TRACKDUMP, ImageFormat.HFE, ImageFormat.CHD, ImageFormat.RAWHD };
+	private final static String[] TARGETNAME = { "sectordump", "trackdump", "hfe", "chd", "rawhd" };
+	
+	private static int getTargetType(String sName) {
+		for (int i=0; i < TARGETTYPE.length; i++) {
+			if (sName.equalsIgnoreCase(TARGETNAME[i]) || sName.equalsIgnoreCase(ImageFormat.suffix[TARGETTYPE[i]])) 
+				return TARGETTYPE[i];
+		}
+		throw new IllegalArgumentException(String.format(TIImageTool.langstr("CommandConvertType"), sName));
+	}
+	
+	/** Result of the conversion of an image. */
+	private static class Conversion {
+		final static int DONE = 0;
+		final static int SKIPPED = 1;
+		final static int FAILED = 2;
+		
+		int status;
+		long bytes;
+		String line;
+	}
+	
+	/** Converts all images in the given files and directories (including 
+		subdirectories) to the given image type, one image per task on a pool
+		of threads. The new images are written into the target directory, or
+		next to the old images, and get the suffix of the type. Existing 
+		files are not overwritten. Each image is reported as a JSON object on
+		one line; a summary with the throughput is printed on stderr.
+	*/
+	public void convert(List<String> lstPath, final int nType, final String sTargetDir, int nThreads) throws InterruptedException {
+		List<String> lstImage = collectImages(lstPath);
+		
+		long nStart = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		CompletionService<Conversion> results = new ExecutorCompletionService<Conversion>(pool);
+		for (final String sImage : lstImage) {
+			results.submit(new Callable<Conversion>() {
+				public Conversion call() {
+					return convertImage(sImage, nType, sTargetDir);
+				}
+			});
+		}
+		
+		// Print in the order of completion
+		int[] anCount = new int[3];
+		long nBytes = 0;
+		try {
+			for (int i=0; i < lstImage.size(); i++) {
+				Conversion conv = results.take().get();
+				System.out.println(conv.line);
+				anCount[conv.status]++;
+				nBytes += conv.bytes;
+			}
+		}
+		catch (ExecutionException ex) {
+			ex.getCause().printStackTrace();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		double dSeconds = (System.currentTimeMillis() - nStart) / 1000.0;
+		System.err.println(String.format(TIImageTool.langstr("CommandConvertSummary"), anCount[Conversion.DONE], anCount[Conversion.SKIPPED], 
+			anCount[Conversion.FAILED], dSeconds, (dSeconds > 0)? anCount[Conversion.DONE] / dSeconds : 0.0, 
+			(dSeconds > 0)? nBytes / dSeconds / 1048576 : 0.0));
+	}
+	
+	/** Converts the image. Called by the worker threads; the format units 
+		of the new image are built by the calling thread. */
+	private Conversion convertImage(String sImage, int nType, String sTargetDir) {
+		Conversion conv = new Conversion();
+		long nStart = System.currentTimeMillis();
+		
+		File source = new File(sImage);
+		String sName = source.getName();
+		int nSuffixPos = sName.lastIndexOf(".");
+		if (nSuffixPos > 0) sName = sName.substring(0, nSuffixPos);
+		File dir = (sTargetDir != null)? new File(sTargetDir) : source.getAbsoluteFile().getParentFile();
+		File target = new File(dir, sName + "." + ImageFormat.suffix[nType]);
+		
+		FileImageFormat image = null;
+		FileImageFormat newImage = null;
+		String sMessage = null;
+		boolean bCreated = false;
+		conv.status = Conversion.FAILED;
+		try {
+			if (target.exists()) {
+				conv.status = Conversion.SKIPPED;
+				sMessage = TIImageTool.langstr("CommandConvertExists");
+			}
+			else {
+				image = (FileImageFormat)ImageFormat.getImageFormat(sImage);
+				if (image.isPartitioned()) {
+					conv.status = Conversion.SKIPPED;
+					sMessage = TIImageTool.langstr("CommandConvertPartitioned");
+				}
+				else {
+					FormatParameters params = openVolume(image, 0).getFormatParams();
+					sMessage = ImageFormat.checkFormatCompatibility(params, nType);
+					if (sMessage != null && sMessage.startsWith("!")) {
+						conv.status = Conversion.SKIPPED;
+						sMessage = sMessage.substring(1);
+					}
+					else {
+						// Another task may convert an image of the same name
+						if (!target.createNewFile()) {
+							conv.status = Conversion.SKIPPED;
+							sMessage = TIImageTool.langstr("CommandConvertExists");
+						}
+						else {
+							bCreated = true;
+							newImage = (FileImageFormat)ImageFormat.getImageFormat(target.getPath(), nType, params);
+							newImage.saveImageFromOld(image, 1, null);
+							conv.status = Conversion.DONE;
+							conv.bytes = (long)newImage.getTotalSectors() * TFileSystem.SECTOR_LENGTH;
+						}
+					}
+				}
+			}
+		}
+		catch (FileNotFoundException fnfx) {
+			sMessage = TIImageTool.langstr("FileNotFound") + ": " + fnfx.getMessage();
+		}
+		catch (IOException iox) {
+			sMessage = TIImageTool.langstr("IOError") + ": " + iox.getClass().getName();
+		}
+		catch (ImageException ix) {
+			sMessage = TIImageTool.langstr("ImageError") + ": " + ix.getMessage();
+		}
+		catch (RuntimeException rx) {
+			sMessage = rx.toString();
+		}
+		finally {
+			if (newImage != null) {
+				try {
+					newImage.close();
+				}
+				catch (IOException iox) {
+					// The new image may be incomplete
+					if (conv.status == Conversion.DONE) {
+						conv.status = Conversion.FAILED;
+						sMessage = TIImageTool.langstr("IOError") + ": " + iox.getClass().getName();
+					}
+				}
+			}
+			if (image != null) {
+				try {
+					image.close();
+				}
+				catch (IOException iox) {
+					iox.printStackTrace();
+				}
+			}
+			// Do not leave incomplete images
+			if (conv.status == Conversion.FAILED && bCreated) target.delete();
+		}
+		
+		final String[] asResult = { "converted", "skipped", "error" };
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"image\":").append(jsonString(sImage));
+		if (conv.status != Conversion.SKIPPED) sb.append(",\"target\":").append(jsonString(target.getPath()));
+		sb.append(",\"result\":\"").append(asResult[conv.status]).append("\"");
+		if (conv.status == Conversion.DONE) sb.append(",\"ms\":").append(System.currentTimeMillis() - nStart);
+		if (sMessage != null) sb.append(",\"message\":").append(jsonString(sMessage));
+		sb.append("}");
+		conv.line = sb.toString();
+		return conv;
+	}
 }
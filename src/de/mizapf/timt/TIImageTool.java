@@ -176,6 +176,13 @@ public class TIImageTool implements ActionListener, ComponentListener, WindowLis
 	public final static String CONTEXT = "context";
 	public final static String GENOSPATH = "genospath";
 	public final static String MEMORY = "memory";
+	public final static String FUCACHE = "fucache";
+	public final static String CHDCOMPACT = "chdcompact";
+	public final static String UNDODEPTH = "undodepth";
+	public final static String UNDOMEM = "undomem";
+	public final static String UNDOJOURNAL = "undojournal";
+	public final static String ALLOCPOLICY = "allocpolicy";
+	public final static String SEARCHINDEX = "searchindex";
 	
 	Properties m_propNames;
 	
@@ -753,18 +760,14 @@ public class TIImageTool implements ActionListener, ComponentListener, WindowLis
 	
 	class SearchResultShow implements Runnable {
 	
-		String name;
-		SearchResult[] content;
 		SearchResultFrame m_content;
 		
-		SearchResultShow(String sname, SearchResult[] result) {
-			name = sname;
-			content = result;
+		SearchResultShow(SearchResultFrame frame) {
+			m_content = frame;
 		}
 		
 		public void run() {
-			m_content = new SearchResultFrame(name, TIImageTool.this);
-			m_content.createGui(content, contentFont, m_Settings.getPropertyDim(CONTSIZE));
+			m_content.createGui(contentFont, m_Settings.getPropertyDim(CONTSIZE));
 			Point loc = m_frmMain.getLocationOnScreen();		
 			m_content.setLocation(loc.x+20, loc.y+20);
 			m_content.setLocationByPlatform(true);
@@ -2030,8 +2033,12 @@ public class TIImageTool implements ActionListener, ComponentListener, WindowLis
 		SwingUtilities.invokeLater(new ContentEditShow(file, content));		
 	}
 
-	public void showSearchResult(String name, SearchResult[] content) {
-		SwingUtilities.invokeLater(new SearchResultShow(name, content));		
+	/** Opens the frame for the results of a search. The results are added
+		to the frame while the search is running. */
+	public SearchResultFrame showSearchResult(String name) {
+		SearchResultFrame frame = new SearchResultFrame(name, this);
+		SwingUtilities.invokeLater(new SearchResultShow(frame));		
+		return frame;
 	}
 	
 	public void showSectorEditor(String name, ImageFormat image) {
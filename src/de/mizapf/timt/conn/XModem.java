@@ -24,6 +24,7 @@ package de.mizapf.timt.conn;
 import java.io.*;
 import java.util.*;
 import de.mizapf.timt.util.Utilities;
+import de.mizapf.timt.util.CRC16;
 import javax.swing.*;
 import de.mizapf.timt.TIImageTool;
 
@@ -243,18 +244,7 @@ public class XModem {
 
 	/* Differs from crc16_get by rem=0 */
 	private short update_crc16(short rem, byte by) {
-		// A popular variant complements rem here
-		rem = (short)(rem ^ (by << 8)); 
-		for (int j=0; j < 8; j++)  {	// Assuming 8 bits per byte
-			if ((rem & 0x8000) == 0x8000) {
-				rem = (short)((rem << 1) ^ 0x1021);
-			} 
-			else {
-				rem = (short)(rem << 1);
-			}
-		}
-		// A popular variant complements rem here
-		return (short)(rem & 0xffff);
+		return (short)CRC16.update(rem & 0xffff, by);
 	}
 	
 	// ---------------- Receiver part ------------------------
@@ -0,0 +1,148 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.io.PrintStream;
+import de.mizapf.timt.TIImageTool;
+
+/** Index from allocation units to the elements that occupy them, built in
+	one walk through the directory tree. Each AU has a chain of entries in 
+	the order of the walk: directory index records, file information blocks,
+	file contents, and directory descriptor records.
+	
+	Names follow the file system check: ".#" marks FDIR, FIB, and DDR sectors.
+*/
+public class AllocationIndex {
+
+	private final static int NONE = -1;
+
+	/** First and last entry per AU */
+	private int[] m_anFirst;
+	private int[] m_anLast;
+	
+	/** Entries */
+	private String[] m_asName;
+	private int[] m_anPos;
+	private int[] m_anCluster;
+	private int[] m_anNext;
+	private int m_nCount;
+	
+	private int m_nAUSize;
+	
+	public AllocationIndex(Volume vol) {
+		int nMaxAU = vol.getAllocationMap().getMaxAU();
+		m_nAUSize = vol.getAUSize();
+		m_anFirst = new int[nMaxAU];
+		m_anLast = new int[nMaxAU];
+		for (int i=0; i < nMaxAU; i++) m_anFirst[i] = NONE;
+		
+		int nSize = 256;
+		m_asName = new String[nSize];
+		m_anPos = new int[nSize];
+		m_anCluster = new int[nSize];
+		m_anNext = new int[nSize];
+		m_nCount = 0;
+		
+		addDirectory(vol.getRootDirectory(), "", vol.getRootDirectory());
+	}
+	
+	private void addDirectory(Directory dir, String dirName, Directory root) {
+		// FDIR only counts if it starts the AU
+		if (dir.getFileIndexSector() % m_nAUSize == 0) 
+			add(dir.getFileIndexSector() / m_nAUSize, dirName + ".#", NONE, NONE);
+		
+		TFile[] aFile = dir.getFiles();
+		for (int i=0; i < aFile.length; i++) {
+			StringBuilder sFullname = new StringBuilder();
+			if (dirName.length()>0) sFullname.append(dirName).append(".");
+			sFullname.append(aFile[i].getName());
+			String sName = sFullname.toString();
+			
+			for (int nFib : aFile[i].getFIBLocations()) {
+				add(nFib / m_nAUSize, sName + ".#", NONE, NONE);
+			}
+			
+			// All AUs whose first sector is in the interval
+			Interval[] ainv = aFile[i].getAllocatedBlocks();
+			for (int j=0; j < ainv.length; j++) {
+				int nFirst = (ainv[j].start + m_nAUSize - 1) / m_nAUSize;
+				for (int au = nFirst; au <= ainv[j].end / m_nAUSize; au++) {
+					add(au, sName, i, j);
+				}
+			}
+		}
+		
+		Directory[] ad = dir.getDirectories();
+		for (int i=0; i < ad.length; i++) {
+			add(ad[i].getDDRSector() / m_nAUSize, dir.getName() + "." + ad[i].getName() + ".#", NONE, NONE);
+			if (dir == root) 
+				addDirectory(ad[i], ad[i].getName(), root);
+			else
+				addDirectory(ad[i], dir.getName() + "." + ad[i].getName(), root);
+		}
+	}
+	
+	private void add(int au, String sName, int nPos, int nCluster) {
+		// Locations outside of the allocation map are not indexed
+		if (au < 0 || au >= m_anFirst.length) return;
+		
+		if (m_nCount == m_asName.length) {
+			int nSize = m_nCount * 2;
+			String[] asName = new String[nSize];
+			System.arraycopy(m_asName, 0, asName, 0, m_nCount);
+			m_asName = asName;
+			m_anPos = grow(m_anPos, nSize);
+			m_anCluster = grow(m_anCluster, nSize);
+			m_anNext = grow(m_anNext, nSize);
+		}
+		m_asName[m_nCount] = sName;
+		m_anPos[m_nCount] = nPos;
+		m_anCluster[m_nCount] = nCluster;
+		m_anNext[m_nCount] = NONE;
+		
+		if (m_anFirst[au] == NONE) m_anFirst[au] = m_nCount;
+		else m_anNext[m_anLast[au]] = m_nCount;
+		m_anLast[au] = m_nCount;
+		m_nCount++;
+	}
+	
+	private static int[] grow(int[] an, int nSize) {
+		int[] anNew = new int[nSize];
+		System.arraycopy(an, 0, anNew, 0, an.length);
+		return anNew;
+	}
+	
+	/** Returns true if any element occupies this AU. */
+	public boolean isOccupied(int au) {
+		return m_anFirst[au] != NONE;
+	}
+	
+	/** Adds all elements that occupy the AU to the allocation domain. File
+		contents are reported on the print stream. */
+	public void getEntities(int au, AllocationDomain alloc, PrintStream ps) {
+		for (int n = m_anFirst[au]; n != NONE; n = m_anNext[n]) {
+			alloc.addEntity(m_asName[n]);
+			if (m_anCluster[n] != NONE) 
+				ps.println(String.format(TIImageTool.langstr("AUBelongs"), au, m_asName[n], m_anPos[n], m_anCluster[n]));
+		}
+	}
+}
@@ -25,13 +25,24 @@ import java.util.ArrayList;
 import de.mizapf.timt.util.InternalException;
 import de.mizapf.timt.TIImageTool;
 
+/** Allocation map of a volume. The map is kept in an array of long words,
+	where AU n is bit n%64 of word n/64, regardless of the bit order in the
+	volume. Floppy allocation maps have the first AU in the LSB of each 
+	byte, hard disk maps in the MSB; the bit order is only converted when 
+	the map is set up or written back. This allows for scanning the map
+	word by word.
+*/
 public class AllocationMap implements Cloneable {
 
-	private byte[] m_abyMap;
+	private long[] m_alMap;
+	private int m_nBytes;
 	private int m_nLength;
 	private int m_nAUSize;
 	private boolean m_bFloppy;
 	
+	/** Number of allocated AUs below m_nLength */
+	private int m_nAllocated;
+	
 	static final int EVENLONGER = -1; 
 	static final int NOTFOUND = -1; 
 	
@@ -43,31 +54,32 @@ public class AllocationMap implements Cloneable {
 		@param bFloppy FLoppy allocation maps are little-endian
 	*/
 	public AllocationMap(int nAU, int nAUSize, boolean bFloppy, byte[] bitfield) {
+		byte[] abyMap = null;
 		// System.out.println("New allocmap, size = " + (nAU+7)/8);
 		if (bFloppy) {
-			// m_abyMap = new byte[(nAU+7)/8];
-			m_abyMap = new byte[200];
+			// abyMap = new byte[(nAU+7)/8];
+			abyMap = new byte[200];
 
 			// Fill bits with 1 after the last allocatable AU
 			if (nAU < 1600) {
-				m_abyMap[nAU/8] = (byte)((0xff << (nAU%8)) & 0xff);
+				abyMap[nAU/8] = (byte)((0xff << (nAU%8)) & 0xff);
 			}
-			for (int i = nAU/8+1; i < m_abyMap.length; i++) {
-				m_abyMap[i] = (byte)0xff;
+			for (int i = nAU/8+1; i < abyMap.length; i++) {
+				abyMap[i] = (byte)0xff;
 			}
 		}
 		else {
 			// Allocate full sectors (256*8 bits)
 			if (nAU > 0xf800) throw new InternalException("Excess AU number: " + nAU);
 			// int nSectors = (nAU+2047)/2048;
-			// m_abyMap = new byte[nSectors * TFileSystem.SECTOR_LENGTH];
-			m_abyMap = new byte[31 * TFileSystem.SECTOR_LENGTH];
+			// abyMap = new byte[nSectors * TFileSystem.SECTOR_LENGTH];
+			abyMap = new byte[31 * TFileSystem.SECTOR_LENGTH];
 			
 			// Fill bits with 1 after the last allocatable AU
 			if (nAU < 0xf800) {
-				m_abyMap[nAU/8] = (byte)((0xff >> (nAU%8)) & 0xff);
-				for (int i = nAU/8+1; i < m_abyMap.length; i++) {
-					m_abyMap[i] = (byte)0xff;
+				abyMap[nAU/8] = (byte)((0xff >> (nAU%8)) & 0xff);
+				for (int i = nAU/8+1; i < abyMap.length; i++) {
+					abyMap[i] = (byte)0xff;
 				}
 			}
 			// System.out.println("Allocation map size = 31 sectors");
@@ -88,9 +100,24 @@ public class AllocationMap implements Cloneable {
 		if (bitfield != null) {
 			int nOffset = m_bFloppy? 0x38 : TFileSystem.SECTOR_LENGTH;  // Start at byte 0x38 for floppies and at sector 1 for hard disks
 			int nLength = bitfield.length - nOffset;
-			if (nLength > m_abyMap.length) nLength = m_abyMap.length;
-			// System.out.println("aby.length = " + vibmap.length + ", nOffset = " + nOffset + ", map.length = " + m_abyMap.length + ", length = " + nLength);
-			System.arraycopy(bitfield, nOffset, m_abyMap, 0, nLength);
+			if (nLength > abyMap.length) nLength = abyMap.length;
+			// System.out.println("aby.length = " + vibmap.length + ", nOffset = " + nOffset + ", map.length = " + abyMap.length + ", length = " + nLength);
+			System.arraycopy(bitfield, nOffset, abyMap, 0, nLength);
+		}
+		
+		m_nBytes = abyMap.length;
+		m_alMap = new long[(m_nBytes + 7) / 8];
+		for (int i=0; i < m_nBytes; i++) {
+			long by = m_bFloppy? (abyMap[i] & 0xff) : (Integer.reverse(abyMap[i] & 0xff) >>> 24);
+			m_alMap[i/8] |= by << ((i%8)*8);
+		}
+		
+		m_nAllocated = 0;
+		for (int i=0; i < m_nLength/64; i++) {
+			m_nAllocated += Long.bitCount(m_alMap[i]);
+		}
+		if (m_nLength % 64 != 0) {
+			m_nAllocated += Long.bitCount(m_alMap[m_nLength/64] & ((1L << (m_nLength%64)) - 1));
 		}
 	}
 
@@ -98,7 +125,7 @@ public class AllocationMap implements Cloneable {
 		try {
 			// System.out.println("Cloning allocmap");
 			AllocationMap clonedMap = (AllocationMap)super.clone();
-			System.arraycopy(m_abyMap, 0, clonedMap.m_abyMap, 0, m_abyMap.length);
+			clonedMap.m_alMap = m_alMap.clone();
 			return clonedMap;
 		}
 		catch (CloneNotSupportedException cnsx) {
@@ -107,8 +134,14 @@ public class AllocationMap implements Cloneable {
 		}
 	}
 
+	/** Delivers the map in the format of the volume. */
 	public byte[] toBitField() {
-		return m_abyMap;
+		byte[] abyMap = new byte[m_nBytes];
+		for (int i=0; i < m_nBytes; i++) {
+			int by = (int)(m_alMap[i/8] >>> ((i%8)*8)) & 0xff;
+			abyMap[i] = (byte)(m_bFloppy? by : (Integer.reverse(by) >>> 24));
+		}
+		return abyMap;
 	}
 	
 	public int getAUSize() {
@@ -126,11 +159,10 @@ public class AllocationMap implements Cloneable {
 	public void allocateAU(int nUnit) {
 		if (DEBUG) System.out.println("Allocate unit " + nUnit);
 		if (nUnit < m_nLength) {
-			if (m_bFloppy) {
-				m_abyMap[nUnit/8] |= (1 << (nUnit%8));			
-			}
-			else {
-				m_abyMap[nUnit/8] |= ((0x80 >> (nUnit%8))&0xff);		
+			long mask = 1L << (nUnit % 64);
+			if ((m_alMap[nUnit/64] & mask)==0) {
+				m_alMap[nUnit/64] |= mask;
+				m_nAllocated++;
 			}
 			//		System.out.println("Allocate " + nUnit);
 		}
@@ -143,18 +175,15 @@ public class AllocationMap implements Cloneable {
 	*/
 	public void allocate(Interval it) {
 		if (DEBUG) System.out.println("Allocate interval (sectors) = [" + it.start + ", "+ it.end + "]");
-		int nStartAU = it.start/m_nAUSize;
-		int nEndAU = it.end/m_nAUSize;
-		for (int i=nStartAU; i <= nEndAU; i++) allocateAU(i);		
+		setRange(it.start/m_nAUSize, it.end/m_nAUSize, true);
 	}
 	
 	public void deallocate(int nUnit) throws IndexOutOfBoundsException {
 		if (nUnit < m_nLength) {
-			if (m_bFloppy) {
-				m_abyMap[nUnit/8] &= ~(1<<(nUnit%8));	
-			}
-			else {
-				m_abyMap[nUnit/8] &= ~((0x80 >> (nUnit%8))&0xff);		
+			long mask = 1L << (nUnit % 64);
+			if ((m_alMap[nUnit/64] & mask)!=0) {
+				m_alMap[nUnit/64] &= ~mask;
+				m_nAllocated--;
 			}
 		}
 		else  
@@ -167,32 +196,65 @@ public class AllocationMap implements Cloneable {
 		@param it Interval (referring to sectors)
 	*/
 	public void deallocate(Interval it) throws IndexOutOfBoundsException {
-		int nStartAU = it.start/m_nAUSize;
-		int nEndAU = it.end/m_nAUSize;
-		for (int i=nStartAU; i <= nEndAU; i++) deallocate(i);	
+		setRange(it.start/m_nAUSize, it.end/m_nAUSize, false);
 		if (DEBUG) System.out.println("Deallocate interval (sectors) = [" + it.start + ", "+ it.end + "]");
 	}
 	
-	public boolean hasAllocated(int nUnit) {
-		if (nUnit < m_nLength) {
-			if (m_bFloppy) {
-				return ((m_abyMap[nUnit/8] & (1<<(nUnit%8)))!=0);
+	/** Sets or clears the AUs from nFirst to nLast (inclusive), one word
+		at a time. AUs beyond the end of the map cause an exception after
+		the AUs in front of them have been changed. */
+	private void setRange(int nFirst, int nLast, boolean bAllocate) {
+		int nEnd = Math.min(nLast + 1, m_nLength);
+		int i = nFirst;
+		while (i < nEnd) {
+			int nWord = i / 64;
+			int nCount = Math.min(64 - i % 64, nEnd - i);
+			long mask = (nCount == 64)? -1L : (((1L << nCount) - 1) << (i % 64));
+			long old = m_alMap[nWord];
+			if (bAllocate) {
+				m_alMap[nWord] = old | mask;
+				m_nAllocated += Long.bitCount(~old & mask);
 			}
 			else {
-				//			System.out.println("nUnit = " + nUnit + ", 0x80>>= " + ((0x80>>(nUnit%8))&0xff) + ", m_abyMap[nUnit/8] = " + m_abyMap[nUnit/8]);
-				//			System.exit(1);
-				return ((m_abyMap[nUnit/8] & ((0x80>>(nUnit%8))&0xff)) !=0);
+				m_alMap[nWord] = old & ~mask;
+				m_nAllocated -= Long.bitCount(old & mask);
 			}
+			i += nCount;
+		}
+		if (nLast >= m_nLength && nFirst <= nLast) 
+			throw new IndexOutOfBoundsException(String.valueOf(Math.max(nFirst, m_nLength)));
+	}
+	
+	public boolean hasAllocated(int nUnit) {
+		if (nUnit < m_nLength) {
+			return (m_alMap[nUnit/64] & (1L << (nUnit%64))) != 0;
 		}
 		else
 			throw new IndexOutOfBoundsException(TIImageTool.langstr("AllocMapInvalidAU") + ": " + String.valueOf(nUnit));
 	}
 	
-	int getNextFreeAUAfter(int nAU) {
-		for (int i=nAU+1; i < m_nLength; i++) {
-			if (!hasAllocated(i)) return i;
+	/** Finds the first allocated (bSet) or free AU in the range from nFrom
+		to nTo (exclusive). 
+		@return AU number, or NOTFOUND
+	*/
+	int findBit(int nFrom, int nTo, boolean bSet) {
+		if (nFrom >= nTo) return NOTFOUND;
+		int nWord = nFrom / 64;
+		int nLastWord = (nTo - 1) / 64;
+		long word = bSet? m_alMap[nWord] : ~m_alMap[nWord];
+		word &= -1L << (nFrom % 64);
+		while (true) {
+			if (word != 0) {
+				int nBit = nWord * 64 + Long.numberOfTrailingZeros(word);
+				return (nBit < nTo)? nBit : NOTFOUND;
+			}
+			if (++nWord > nLastWord) return NOTFOUND;
+			word = bSet? m_alMap[nWord] : ~m_alMap[nWord];
 		}
-		return NOTFOUND;
+	}
+	
+	int getNextFreeAUAfter(int nAU) {
+		return findBit(nAU+1, m_nLength, false);
 	}
 	
 	/** Return next AU position that is allocated. If this is farther away
@@ -207,11 +269,9 @@ public class AllocationMap implements Cloneable {
 		int i = nAU + 1;
 		int nEnd = i + nNumberAU;
 
-		while ((i < nEnd) && (i < m_nLength)) {
-			if (hasAllocated(i)) return i;
-			i++;
-		}
-		if (i==m_nLength) return m_nLength;
+		int nFound = findBit(i, Math.min(nEnd, m_nLength), true);
+		if (nFound != NOTFOUND) return nFound;
+		if (i <= m_nLength && nEnd >= m_nLength) return m_nLength;
 		return EVENLONGER;
 	}
 	
@@ -227,10 +287,6 @@ public class AllocationMap implements Cloneable {
 	}	
 	
 	int countAllocated() {
-		int sum = 0;
-		for (int i=0; i < m_nLength; i++) {
-			if (hasAllocated(i)) sum++;
-		}
-		return sum;
+		return m_nAllocated;
 	}
 }
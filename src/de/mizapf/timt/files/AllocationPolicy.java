@@ -0,0 +1,265 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** Strategy for choosing the areas of a new file. The policy is selected in
+	the settings; all policies work on a list of free areas of the allocation
+	map, which they reduce by the areas that they choose.
+
+	Every policy first looks at the areas behind the first preferred AU, and
+	only then at the areas in front of it (the reserved AUs). 
+	
+	- largest: First area that holds the file; otherwise the largest area,
+	  and the rest from the beginning of the medium (the classic behavior)
+	- first: First area that holds the file; otherwise fills the areas in 
+	  their order
+	- best: Smallest area that holds the file; otherwise the largest areas
+	- next: Like first, but the search continues behind the last file
+	- contiguous: Like best, but fails if no area holds the file
+*/
+abstract class AllocationPolicy {
+
+	final static String LARGEST = "largest";
+	final static String FIRST = "first";
+	final static String BEST = "best";
+	final static String NEXT = "next";
+	final static String CONTIGUOUS = "contiguous";
+	
+	/** Returns the policy of the given name, or the classic policy if the
+		name is unknown. */
+	static AllocationPolicy forName(String sName) {
+		if (sName != null) sName = sName.trim().toLowerCase();
+		if (FIRST.equals(sName)) return new FirstFit();
+		if (BEST.equals(sName)) return new BestFit(false);
+		if (NEXT.equals(sName)) return new NextFit();
+		if (CONTIGUOUS.equals(sName)) return new BestFit(true);
+		return new LargestFirst();
+	}
+	
+	/** Chooses the areas for a file. 
+		@param free Free areas; the chosen areas are removed from the list
+		@param nRequiredAU Size of the file in AUs, larger than 0
+		@param nFirstAU First AU behind the reserved AUs
+		@param nAUSize Sectors per AU
+		@return Intervals (sectors) in the order of the file contents, or null if
+		there is not enough space
+	*/
+	abstract Interval[] place(FreeExtentList free, int nRequiredAU, int nFirstAU, int nAUSize);
+
+	/** Classic policy. The first pass only looks behind the reserved AUs;
+		the second pass (when the file must be split) starts at the 
+		beginning of the medium. */
+	static class LargestFirst extends AllocationPolicy {
+		Interval[] place(FreeExtentList free, int nRequiredAU, int nFirstAU, int nAUSize) {
+			List<Interval> lst = new ArrayList<Interval>();
+			int nFrom = free.split(nFirstAU);
+			int nFound = findFirst(free, nRequiredAU, nFrom, free.size());
+			if (nFound != -1) {
+				add(lst, free.take(nFound, nRequiredAU), nRequiredAU, nAUSize);
+				return toArray(lst);
+			}
+			
+			// Largest area behind the reserved AUs
+			int nMax = -1;
+			for (int i=nFrom; i < free.size(); i++) {
+				if (nMax == -1 || free.getLength(i) > free.getLength(nMax)) nMax = i;
+			}
+			if (nMax != -1) {
+				int nSize = free.getLength(nMax);
+				add(lst, free.take(nMax, nSize), nSize, nAUSize);
+				nRequiredAU -= nSize;
+			}
+			
+			// AU 1 is only used in the first pass
+			nRequiredAU = fill(free, lst, nRequiredAU, free.split(2), free.size(), nAUSize);
+			return (nRequiredAU > 0)? null : toArray(lst);
+		}
+	}
+
+	static class FirstFit extends AllocationPolicy {
+		Interval[] place(FreeExtentList free, int nRequiredAU, int nFirstAU, int nAUSize) {
+			List<Interval> lst = new ArrayList<Interval>();
+			int nFrom = free.split(nFirstAU);
+			int nFound = findFirst(free, nRequiredAU, nFrom, free.size());
+			if (nFound == -1) nFound = findFirst(free, nRequiredAU, 0, nFrom);
+			if (nFound != -1) {
+				add(lst, free.take(nFound, nRequiredAU), nRequiredAU, nAUSize);
+				return toArray(lst);
+			}
+			
+			nRequiredAU = fill(free, lst, nRequiredAU, nFrom, free.size(), nAUSize);
+			nRequiredAU = fill(free, lst, nRequiredAU, 0, nFrom, nAUSize);
+			return (nRequiredAU > 0)? null : toArray(lst);
+		}
+	}
+	
+	/** Next fit; the position behind the last chosen area is kept in the 
+		policy object. */
+	static class NextFit extends AllocationPolicy {
+		private int m_nNextAU = 0;
+		
+		Interval[] place(FreeExtentList free, int nRequiredAU, int nFirstAU, int nAUSize) {
+			List<Interval> lst = new ArrayList<Interval>();
+			int nFrom = free.split(nFirstAU);
+			int nNext = free.split(Math.max(m_nNextAU, nFirstAU));
+			int nFound = findFirst(free, nRequiredAU, nNext, free.size());
+			if (nFound == -1) nFound = findFirst(free, nRequiredAU, nFrom, nNext);
+			if (nFound == -1) nFound = findFirst(free, nRequiredAU, 0, nFrom);
+			if (nFound != -1) {
+				add(lst, free.take(nFound, nRequiredAU), nRequiredAU, nAUSize);
+			}
+			else {
+				nRequiredAU = fill(free, lst, nRequiredAU, nNext, free.size(), nAUSize);
+				nRequiredAU = fill(free, lst, nRequiredAU, nFrom, nNext, nAUSize);
+				nRequiredAU = fill(free, lst, nRequiredAU, 0, nFrom, nAUSize);
+				if (nRequiredAU > 0) return null;
+			}
+			m_nNextAU = (lst.get(lst.size()-1).end + 1) / nAUSize;
+			return toArray(lst);
+		}
+	}
+	
+	/** Best fit. If no area is large enough, the file is put into the largest
+		areas, unless the file must be contiguous. */
+	static class BestFit extends AllocationPolicy {
+		private boolean m_bContiguous;
+		
+		BestFit(boolean bContiguous) {
+			m_bContiguous = bContiguous;
+		}
+		
+		Interval[] place(FreeExtentList free, int nRequiredAU, int nFirstAU, int nAUSize) {
+			int nFrom = free.split(nFirstAU);
+			int nFound = findBest(free, nRequiredAU, nFrom, free.size());
+			if (nFound == -1) nFound = findBest(free, nRequiredAU, 0, nFrom);
+			if (nFound != -1) {
+				List<Interval> lst = new ArrayList<Interval>();
+				add(lst, free.take(nFound, nRequiredAU), nRequiredAU, nAUSize);
+				return toArray(lst);
+			}
+			if (m_bContiguous) return null;
+			return placeLargest(free, nRequiredAU, nAUSize);
+		}
+		
+		private int findBest(FreeExtentList free, int nRequiredAU, int nFrom, int nTo) {
+			int nBest = -1;
+			for (int i=nFrom; i < nTo; i++) {
+				int nLength = free.getLength(i);
+				if (nLength >= nRequiredAU && (nBest == -1 || nLength < free.getLength(nBest))) {
+					nBest = i;
+					if (nLength == nRequiredAU) break;
+				}
+			}
+			return nBest;
+		}
+	}
+	
+	/** Puts the file into as few areas as possible by using the largest 
+		areas of the medium. The areas are returned in the order of the 
+		medium. This is used when the chosen policy leads to more areas than
+		the file information block can hold. */
+	static Interval[] placeLargest(FreeExtentList free, int nRequiredAU, int nAUSize) {
+		final int[] anStart = new int[free.size()];
+		final int[] anLength = new int[free.size()];
+		Integer[] anIndex = new Integer[free.size()];
+		for (int i=0; i < anIndex.length; i++) {
+			anStart[i] = free.getStart(i);
+			anLength[i] = free.getLength(i);
+			anIndex[i] = i;
+		}
+		Arrays.sort(anIndex, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (anLength[a] != anLength[b]) return anLength[b] - anLength[a];
+				return a - b;
+			}
+		});
+		
+		int nCount = 0;
+		int nRemaining = nRequiredAU;
+		while (nRemaining > 0 && nCount < anIndex.length) {
+			nRemaining -= anLength[anIndex[nCount++]];
+		}
+		if (nRemaining > 0) return null;
+		
+		// Restore the order of the medium
+		Arrays.sort(anIndex, 0, nCount);
+		List<Interval> lst = new ArrayList<Interval>();
+		nRemaining = nRequiredAU;
+		for (int i=0; i < nCount; i++) {
+			int nIndex = anIndex[i];
+			// All chosen areas are needed; the last one may be used partly
+			int nSize = Math.min(anLength[nIndex], nRemaining);
+			nRemaining -= nSize;
+			free.remove(anStart[nIndex], nSize);
+			add(lst, anStart[nIndex], nSize, nAUSize);
+		}
+		return toArray(lst);
+	}
+	
+	/** Returns the index of the first area in the range that can hold the
+		required AUs, or -1. */
+	static int findFirst(FreeExtentList free, int nRequiredAU, int nFrom, int nTo) {
+		for (int i=nFrom; i < nTo; i++) {
+			if (free.getLength(i) >= nRequiredAU) return i;
+		}
+		return -1;
+	}
+	
+	/** Takes the areas in the range of indices in their order until the 
+		required AUs are reached. 
+		@return AUs that are still missing
+	*/
+	static int fill(FreeExtentList free, List<Interval> lst, int nRequiredAU, int nFrom, int nTo, int nAUSize) {
+		int i = nFrom;
+		while (nRequiredAU > 0 && i < nTo) {
+			int nLength = free.getLength(i);
+			int nSize = Math.min(nLength, nRequiredAU);
+			add(lst, free.take(i, nSize), nSize, nAUSize);
+			nRequiredAU -= nSize;
+			// A completely used area is removed from the list
+			if (nSize == nLength) nTo--;
+			else i++;
+		}
+		return nRequiredAU;
+	}
+	
+	/** Adds the AUs as an interval of sectors; adjacent intervals are merged. */
+	static void add(List<Interval> lst, int nStartAU, int nCount, int nAUSize) {
+		int nStart = nStartAU * nAUSize;
+		int nEnd = (nStartAU + nCount) * nAUSize - 1;
+		if (lst.size() > 0 && lst.get(lst.size()-1).end + 1 == nStart) {
+			lst.get(lst.size()-1).end = nEnd;
+		}
+		else {
+			lst.add(new Interval(nStart, nEnd));
+		}
+	}
+	
+	static Interval[] toArray(List<Interval> lst) {
+		return lst.toArray(new Interval[lst.size()]);
+	}
+}
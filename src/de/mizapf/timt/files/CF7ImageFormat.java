@@ -28,8 +28,6 @@ package de.mizapf.timt.files;
 // import java.util.ArrayList;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import java.util.List;
@@ -42,12 +40,17 @@ import de.mizapf.timt.util.NotImplementedException;
 
 public class CF7ImageFormat extends FileImageFormat implements PartitionedStorage {
 		
-	static int vote(String sFile) throws IOException {
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return CF7ImageFormat.vote(probe);
+		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
 		int vote = 0;
 
 		// System.out.println("vote CF7");
-		File fl = new File(sFile);
-		long nLength = fl.length();
+		long nLength = probe.getLength();
 		
 		// File system size must be less than 3 MB
 		if (nLength==0 || nLength < 409600) return 0;
@@ -66,17 +69,12 @@ public class CF7ImageFormat extends FileImageFormat implements PartitionedStorag
 		// three partitions
 		int nReadBytes = (nLength < 2457600)? (int)nLength : 2457600;
 		
-		byte[] aby = new byte[nReadBytes];
-		
-		// Read the beginning
-		DataInputStream dis = new DataInputStream(new FileInputStream(sFile));
-		dis.readFully(aby);
-		dis.close();
-		
 		boolean bFound = false;
 		for (int i=0; i < 3; i++)  {
 			if ((i*819200+0x1e) > nReadBytes) break;
-			if ((aby[(i*819200)+0x1a] == 'D') && (aby[(i*819200)+0x1c] == 'S') || (aby[(i*819200)+0x1e] == 'K')) {
+			// Only the bytes of the signature are read
+			byte[] aby = probe.read((i*819200)+0x1a, 5);
+			if ((aby[0] == 'D') && (aby[2] == 'S') || (aby[4] == 'K')) {
 				bFound = true;
 				break;
 			}
@@ -107,9 +105,9 @@ public class CF7ImageFormat extends FileImageFormat implements PartitionedStorag
 			int number = 0;
 			int count = 20;
 
-			// System.out.println("decode format unit " + m_nCurrentFormatUnit + ", length " + m_formatUnit.length );	
+			// System.out.println("decode format unit " + m_nFormatUnit + ", length " + m_formatUnit.length );	
 			byte[] abySector = new byte[TFileSystem.SECTOR_LENGTH];
-			int startSector = m_nCurrentFormatUnit * count - getPartitionSectorOffset();
+			int startSector = m_nFormatUnit * count - getPartitionSectorOffset();
 			
 			for (int i=0; i < m_formatUnit.length; i+=2) {
 				abySector[j++] = m_formatUnit[i];
@@ -128,7 +126,7 @@ public class CF7ImageFormat extends FileImageFormat implements PartitionedStorag
 		}
 		
 		void encode() {
-			// System.out.println("Current format unit = " + m_nCurrentFormatUnit);
+			// System.out.println("Current format unit = " + m_nFormatUnit);
 			for (ImageSector sect : m_decodedSectors) {
 				// System.out.println("DecSec = " + sect.getNumber() +", pos = " + sect.getPosition());
 				byte[] content = sect.getData();
@@ -255,6 +253,19 @@ public class CF7ImageFormat extends FileImageFormat implements PartitionedStorag
 		return funum * getFormatUnitLength(funum);
 	}	
 	
+	/** CF7 images are read from a memory mapping of the image. */
+	@Override
+	boolean supportsMappedAccess() {
+		return true;
+	}
+	
+	/** Each sector occupies 512 bytes, of which only the even bytes are used. */
+	@Override
+	Sector readMappedSector(int nSectorNumber) throws IOException {
+		long pos = (long)(nSectorNumber + getPartitionSectorOffset()) * TFileSystem.SECTOR_LENGTH * 2;
+		return readMappedSector(nSectorNumber, pos, 2);
+	}
+	
 	int getFUNumberFromSector(int secnum) {
 		secnum += getPartitionSectorOffset();
 	
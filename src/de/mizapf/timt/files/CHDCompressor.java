@@ -0,0 +1,514 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+/*
+    Layout of compact CHD images as written by this class:
+
+    Header[124]; Metadata; Hunks; Map header[16]; Compressed map
+
+    Hunks are compressed with deflate (codec "zlib") or stored uncompressed
+    when they cannot be compressed. Hunks with the same contents as a
+    previous hunk (in particular, empty hunks) are not stored again but
+    only referenced by the map (self reference).
+
+    The map format is described in CHDDecompressor.
+*/
+
+package de.mizapf.timt.files;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+import de.mizapf.timt.TIImageTool;
+import de.mizapf.timt.util.*;
+
+/** Writes compressed CHD v5 images. */
+class CHDCompressor {
+
+	final static int HEADERLENGTH = 0x7c;
+
+	/** Hunk as stored in the image. */
+	static class Unit {
+		int type;		// compression type, see CHDDecompressor
+		byte[] data;    // stored bytes
+		int crc;		// crc16 of the uncompressed hunk
+
+		Unit(int nType, byte[] abyData, int nCrc) {
+			type = nType;
+			data = abyData;
+			crc = nCrc;
+		}
+	}
+
+	/** Delivers the hunks for writing the image. */
+	interface UnitSource {
+		Unit getUnit(int hunk) throws IOException, ImageException;
+	}
+
+	int[] m_anCompressor;
+	int m_nZlib;
+	boolean m_bCopy;
+
+	int m_nHunkLength;
+	int m_nHunkCount;
+
+	Deflater m_deflater;
+	Inflater m_inflater;
+	byte[] m_abyBuffer;
+	
+	/** Compressed empty hunk, which is by far the most frequent one. */
+	Unit m_emptyUnit;
+
+	/** Creates a compressor for an image with the given codecs. If the codec
+		list contains no zlib entry, it is added when there is a free slot;
+		otherwise a new list is used, and hunks of the old image cannot be
+		copied but must be compressed again.
+		@param compressors Codecs of the existing image, or null for new images
+	*/
+	CHDCompressor(int[] compressors, int hunklen, int hunkcount) {
+		m_nHunkLength = hunklen;
+		m_nHunkCount = hunkcount;
+		m_abyBuffer = new byte[hunklen + 1];
+
+		m_anCompressor = (compressors != null)? compressors.clone() : new int[4];
+		m_bCopy = (compressors != null);
+		m_nZlib = -1;
+		for (int i=0; i < 4 && m_nZlib == -1; i++) {
+			if (m_anCompressor[i] == CHDDecompressor.CODEC_ZLIB) m_nZlib = i;
+		}
+		for (int i=0; i < 4 && m_nZlib == -1; i++) {
+			if (m_anCompressor[i] == CHDDecompressor.CODEC_NONE) {
+				m_anCompressor[i] = CHDDecompressor.CODEC_ZLIB;
+				m_nZlib = i;
+			}
+		}
+		if (m_nZlib == -1) {
+			m_anCompressor = new int[] { CHDDecompressor.CODEC_ZLIB, 0, 0, 0 };
+			m_nZlib = 0;
+			m_bCopy = false;
+		}
+	}
+
+	/** Indicates whether stored hunks of the old image can be copied as
+		they are. */
+	boolean canCopy() {
+		return m_bCopy;
+	}
+
+	/** Compresses the hunk. If it cannot be compressed, it is stored as is. */
+	Unit compress(byte[] hunk) {
+		boolean bEmpty = true;
+		for (int i=0; i < m_nHunkLength && bEmpty; i++) {
+			if (hunk[i] != 0) bEmpty = false;
+		}
+		if (bEmpty && m_emptyUnit != null) return m_emptyUnit;
+		
+		Unit unit = deflate(hunk);
+		if (bEmpty) m_emptyUnit = unit;
+		return unit;
+	}
+	
+	private Unit deflate(byte[] hunk) {
+		int crc = Utilities.crc16_get(hunk, 0, m_nHunkLength);
+		if (m_deflater == null) m_deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		m_deflater.reset();
+		m_deflater.setInput(hunk, 0, m_nHunkLength);
+		m_deflater.finish();
+		int length = 0;
+		while (!m_deflater.finished() && length < m_nHunkLength) {
+			length += m_deflater.deflate(m_abyBuffer, length, m_nHunkLength - length);
+		}
+		if (m_deflater.finished() && length < m_nHunkLength)
+			return new Unit(m_nZlib, Arrays.copyOf(m_abyBuffer, length), crc);
+		else
+			return new Unit(CHDDecompressor.NONE, Arrays.copyOf(hunk, m_nHunkLength), crc);
+	}
+
+	/** Restores the contents of a hunk that was compressed by this class. */
+	void expand(Unit unit, byte[] dest) throws ImageException {
+		if (unit.type == CHDDecompressor.NONE) {
+			System.arraycopy(unit.data, 0, dest, 0, m_nHunkLength);
+			return;
+		}
+		if (m_inflater == null) m_inflater = new Inflater(true);
+		m_inflater.reset();
+		System.arraycopy(unit.data, 0, m_abyBuffer, 0, unit.data.length);
+		m_abyBuffer[unit.data.length] = 0;
+		m_inflater.setInput(m_abyBuffer, 0, unit.data.length + 1);
+		int count = 0;
+		try {
+			while (count < m_nHunkLength && !m_inflater.finished()) {
+				int n = m_inflater.inflate(dest, count, m_nHunkLength - count);
+				if (n == 0 && m_inflater.needsInput()) break;
+				count += n;
+			}
+		}
+		catch (DataFormatException dfx) {
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDDecompress"), -1, dfx.getMessage()));
+		}
+	}
+
+	/** Writes the complete image.
+		@param out Target file, which is overwritten
+		@param logicalsize Logical size of the image in bytes
+		@param unitlength Sector length of the device
+		@param meta Metadata entries, including their 16-byte headers
+		@param source Delivers the hunks in ascending order
+	*/
+	void writeImage(RandomAccessFile out, long logicalsize, int unitlength, List<byte[]> meta, UnitSource source) throws IOException, ImageException {
+		out.setLength(0);
+		out.write(new byte[HEADERLENGTH]);
+
+		// Metadata follow the header
+		long metaoffset = (meta.isEmpty())? 0 : HEADERLENGTH;
+		long pos = HEADERLENGTH;
+		for (int i=0; i < meta.size(); i++) {
+			byte[] entry = meta.get(i);
+			long next = (i == meta.size()-1)? 0 : pos + entry.length;
+			CHDDecompressor.putInt(entry, 8, next, 8);
+			out.write(entry);
+			pos += entry.length;
+		}
+
+		// Hunks
+		long datastart = pos;
+		byte[] rawmap = new byte[m_nHunkCount * CHDDecompressor.MAPENTRYSIZE];
+		Map<Long,Integer> known = new HashMap<Long,Integer>();
+		CRC32 crc32 = new CRC32();
+
+		for (int hunk=0; hunk < m_nHunkCount; hunk++) {
+			Unit unit = source.getUnit(hunk);
+			int mpos = hunk * CHDDecompressor.MAPENTRYSIZE;
+
+			crc32.reset();
+			crc32.update(unit.data, 0, unit.data.length);
+			long key = (crc32.getValue() << 32) ^ ((long)unit.type << 24) ^ unit.data.length;
+
+			Integer same = known.get(key);
+			if (same != null && sameAsStored(out, rawmap, same, unit)) {
+				// System.out.println("Hunk " + hunk + " same as " + same);
+				rawmap[mpos] = CHDDecompressor.SELF;
+				CHDDecompressor.putInt(rawmap, mpos + 4, same, 6);
+				continue;
+			}
+
+			if (same == null) known.put(key, hunk);
+			rawmap[mpos] = (byte)unit.type;
+			CHDDecompressor.putInt(rawmap, mpos + 1, unit.data.length, 3);
+			CHDDecompressor.putInt(rawmap, mpos + 4, pos, 6);
+			CHDDecompressor.putInt(rawmap, mpos + 10, unit.crc, 2);
+			out.seek(pos);
+			out.write(unit.data);
+			pos += unit.data.length;
+		}
+
+		// Map
+		long mapoffset = pos;
+		out.seek(mapoffset);
+		out.write(compressMap(rawmap, datastart));
+
+		// Header
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeBytes("MComprHD");
+		dos.writeInt(HEADERLENGTH);
+		dos.writeInt(5);
+		for (int i=0; i < 4; i++) dos.writeInt(m_anCompressor[i]);
+		dos.writeLong(logicalsize);
+		dos.writeLong(mapoffset);
+		dos.writeLong(metaoffset);
+		dos.writeInt(m_nHunkLength);
+		dos.writeInt(unitlength);
+		// No hash values
+		for (int i=0; i < 60; i++) dos.write(0x00);
+		out.seek(0);
+		out.write(baos.toByteArray());
+	}
+
+	/** Compares the unit with the data of a hunk that was already written. */
+	private boolean sameAsStored(RandomAccessFile out, byte[] rawmap, int hunk, Unit unit) throws IOException {
+		int mpos = hunk * CHDDecompressor.MAPENTRYSIZE;
+		if ((rawmap[mpos] & 0xff) != unit.type) return false;
+		if (CHDDecompressor.getInt(rawmap, mpos + 1, 3) != unit.data.length) return false;
+		if (CHDDecompressor.getInt(rawmap, mpos + 10, 2) != unit.crc) return false;
+		byte[] stored = new byte[unit.data.length];
+		long end = out.getFilePointer();
+		out.seek(CHDDecompressor.getInt(rawmap, mpos + 4, 6));
+		out.readFully(stored);
+		out.seek(end);
+		return Arrays.equals(stored, unit.data);
+	}
+
+	/** Creates the compressed map, including the map header. The map entries
+		have the format as delivered by CHDDecompressor. */
+	byte[] compressMap(byte[] rawmap, long datastart) {
+		int[] comp = new int[m_nHunkCount];
+		int maxlength = 0;
+		long maxself = 0;
+		long lastself = 0;
+
+		// Use the short forms for self references where possible
+		for (int hunk=0; hunk < m_nHunkCount; hunk++) {
+			int mpos = hunk * CHDDecompressor.MAPENTRYSIZE;
+			comp[hunk] = rawmap[mpos] & 0xff;
+			if (comp[hunk] == CHDDecompressor.SELF) {
+				long ref = CHDDecompressor.getInt(rawmap, mpos + 4, 6);
+				if (ref == lastself) comp[hunk] = CHDDecompressor.SELF_0;
+				else {
+					if (ref == lastself + 1) comp[hunk] = CHDDecompressor.SELF_1;
+					else if (ref > maxself) maxself = ref;
+				}
+				lastself = ref;
+			}
+			else {
+				if (comp[hunk] < CHDDecompressor.NONE) {
+					int length = (int)CHDDecompressor.getInt(rawmap, mpos + 1, 3);
+					if (length > maxlength) maxlength = length;
+				}
+			}
+		}
+
+		// Run-length encoding of the compression types
+		int[] symbols = new int[m_nHunkCount * 3];
+		int count = 0;
+		int hunk = 0;
+		while (hunk < m_nHunkCount) {
+			int run = 1;
+			while (hunk + run < m_nHunkCount && comp[hunk + run] == comp[hunk]) run++;
+			hunk += run;
+			symbols[count++] = comp[hunk - run];
+			run--;
+			while (run > 0) {
+				if (run < 3) {
+					symbols[count++] = comp[hunk - 1];
+					run--;
+				}
+				else {
+					int rep = (run > 274)? 274 : run;
+					if (rep >= 19) {
+						symbols[count++] = CHDDecompressor.RLE_LARGE;
+						symbols[count++] = (rep - 19) >> 4;
+						symbols[count++] = (rep - 19) & 0x0f;
+					}
+					else {
+						symbols[count++] = CHDDecompressor.RLE_SMALL;
+						symbols[count++] = rep - 3;
+					}
+					run -= rep;
+				}
+			}
+		}
+
+		// Huffman code for the symbols
+		int[] histo = new int[16];
+		for (int i=0; i < count; i++) histo[symbols[i]]++;
+		int[] lengths = getCodeLengths(histo, 8);
+		int[] codes = getCanonicalCodes(lengths);
+
+		int lengthbits = bitsFor(maxlength);
+		int selfbits = bitsFor(maxself);
+
+		BitWriter bits = new BitWriter();
+
+		// Code lengths, with RLE
+		int i = 0;
+		while (i < 16) {
+			int run = 1;
+			while (i + run < 16 && lengths[i + run] == lengths[i] && run < 18) run++;
+			if (lengths[i] == 1) {
+				bits.write(1, 4);
+				bits.write(1, 4);
+				i++;
+			}
+			else {
+				if (run >= 3) {
+					bits.write(1, 4);
+					bits.write(lengths[i], 4);
+					bits.write(run - 3, 4);
+					i += run;
+				}
+				else {
+					bits.write(lengths[i], 4);
+					i++;
+				}
+			}
+		}
+
+		// Compression types
+		for (i=0; i < count; i++) {
+			bits.write(codes[symbols[i]], lengths[symbols[i]]);
+		}
+
+		// Lengths, CRCs, references
+		for (hunk=0; hunk < m_nHunkCount; hunk++) {
+			int mpos = hunk * CHDDecompressor.MAPENTRYSIZE;
+			switch (comp[hunk]) {
+			case CHDDecompressor.TYPE_0:
+			case CHDDecompressor.TYPE_1:
+			case CHDDecompressor.TYPE_2:
+			case CHDDecompressor.TYPE_3:
+				bits.write((int)CHDDecompressor.getInt(rawmap, mpos + 1, 3), lengthbits);
+				bits.write((int)CHDDecompressor.getInt(rawmap, mpos + 10, 2), 16);
+				break;
+			case CHDDecompressor.NONE:
+				bits.write((int)CHDDecompressor.getInt(rawmap, mpos + 10, 2), 16);
+				break;
+			case CHDDecompressor.SELF:
+				bits.write((int)CHDDecompressor.getInt(rawmap, mpos + 4, 6), selfbits);
+				break;
+			default:
+				// SELF_0, SELF_1
+				break;
+			}
+		}
+		byte[] mapdata = bits.toByteArray();
+
+		byte[] result = new byte[CHDDecompressor.MAPHEADERSIZE + mapdata.length];
+		CHDDecompressor.putInt(result, 0, mapdata.length, 4);
+		CHDDecompressor.putInt(result, 4, datastart, 6);
+		CHDDecompressor.putInt(result, 10, Utilities.crc16_get(rawmap, 0, rawmap.length), 2);
+		result[12] = (byte)lengthbits;
+		result[13] = (byte)selfbits;
+		result[14] = 0;		// no parent
+		System.arraycopy(mapdata, 0, result, CHDDecompressor.MAPHEADERSIZE, mapdata.length);
+		return result;
+	}
+
+	private static int bitsFor(long value) {
+		int bits = 0;
+		while (value != 0) {
+			value >>= 1;
+			bits++;
+		}
+		return bits;
+	}
+
+	/** Determines the Huffman code lengths for the given frequencies. If the
+		lengths exceed the maximum, a code with equal lengths is used. */
+	static int[] getCodeLengths(int[] histo, int maxbits) {
+		int n = histo.length;
+		int[] lengths = new int[n];
+
+		// Nodes 0..n-1 are leaves, n.. are inner nodes
+		long[] weight = new long[2*n];
+		int[] parent = new int[2*n];
+		boolean[] done = new boolean[2*n];
+		int nodes = n;
+		int used = 0;
+		for (int i=0; i < n; i++) {
+			weight[i] = histo[i];
+			if (histo[i] > 0) used++;
+			else done[i] = true;
+		}
+
+		if (used == 1) {
+			for (int i=0; i < n; i++) if (histo[i] > 0) lengths[i] = 1;
+			return lengths;
+		}
+
+		for (int k=1; k < used; k++) {
+			int a = -1, b = -1;
+			for (int i=0; i < nodes; i++) {
+				if (done[i]) continue;
+				if (a == -1 || weight[i] < weight[a]) { b = a; a = i; }
+				else if (b == -1 || weight[i] < weight[b]) b = i;
+			}
+			weight[nodes] = weight[a] + weight[b];
+			parent[a] = nodes;
+			parent[b] = nodes;
+			done[a] = true;
+			done[b] = true;
+			nodes++;
+		}
+
+		int root = nodes - 1;
+		boolean tooLong = false;
+		for (int i=0; i < n; i++) {
+			if (histo[i] == 0) continue;
+			int len = 0;
+			for (int p=i; p != root; p = parent[p]) len++;
+			lengths[i] = len;
+			if (len > maxbits) tooLong = true;
+		}
+
+		if (tooLong) {
+			// Flat code; 16 symbols fit into 4 bits
+			int len = bitsFor(n - 1);
+			for (int i=0; i < n; i++) lengths[i] = len;
+		}
+		return lengths;
+	}
+
+	/** Assigns the canonical codes in the same way as CHDHuffmanDecoder. */
+	static int[] getCanonicalCodes(int[] lengths) {
+		int[] histo = new int[33];
+		for (int len : lengths) histo[len]++;
+		int curstart = 0;
+		for (int len=32; len > 0; len--) {
+			int nextstart = (curstart + histo[len]) >> 1;
+			histo[len] = curstart;
+			curstart = nextstart;
+		}
+		int[] codes = new int[lengths.length];
+		for (int i=0; i < lengths.length; i++) {
+			if (lengths[i] > 0) codes[i] = histo[lengths[i]]++;
+		}
+		return codes;
+	}
+
+	/** Bitstream with MSB-first bit order. */
+	static class BitWriter {
+		ByteArrayOutputStream m_out = new ByteArrayOutputStream();
+		int m_nBuffer;
+		int m_nBits;
+
+		void write(int value, int numbits) {
+			for (int i=numbits-1; i >= 0; i--) {
+				m_nBuffer = (m_nBuffer << 1) | ((value >> i) & 1);
+				m_nBits++;
+				if (m_nBits == 8) {
+					m_out.write(m_nBuffer);
+					m_nBuffer = 0;
+					m_nBits = 0;
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			if (m_nBits > 0) {
+				m_out.write(m_nBuffer << (8 - m_nBits));
+				m_nBuffer = 0;
+				m_nBits = 0;
+			}
+			return m_out.toByteArray();
+		}
+	}
+}
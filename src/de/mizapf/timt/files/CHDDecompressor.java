@@ -0,0 +1,410 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+/*
+    V5 compressed map:
+
+    [  0] UINT32 length;        // length of compressed map
+    [  4] UINT48 datastart;     // offset of first block
+    [ 10] UINT16 crc;           // crc16 of the decompressed map
+    [ 12] UINT8 lengthbits;     // bits used to encode complength
+    [ 13] UINT8 hunkbits;       // bits used to encode self-refs
+    [ 14] UINT8 parentunitbits; // bits used to encode parent unit refs
+    [ 15] UINT8 reserved;       // future use
+    [ 16] (compressed map data)
+
+    The map data start with the Huffman-coded compression types of all
+    hunks (with RLE), followed by the lengths, CRCs, and references.
+
+    Decompressed map entry:
+
+    [  0] UINT8 compression;    // compression type
+    [  1] UINT24 complength;    // compressed length
+    [  4] UINT48 offset;        // offset
+    [ 10] UINT16 crc;           // crc16 of the data
+
+    See MAME, file chd.cpp.
+*/
+
+package de.mizapf.timt.files;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+import de.mizapf.timt.TIImageTool;
+import de.mizapf.timt.util.*;
+
+/** Reads the hunks of a compressed CHD v5 image. */
+class CHDDecompressor {
+
+	// Compression types in the map
+	final static int TYPE_0 = 0;
+	final static int TYPE_1 = 1;
+	final static int TYPE_2 = 2;
+	final static int TYPE_3 = 3;
+	final static int NONE = 4;
+	final static int SELF = 5;
+	final static int PARENT = 6;
+
+	// Pseudo types, only used in the compressed map
+	final static int RLE_SMALL = 7;
+	final static int RLE_LARGE = 8;
+	final static int SELF_0 = 9;
+	final static int SELF_1 = 10;
+	final static int PARENT_SELF = 11;
+	final static int PARENT_0 = 12;
+	final static int PARENT_1 = 13;
+
+	// Codecs
+	final static int CODEC_NONE = 0;
+	final static int CODEC_ZLIB = 0x7a6c6962;    // zlib
+	final static int CODEC_LZMA = 0x6c7a6d61;    // lzma
+	final static int CODEC_HUFF = 0x68756666;    // huff
+	final static int CODEC_FLAC = 0x666c6163;    // flac
+	final static int CODEC_ZSTD = 0x7a737464;    // zstd
+
+	final static int MAPHEADERSIZE = 16;
+	final static int MAPENTRYSIZE = 12;
+
+	/** Number of decompressed hunks to keep. */
+	final static int HUNKCACHE = 8;
+
+	int[] m_anCompressor;
+	int m_nHunkLength;
+	int m_nUnitLength;
+	int m_nHunkCount;
+
+	byte[] m_rawmap;
+
+	byte[] m_abyCompressed;
+	Inflater m_inflater;
+	LZMADecoder m_lzma;
+	CHDHuffmanDecoder m_huffman;
+
+	/** Recently decompressed hunks; self-references often point to the
+		same hunk, e.g. for empty areas. */
+	Map<Integer,byte[]> m_hunkCache;
+
+	CHDDecompressor(int[] compressors, int hunklen, int unitlen, int hunkcount) {
+		m_anCompressor = compressors;
+		m_nHunkLength = hunklen;
+		m_nUnitLength = unitlen;
+		m_nHunkCount = hunkcount;
+		m_abyCompressed = new byte[hunklen + 1];
+		m_hunkCache = new LinkedHashMap<Integer,byte[]>(HUNKCACHE, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer,byte[]> eldest) {
+				return size() > HUNKCACHE;
+			}
+		};
+	}
+
+	/** Checks whether all codecs of the image are supported.
+		@return Name of the first unsupported codec, or null if all are supported
+	*/
+	static String getUnsupportedCodec(int[] compressors) {
+		for (int codec : compressors) {
+			if (codec != CODEC_NONE && codec != CODEC_ZLIB && codec != CODEC_LZMA && codec != CODEC_HUFF)
+				return getCodecName(codec);
+		}
+		return null;
+	}
+
+	static String getCodecName(int codec) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=24; i >= 0; i-=8) {
+			sb.append((char)((codec >> i) & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/** Reads and decompresses the hunk map. */
+	void readMap(RandomAccessFile file, long mapoffset) throws IOException, ImageException {
+		byte[] head = new byte[MAPHEADERSIZE];
+		file.seek(mapoffset);
+		file.readFully(head);
+
+		int mapbytes = Utilities.getInt32be(head, 0);
+		long curoffset = getInt48be(head, 4);
+		int mapcrc = Utilities.getInt16(head, 10);
+		int lengthbits = head[12] & 0xff;
+		int selfbits = head[13] & 0xff;
+		int parentbits = head[14] & 0xff;
+
+		byte[] compressed = new byte[mapbytes];
+		file.readFully(compressed);
+		CHDHuffmanDecoder.BitReader bits = new CHDHuffmanDecoder.BitReader(compressed, 0, mapbytes);
+
+		m_rawmap = new byte[m_nHunkCount * MAPENTRYSIZE];
+
+		// First decode the compression types
+		CHDHuffmanDecoder decoder = new CHDHuffmanDecoder(16, 8);
+		decoder.importTreeRLE(bits);
+		int lastcomp = 0;
+		int repcount = 0;
+		for (int hunk=0; hunk < m_nHunkCount; hunk++) {
+			int pos = hunk * MAPENTRYSIZE;
+			if (repcount > 0) {
+				m_rawmap[pos] = (byte)lastcomp;
+				repcount--;
+			}
+			else {
+				int val = decoder.decodeOne(bits);
+				if (val == RLE_SMALL) {
+					m_rawmap[pos] = (byte)lastcomp;
+					repcount = 2 + decoder.decodeOne(bits);
+				}
+				else {
+					if (val == RLE_LARGE) {
+						m_rawmap[pos] = (byte)lastcomp;
+						repcount = 2 + 16 + (decoder.decodeOne(bits) << 4);
+						repcount += decoder.decodeOne(bits);
+					}
+					else {
+						m_rawmap[pos] = (byte)val;
+						lastcomp = val;
+					}
+				}
+			}
+		}
+
+		// Then get the lengths, offsets, and CRCs
+		long lastself = 0;
+		long lastparent = 0;
+		int ratio = m_nHunkLength / m_nUnitLength;
+		for (int hunk=0; hunk < m_nHunkCount; hunk++) {
+			int pos = hunk * MAPENTRYSIZE;
+			long offset = curoffset;
+			int length = 0;
+			int crc = 0;
+			switch (m_rawmap[pos]) {
+			case TYPE_0:
+			case TYPE_1:
+			case TYPE_2:
+			case TYPE_3:
+				length = bits.read(lengthbits);
+				curoffset += length;
+				crc = bits.read(16);
+				break;
+			case NONE:
+				length = m_nHunkLength;
+				curoffset += length;
+				crc = bits.read(16);
+				break;
+			case SELF:
+				offset = bits.read(selfbits);
+				lastself = offset;
+				break;
+			case PARENT:
+				offset = bits.read(parentbits);
+				lastparent = offset;
+				break;
+			case SELF_1:
+				lastself++;
+				m_rawmap[pos] = SELF;
+				offset = lastself;
+				break;
+			case SELF_0:
+				m_rawmap[pos] = SELF;
+				offset = lastself;
+				break;
+			case PARENT_SELF:
+				m_rawmap[pos] = PARENT;
+				offset = (long)hunk * ratio;
+				lastparent = offset;
+				break;
+			case PARENT_1:
+				lastparent += ratio;
+				m_rawmap[pos] = PARENT;
+				offset = lastparent;
+				break;
+			case PARENT_0:
+				m_rawmap[pos] = PARENT;
+				offset = lastparent;
+				break;
+			default:
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+			}
+			putInt(m_rawmap, pos + 1, length, 3);
+			putInt(m_rawmap, pos + 4, offset, 6);
+			putInt(m_rawmap, pos + 10, crc, 2);
+		}
+
+		int calccrc = Utilities.crc16_get(m_rawmap, 0, m_rawmap.length);
+		if (calccrc != mapcrc)
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadCRC"), Utilities.toHex(calccrc, 4), Utilities.toHex(mapcrc, 4)));
+	}
+
+	/** Delivers the compression type of the hunk. */
+	int getType(int hunk) {
+		return m_rawmap[hunk * MAPENTRYSIZE] & 0xff;
+	}
+
+	/** Reads the hunk into the buffer. */
+	void readHunk(RandomAccessFile file, int hunk, byte[] dest) throws IOException, ImageException {
+		byte[] cached = m_hunkCache.get(hunk);
+		if (cached != null) {
+			System.arraycopy(cached, 0, dest, 0, m_nHunkLength);
+			return;
+		}
+
+		int pos = hunk * MAPENTRYSIZE;
+		int type = m_rawmap[pos] & 0xff;
+		int length = (int)getInt(m_rawmap, pos + 1, 3);
+		long offset = getInt(m_rawmap, pos + 4, 6);
+		int crc = (int)getInt(m_rawmap, pos + 10, 2);
+
+		switch (type) {
+		case TYPE_0:
+		case TYPE_1:
+		case TYPE_2:
+		case TYPE_3:
+			if (length > m_nHunkLength)
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+			file.seek(offset);
+			file.readFully(m_abyCompressed, 0, length);
+			decompress(m_anCompressor[type], hunk, length, dest);
+			break;
+		case NONE:
+			file.seek(offset);
+			file.readFully(dest, 0, m_nHunkLength);
+			break;
+		case SELF:
+			if (offset >= hunk)
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+			readHunk(file, (int)offset, dest);
+			return;
+		case PARENT:
+			throw new ImageException(TIImageTool.langstr("MameCHDParent"));
+		default:
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+		}
+
+		int calccrc = Utilities.crc16_get(dest, 0, m_nHunkLength);
+		if (calccrc != crc)
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadCRC"), Utilities.toHex(calccrc, 4), Utilities.toHex(crc, 4)));
+
+		m_hunkCache.put(hunk, dest.clone());
+	}
+
+	/** Delivers the hunk as it is stored in the image, without decompressing
+		it. Self references are resolved. */
+	CHDCompressor.Unit getStoredUnit(RandomAccessFile file, int hunk) throws IOException, ImageException {
+		int pos = hunk * MAPENTRYSIZE;
+		int type = m_rawmap[pos] & 0xff;
+		long offset = getInt(m_rawmap, pos + 4, 6);
+		
+		while (type == SELF) {
+			if (offset >= hunk)
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+			hunk = (int)offset;
+			pos = hunk * MAPENTRYSIZE;
+			type = m_rawmap[pos] & 0xff;
+			offset = getInt(m_rawmap, pos + 4, 6);
+		}
+		
+		if (type == PARENT) 
+			throw new ImageException(TIImageTool.langstr("MameCHDParent"));
+		if (type > PARENT)
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDBadMap"), hunk));
+			
+		int length = (int)getInt(m_rawmap, pos + 1, 3);
+		byte[] data = new byte[length];
+		file.seek(offset);
+		file.readFully(data);
+		return new CHDCompressor.Unit(type, data, (int)getInt(m_rawmap, pos + 10, 2));
+	}
+
+	/** Decompresses the data in the buffer for compressed hunks. */
+	private void decompress(int codec, int hunk, int length, byte[] dest) throws IOException, ImageException {
+		// System.out.println("Decompress hunk " + hunk + " with " + getCodecName(codec) + ", length " + length);
+		switch (codec) {
+		case CODEC_ZLIB:
+			inflate(hunk, length, dest);
+			break;
+		case CODEC_LZMA:
+			if (m_lzma == null) m_lzma = new LZMADecoder(3, 0, 2);
+			try {
+				m_lzma.decode(m_abyCompressed, 0, length, dest);
+			}
+			catch (IOException iox) {
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDDecompress"), hunk, iox.getMessage()));
+			}
+			break;
+		case CODEC_HUFF:
+			if (m_huffman == null) m_huffman = new CHDHuffmanDecoder(256, 16);
+			CHDHuffmanDecoder.BitReader bits = new CHDHuffmanDecoder.BitReader(m_abyCompressed, 0, length);
+			m_huffman.importTreeHuffman(bits);
+			for (int i=0; i < m_nHunkLength; i++) {
+				dest[i] = (byte)m_huffman.decodeOne(bits);
+			}
+			if (bits.overflow())
+				throw new ImageException(String.format(TIImageTool.langstr("MameCHDDecompress"), hunk, getCodecName(codec)));
+			break;
+		default:
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDCodec"), getCodecName(codec)));
+		}
+	}
+
+	/** Inflates a raw deflate stream. */
+	private void inflate(int hunk, int length, byte[] dest) throws ImageException {
+		if (m_inflater == null) m_inflater = new Inflater(true);
+		m_inflater.reset();
+		// Raw deflate streams need an additional dummy byte
+		m_abyCompressed[length] = 0;
+		m_inflater.setInput(m_abyCompressed, 0, length + 1);
+		int count = 0;
+		try {
+			while (count < m_nHunkLength && !m_inflater.finished()) {
+				int n = m_inflater.inflate(dest, count, m_nHunkLength - count);
+				if (n == 0 && (m_inflater.needsInput() || m_inflater.needsDictionary())) break;
+				count += n;
+			}
+		}
+		catch (DataFormatException dfx) {
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDDecompress"), hunk, dfx.getMessage()));
+		}
+		if (count != m_nHunkLength)
+			throw new ImageException(String.format(TIImageTool.langstr("MameCHDDecompress"), hunk, "zlib"));
+	}
+
+	static long getInt48be(byte[] aby, int offset) {
+		return getInt(aby, offset, 6);
+	}
+
+	static long getInt(byte[] aby, int offset, int bytes) {
+		long value = 0;
+		for (int i=0; i < bytes; i++) {
+			value = (value << 8) | (aby[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	static void putInt(byte[] aby, int offset, long value, int bytes) {
+		for (int i=bytes-1; i >= 0; i--) {
+			aby[offset + i] = (byte)(value & 0xff);
+			value >>= 8;
+		}
+	}
+}
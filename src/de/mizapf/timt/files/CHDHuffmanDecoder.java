@@ -0,0 +1,204 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.util.Arrays;
+
+import de.mizapf.timt.TIImageTool;
+
+/** Canonical Huffman decoder as used in compressed CHD images, both for the
+	hunk map (16 codes) and for the "huff" codec (256 codes). The code
+	lengths are stored in the bitstream in front of the data.
+	See MAME, file huffman.cpp.
+*/
+class CHDHuffmanDecoder {
+
+	int m_nCodes;
+	int m_nMaxBits;
+
+	int[] m_anBits;    	// code length per symbol
+	int[] m_anCode;		// canonical code per symbol
+	int[] m_lookup;     // symbol << 5 | length, indexed by the next maxbits bits
+
+	/** Bitstream with MSB-first bit order. Reading beyond the end of the
+		data delivers zeros and sets the overflow state. */
+	static class BitReader {
+		byte[] m_abyData;
+		int m_nPos;
+		int m_nEnd;
+		int m_nBuffer;
+		int m_nBits;
+
+		BitReader(byte[] data, int offset, int length) {
+			m_abyData = data;
+			m_nPos = offset;
+			m_nEnd = offset + length;
+			m_nBuffer = 0;
+			m_nBits = 0;
+		}
+
+		int peek(int numbits) {
+			if (numbits == 0) return 0;
+			if (numbits > m_nBits) {
+				while (m_nBits <= 24) {
+					if (m_nPos < m_nEnd)
+						m_nBuffer |= (m_abyData[m_nPos] & 0xff) << (24 - m_nBits);
+					m_nPos++;
+					m_nBits += 8;
+				}
+			}
+			return m_nBuffer >>> (32 - numbits);
+		}
+
+		void remove(int numbits) {
+			m_nBuffer <<= numbits;
+			m_nBits -= numbits;
+		}
+
+		int read(int numbits) {
+			int value = peek(numbits);
+			remove(numbits);
+			return value;
+		}
+
+		boolean overflow() {
+			return (m_nPos - m_nBits/8) > m_nEnd;
+		}
+	}
+
+	CHDHuffmanDecoder(int numcodes, int maxbits) {
+		m_nCodes = numcodes;
+		m_nMaxBits = maxbits;
+		m_anBits = new int[numcodes];
+		m_anCode = new int[numcodes];
+		m_lookup = new int[1 << maxbits];
+	}
+
+	/** Reads the code lengths in the RLE format used for the hunk map. */
+	void importTreeRLE(BitReader bits) throws ImageException {
+		int numbits = (m_nMaxBits >= 16)? 5 : ((m_nMaxBits >= 8)? 4 : 3);
+		int cur = 0;
+		while (cur < m_nCodes) {
+			int nodebits = bits.read(numbits);
+			if (nodebits != 1) {
+				m_anBits[cur++] = nodebits;
+			}
+			else {
+				// Escape code; a double 1 is a single 1
+				nodebits = bits.read(numbits);
+				if (nodebits == 1) {
+					m_anBits[cur++] = nodebits;
+				}
+				else {
+					int repcount = bits.read(numbits) + 3;
+					if (repcount + cur > m_nCodes) throw new ImageException(TIImageTool.langstr("MameCHDHuffman"));
+					while (repcount-- > 0) m_anBits[cur++] = nodebits;
+				}
+			}
+		}
+		buildTable(bits);
+	}
+
+	/** Reads the code lengths which are themselves Huffman-coded, as used
+		for the hunk data. */
+	void importTreeHuffman(BitReader bits) throws ImageException {
+		// Small tree for the code lengths
+		CHDHuffmanDecoder small = new CHDHuffmanDecoder(24, 6);
+		small.m_anBits[0] = bits.read(3);
+		int start = bits.read(3) + 1;
+		int count = 0;
+		for (int i=1; i < 24; i++) {
+			if (i < start || count == 7) {
+				small.m_anBits[i] = 0;
+			}
+			else {
+				count = bits.read(3);
+				small.m_anBits[i] = (count == 7)? 0 : count;
+			}
+		}
+		small.buildTable(bits);
+
+		// Maximum length of a repeat count
+		int temp = m_nCodes - 9;
+		int rlefullbits = 0;
+		while (temp != 0) {
+			temp >>= 1;
+			rlefullbits++;
+		}
+
+		int last = 0;
+		int cur = 0;
+		while (cur < m_nCodes) {
+			int value = small.decodeOne(bits);
+			if (value != 0) {
+				last = value - 1;
+				m_anBits[cur++] = last;
+			}
+			else {
+				count = bits.read(3) + 2;
+				if (count == 7 + 2) count += bits.read(rlefullbits);
+				for (; count != 0 && cur < m_nCodes; count--)
+					m_anBits[cur++] = last;
+			}
+		}
+		buildTable(bits);
+	}
+
+	/** Assigns the canonical codes and fills the lookup table. */
+	private void buildTable(BitReader bits) throws ImageException {
+		int[] histo = new int[33];
+		for (int i=0; i < m_nCodes; i++) {
+			if (m_anBits[i] > m_nMaxBits) throw new ImageException(TIImageTool.langstr("MameCHDHuffman"));
+			histo[m_anBits[i]]++;
+		}
+
+		// Starting code for each code length
+		int curstart = 0;
+		for (int len=32; len > 0; len--) {
+			int nextstart = (curstart + histo[len]) >> 1;
+			if (len != 1 && nextstart * 2 != (curstart + histo[len]))
+				throw new ImageException(TIImageTool.langstr("MameCHDHuffman"));
+			histo[len] = curstart;
+			curstart = nextstart;
+		}
+
+		Arrays.fill(m_lookup, 0);
+		for (int i=0; i < m_nCodes; i++) {
+			if (m_anBits[i] > 0) {
+				m_anCode[i] = histo[m_anBits[i]]++;
+				int shift = m_nMaxBits - m_anBits[i];
+				int value = (i << 5) | m_anBits[i];
+				int first = m_anCode[i] << shift;
+				int last = ((m_anCode[i] + 1) << shift) - 1;
+				for (int j=first; j <= last; j++) m_lookup[j] = value;
+			}
+		}
+
+		if (bits.overflow()) throw new ImageException(TIImageTool.langstr("MameCHDHuffman"));
+	}
+
+	int decodeOne(BitReader bits) {
+		int lookup = m_lookup[bits.peek(m_nMaxBits)];
+		bits.remove(lookup & 0x1f);
+		return lookup >> 5;
+	}
+}
@@ -44,6 +44,13 @@ public class Directory extends Element {
 	
 	/** Needed for checkDIB. Some SCSI images may have bad AU counts. */ 
 	boolean m_bBadAUCount;
+	
+	/** DDR of a harddisk directory whose contents have not been read yet;
+		null when the directory is loaded. */
+	private Sector m_sectDDR;
+	
+	/** Set when the contents could not be read on first use. */
+	private boolean m_bDamaged;
 		
 	// ==========================================================
 	// Data from the DDR
@@ -64,12 +71,12 @@ public class Directory extends Element {
 	private final static int CRELEN = 20;
 	private final static int UPDLEN = 18;
 
-	/** Called by recursion and by Volume.const#HD. */
+	/** Called by Directory.load and by Volume.const#HD. Only the root 
+		directory is loaded at once; subdirectories read their files and
+		their own subdirectories when they are first used. */
 	Directory(Volume vol, Sector vibddr, Directory dirParent) throws IOException, ImageException {
 		m_Volume = vol;
 		// System.out.println(Utilities.hexdump(vibddr.getData()));
-		TreeSet<TFile> files = new TreeSet<TFile>();
-		TreeSet<Directory> subdirs = new TreeSet<Directory>();
 
 		if (dirParent != null) m_sName = Utilities.getString10(vibddr.getData(), 0);
 		m_nFileIndexSector = Utilities.getInt16(vibddr.getData(), 0x18) * vol.getAUSize();
@@ -79,14 +86,39 @@ public class Directory extends Element {
 		m_tCreation = new Time(vibddr.getData(), 0x12);
 		m_dirParent = dirParent;
 		setContainingDirectory(dirParent);
+
+		int nMaxAU = Utilities.getInt16(vibddr.getData(), 0x0a);
+		m_bBadAUCount = (nMaxAU > TFileSystem.MAXAU);
+		
+		m_sectDDR = vibddr;
+		if (dirParent == null) load();
+	}
+	
+	/** Reads the files and the subdirectories of a harddisk directory. The
+		subdirectories are created without their contents. */
+	private void load() throws IOException, ImageException {
+		Volume vol = m_Volume;
+		Sector vibddr = m_sectDDR;
+		TreeSet<TFile> files = new TreeSet<TFile>();
+		TreeSet<Directory> subdirs = new TreeSet<Directory>();
+
 		// Create files
 		Sector sectFiles = vol.readSector(m_nFileIndexSector);
+		int[] anFile = getFilePointers(sectFiles, vol.getAUSize());
+		int[] anDir = getDirPointers(vibddr, vol.getAUSize());
+		
+		// Read the FIBs and the DDRs of the subdirectories in one pass
+		int[] anSector = new int[anFile.length + anDir.length];
+		System.arraycopy(anFile, 0, anSector, 0, anFile.length);
+		System.arraycopy(anDir, 0, anSector, anFile.length, anDir.length);
+		Sector[] asect = vol.readSectors(anSector);
+		
 		int bad = 0;
 		// System.out.println("Directory " + getFullPathname());
 		// if (m_dirParent == null) System.out.println("> " + System.currentTimeMillis());
-		for (int nFile : getFilePointers(sectFiles, vol.getAUSize())) {
+		for (int i=0; i < anFile.length; i++) {
 			try {
-				Sector sectFile = vol.readSector(nFile);
+				Sector sectFile = (asect[i] != null)? asect[i] : vol.readSector(anFile[i]);
 				TFile file = new TFile(vol, sectFile, this);
 				// if (file.getAllocatedSectors()==0) System.err.println("Warning: File " + file.getPathname() + " has no contents");
 				files.add(file);
@@ -97,7 +129,7 @@ public class Directory extends Element {
 				System.err.println(ix.getMessage());
 				if (bad > 10) {
 					String name = m_sName;
-					if (dirParent == null)
+					if (m_dirParent == null)
 						throw new ImageException(TIImageTool.langstr("DirectoryFailedRoot"));
 					else 
 						throw new ImageException(String.format(TIImageTool.langstr("DirectoryFailedOther"), name));
@@ -111,26 +143,62 @@ public class Directory extends Element {
 		
 		// if (m_dirParent == null) System.out.println("| " + System.currentTimeMillis());
 		// Create directories
-		for (int nDir : getDirPointers(vibddr, vol.getAUSize())) {
+		for (int i=0; i < anDir.length; i++) {
 			// System.out.println("- " + System.currentTimeMillis());
-			Sector ddr = vol.readSector(nDir);
-			// Recurse
+			Sector ddr = (asect[anFile.length + i] != null)? asect[anFile.length + i] : vol.readSector(anDir[i]);
 			subdirs.add(new Directory(vol, ddr, this));
 		}
-		int nMaxAU = Utilities.getInt16(vibddr.getData(), 0x0a);
-		m_bBadAUCount = (nMaxAU > TFileSystem.MAXAU);
 		
-		m_Subdirs = new Directory[subdirs.size()];
-		subdirs.toArray(m_Subdirs);
-
 		int dcount = vibddr.getData()[0x17] & 0xff;
 		if (subdirs.size() != dcount)
 			System.out.println("Warning (" + m_sName + "): Dir count = " + dcount + ", but found " + subdirs.size() + " subdirs"); 
 
+		m_Subdirs = new Directory[subdirs.size()];
+		subdirs.toArray(m_Subdirs);
+
 		m_Files = new TFile[files.size()];
 		files.toArray(m_Files);
+		m_sectDDR = null;
 		// if (m_dirParent == null) System.out.println("< " + System.currentTimeMillis());
 	}
+	
+	/** Loads the directory on its first use. Errors are only reported on 
+		the console; the directory then appears as empty and cannot be 
+		changed. */
+	private synchronized void ensureLoaded() {
+		if (m_sectDDR == null) return;
+		try {
+			load();
+		}
+		catch (IOException iox) {
+			System.err.println(iox.getMessage());
+			setDamaged();
+		}
+		catch (ImageException ix) {
+			System.err.println(ix.getMessage());
+			setDamaged();
+		}
+	}
+	
+	private void setDamaged() {
+		m_Files = new TFile[0];
+		m_Subdirs = new Directory[0];
+		m_bDamaged = true;
+		m_sectDDR = null;
+	}
+	
+	/** Loads the complete tree below this directory, including the FIB 
+		chains of the files. Called before checking or searching the volume;
+		in contrast to the loading on first use, errors are passed to the 
+		caller. */
+	public void loadAll() throws IOException, ImageException {
+		synchronized (this) {
+			if (m_sectDDR != null) load();
+			else if (m_bDamaged) throw new ImageException(String.format(TIImageTool.langstr("DirectoryFailedOther"), m_sName));
+		}
+		for (TFile file : m_Files) file.loadChain();
+		for (Directory dir : m_Subdirs) dir.loadAll();
+	}
 
 	/** Creates a parent directory link (".."). */
 	public Directory(String name) {
@@ -164,9 +232,11 @@ public class Directory extends Element {
 		// Create files
 		int bad = 0;
 		Sector sectFiles = vol.readSector(m_nFileIndexSector);
-		for (int nFile : getFilePointers(sectFiles, 1)) {
-			// FDIR in floppies always uses sector numbers
-			Sector sectFile = vol.readSector(nFile);
+		// FDIR in floppies always uses sector numbers
+		int[] anFile = getFilePointers(sectFiles, 1);
+		Sector[] asect = vol.readSectors(anFile);
+		for (int i=0; i < anFile.length; i++) {
+			Sector sectFile = (asect[i] != null)? asect[i] : vol.readSector(anFile[i]);
 			try {
 				TFile file = new TFile(vol, sectFile, this);
 				files.add(file);
@@ -221,9 +291,11 @@ public class Directory extends Element {
 
 		// Create files
 		Sector sectFiles = vol.readSector(m_nFileIndexSector);
-		for (int nFile : getFilePointers(sectFiles, 1)) {
-			// FDIR in floppies always uses sector numbers
-			Sector sectFile = vol.readSector(nFile);
+		// FDIR in floppies always uses sector numbers
+		int[] anFile = getFilePointers(sectFiles, 1);
+		Sector[] asect = vol.readSectors(anFile);
+		for (int i=0; i < anFile.length; i++) {
+			Sector sectFile = (asect[i] != null)? asect[i] : vol.readSector(anFile[i]);
 			TFile file = new TFile(vol, sectFile, this);
 			files.add(file);
 		}
@@ -300,6 +372,7 @@ public class Directory extends Element {
 	}
 		
 	public Directory getSubdirectory(String sSubdir) throws FileNotFoundException {
+		ensureLoaded();
 		for (Directory dir : m_Subdirs) {
 			if (dir.getName().equals(sSubdir)) return dir; 
 		}
@@ -307,6 +380,7 @@ public class Directory extends Element {
 	}
 	
 	public boolean hasSubdirectory(String sSubdir) {
+		ensureLoaded();
 		if (sSubdir.equals(PARENTDIR) && m_dirParent != null) return true;
 		for (Directory dir : m_Subdirs) {
 			if (dir.getName().equals(sSubdir)) return true; 
@@ -380,10 +454,12 @@ public class Directory extends Element {
 	}
 	
 	public Directory[] getDirectories() {
+		ensureLoaded();
 		return m_Subdirs;
 	}
 	
 	public Directory enterDirectory(String sDir) throws ImageException {
+		ensureLoaded();
 		for (Directory d : m_Subdirs) {
 			if (d.getName().equals(sDir)) return d;
 		}
@@ -409,6 +485,7 @@ public class Directory extends Element {
 	}
 	
 	public TFile getFile(String sFile) {
+		ensureLoaded();
 		for (TFile file : m_Files) {
 			if (file.getName().equals(sFile)) return file; 
 		}
@@ -416,6 +493,7 @@ public class Directory extends Element {
 	}
 	
 	public TFile[] getFiles() {
+		ensureLoaded();
 		return m_Files;
 	}
 	
@@ -443,6 +521,7 @@ public class Directory extends Element {
 	}
 	
 	public TFile insertFile(byte[] abyTif, String sNewFilename, boolean bNextGen, boolean bOverwrite) throws InvalidNameException, ImageFullException, ProtectedException, ImageException {
+		ensureLoaded();
 		if (m_Volume.isProtected()) throw new ProtectedException(TIImageTool.langstr("VolumeWP"));
 
 		if (m_Files.length>=127) {
@@ -527,7 +606,7 @@ public class Directory extends Element {
 		// Allocate the contents		
 		// First start after the reserved AUs; if no space was available, 
 		// cannibalize the reserved AUs
-		Interval[] aint = m_Volume.findFreeSpace(nSectors, m_Volume.getReservedAUs() * m_Volume.getAUSize());
+		Interval[] aint = m_Volume.findFreeSpace(this, sContName, nSectors, m_Volume.getReservedAUs() * m_Volume.getAUSize());
 		
 		// Did not make it?
 		if (aint == null) {
@@ -538,11 +617,10 @@ public class Directory extends Element {
 		
 		// TODO: On hard disks this may lead to a list of FIBs
 		// We do not support chained FIBs yet (wonder whether this is useful at all)
-		if (aint.length > 36) { // maximum length of data chain
+		// findFreeSpace avoids longer chains unless the free space is too fragmented
+		if (aint.length > m_Volume.getMaxIntervals()) { // maximum length of data chain
 			// Give back the already allocated FIB
 			m_Volume.deallocate(aFIB[0]);
-			// Give back the already allocated intervals
-			for (Interval intv:aint) m_Volume.deallocate(intv);
 			throw new ImageException(TIImageTool.langstr("DirectoryExcessiveFrag"));			
 		}
 		
@@ -700,6 +778,7 @@ public class Directory extends Element {
 	/** Creates a new subdirectory.
 	*/
 	public Directory createSubdirectory(String sName) throws ProtectedException, InvalidNameException, FileExistsException, ImageFullException, ImageException, IOException, IllegalOperationException {
+		ensureLoaded();
 		if (m_Volume.isProtected()) throw new ProtectedException(TIImageTool.langstr("VolumeWP"));
 		if (!validName(sName)) throw new InvalidNameException(sName);
 		
@@ -808,6 +887,7 @@ public class Directory extends Element {
 	}
 	
 	protected void addToList(TFile newfile) {
+		ensureLoaded();
 		TFile[] aold = m_Files;
 		m_Files = new TFile[aold.length+1];
 		int poso = 0;
@@ -823,6 +903,7 @@ public class Directory extends Element {
 	}
 	
 	private void addToList(Directory newdir) {
+		ensureLoaded();
 		Directory[] aold = m_Subdirs;
 		m_Subdirs = new Directory[aold.length+1];
 		int poso = 0;
@@ -838,6 +919,7 @@ public class Directory extends Element {
 	}
 	
 	protected boolean containsInList(TFile file) {
+		ensureLoaded();
 		for (int i=0; i < m_Files.length; i++) {
 			if (file.getName().equals(m_Files[i].getName())) return true;
 		}
@@ -845,6 +927,7 @@ public class Directory extends Element {
 	}
 	
 	private boolean containsInList(Directory dir) {
+		ensureLoaded();
 		for (int i=0; i < m_Subdirs.length; i++) {
 			if (dir.equals(m_Subdirs[i])) return true;
 		}
@@ -852,6 +935,7 @@ public class Directory extends Element {
 	}
 	
 	boolean containsDir(String sName) {
+		ensureLoaded();
 		for (Directory dir : m_Subdirs) {
 			if (dir.getName().equals(sName)) return true;
 		}
@@ -860,6 +944,7 @@ public class Directory extends Element {
 	
 	/** Removes the file from the list of files, but not on the disk. */ 
 	protected void removeFromList(TFile delfile) {
+		ensureLoaded();
 		TFile[] aold = m_Files;
 		m_Files = new TFile[aold.length-1];
 		int poso = 0;
@@ -872,6 +957,7 @@ public class Directory extends Element {
 
 	/** Removes the directory from the list of directories, but not on the disk. */ 
 	private void removeFromList(Directory deldir) {
+		ensureLoaded();
 		// System.out.println("Removing " + deldir.getName() + " from dir " + this);
 		Directory[] aold = m_Subdirs;
 		m_Subdirs = new Directory[aold.length-1];
@@ -886,6 +972,7 @@ public class Directory extends Element {
 	// =========================================================================
 	
 	public void renameElement(Element el, String sName) throws FileExistsException, InvalidNameException, IOException, ImageException, ProtectedException {
+		ensureLoaded();
 		sName = sName.trim();
 		// m_Volume.reopenForWrite();
 		if (el instanceof TFile) {
@@ -959,6 +1046,8 @@ public class Directory extends Element {
 	*/
 	// TODO: Move to Volume, then to FileSystem
 	private void writeFDIR() throws ImageException, ProtectedException {
+		ensureLoaded();
+		if (m_bDamaged) throw new ImageException(String.format(TIImageTool.langstr("DirectoryFailedOther"), getName()));
 		byte[] abyNew = new byte[256];
 		Arrays.fill(abyNew, 0, 0x100, (byte)0x00);
 
@@ -980,6 +1069,8 @@ public class Directory extends Element {
 	/** Writes a new directory descriptor record. */
 	// TODO: Move to Volume, then to FileSystem
 	private void writeDDR() throws ImageException, ProtectedException {
+		ensureLoaded();
+		if (m_bDamaged) throw new ImageException(String.format(TIImageTool.langstr("DirectoryFailedOther"), getName()));
 		byte[] aDDRNew = null;
 		int nSector = 0;
 		
@@ -23,6 +23,20 @@ package de.mizapf.timt.files;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import de.mizapf.timt.TIImageTool;
 import de.mizapf.timt.util.*;
 import java.lang.reflect.*;
@@ -30,6 +44,8 @@ import java.lang.reflect.*;
 public abstract class FileImageFormat extends ImageFormat {
 	
 	RandomAccessFile m_file;
+	
+	/** Number of the format unit that the codec is currently attached to. */
 	int m_nCurrentFormatUnit;
 	boolean m_bInitial;
 	String m_sFileName;
@@ -42,6 +58,19 @@ public abstract class FileImageFormat extends ImageFormat {
 	protected int m_nActivePartition;
 	Partition[] m_partition;
 	
+	/** Recently used format units. */
+	FormatUnitCache m_fuCache;
+	
+	/** Format unit that the codec is currently attached to. */
+	FormatUnit m_currentUnit;
+	
+	/** Memory-mapped read access, if supported by the format. */
+	MappedFileAccess m_mapped;
+	boolean m_bMapFailed;
+	
+	/** Cache restored from the journal, waiting for confirmation. */
+	SectorCache m_recoveredCache;
+	
 	/** Existing format. */
 	protected FileImageFormat(String sFileName) throws FileNotFoundException, IOException {
 		m_sFileName = sFileName;
@@ -51,6 +80,7 @@ public abstract class FileImageFormat extends ImageFormat {
 		m_nCurrentFormatUnit = NONE;
 		m_bInitial = false;
 		m_writeCache.setName(getShortImageName());
+		m_fuCache = new FormatUnitCache(getFormatUnitCacheCapacity());
 	}
 	
 	/** New format. */
@@ -63,53 +93,249 @@ public abstract class FileImageFormat extends ImageFormat {
 		m_bInitial = true;
 		m_writeCache.setName(getShortImageName());
 		m_nTotalSectors = param.getTotalSectors();
+		m_fuCache = new FormatUnitCache(getFormatUnitCacheCapacity());
 	}
 	
 	protected FileImageFormat() {
 		super();
+		m_fuCache = new FormatUnitCache(getFormatUnitCacheCapacity());
 	}
 	
-	protected void loadFormatUnit(int funum) throws ImageException, IOException {
-		if (funum < 0) throw new InternalException("Wrong format unit number: " + funum);
-		// Flush the current format unit to the image
-		if (m_nCurrentFormatUnit != funum) {
-			if (m_nCurrentFormatUnit != NONE) {
-				if (m_bDirty) {
-					try {
-						// System.out.println("Write back format unit " + m_nCurrentFormatUnit + " on " + m_sFileName);
-						writeCurrentFormatUnit();
-					}
-					catch (ProtectedException px) {
-						System.err.println(TIImageTool.langstr("ImageFWP"));
-					}
-				} /*
-				else {
-					System.out.println("Evict format unit " + m_nCurrentFormatUnit);
-				} */
+	private static int getFormatUnitCacheCapacity() {
+		return getIntegerSetting(TIImageTool.FUCACHE, FormatUnitCache.DEFAULT_CAPACITY);
+	}
+	
+	/** Delivers the cache of format units, mainly for its statistics. */
+	public FormatUnitCache getFormatUnitCache() {
+		return m_fuCache;
+	}
+	
+	/** Indicates whether the format allows to read sectors directly from a
+		memory mapping of the image file. To be overridden by subclasses. */
+	boolean supportsMappedAccess() {
+		return false;
+	}
+	
+	/** Delivers the memory mapping of the image file, which is created on 
+		the first call. Newly created images are not mapped until they have
+		been written completely.
+		@return Mapping, or null if the format or the image cannot be mapped
+	*/
+	MappedFileAccess getMappedAccess() {
+		if (m_mapped == null && supportsMappedAccess() && !m_bInitial && !m_bMapFailed) {
+			try {
+				m_mapped = new MappedFileAccess(m_sFileName);
 			}
-			// System.out.println("Load format unit " + funum + " from file");
-			byte[] abyFU = new byte[getFormatUnitLength(funum)];
-			m_codec.setBuffer(abyFU);
-			m_nCurrentFormatUnit = funum;
-			if (m_bInitial) {
-				// System.out.println("Create FU " + funum);
-				m_codec.prepareNewFormatUnit(funum, getFormatUnitParameters());
+			catch (IOException iox) {
+				// Continue with the RandomAccessFile
+				System.err.println("Cannot map image " + m_sFileName + ": " + iox.getMessage());
+				m_bMapFailed = true;
 			}
-			else {
-				long pos = getFormatUnitPosition(funum);
-				if (pos >= 0) {
-					m_file.seek(pos);
-					m_file.readFully(abyFU);
+		}
+		return m_mapped;
+	}
+	
+	/** Reads bytes from the image file, using the mapping if available. */
+	void readImageBytes(long pos, byte[] buffer) throws IOException {
+		readImageBytes(pos, buffer, 0, buffer.length);
+	}
+	
+	void readImageBytes(long pos, byte[] buffer, int offset, int len) throws IOException {
+		MappedFileAccess map = getMappedAccess();
+		if (map != null && pos + len <= map.length()) {
+			map.read(pos, buffer, offset, len);
+		}
+		else {
+			m_file.seek(pos);
+			m_file.readFully(buffer, offset, len);
+		}
+	}
+	
+	/** Delivers the position of the sector in the image file if the format
+		stores its sectors linearly, so that a run of sectors can be read at
+		once. To be overridden by subclasses.
+		@return File position, or -1 if the sectors are not stored linearly
+	*/
+	long getLinearSectorPosition(int nSectorNumber) {
+		return -1;
+	}
+	
+	/** Reads a sector directly from the mapping, bypassing the format units.
+		To be overridden by subclasses that support mapped access.
+		@return Sector, or null if the sector cannot be read from the mapping
+	*/
+	Sector readMappedSector(int nSectorNumber) throws IOException {
+		return null;
+	}
+	
+	/** Reads the sector contents from the mapping at the given position. For
+		stride > 1, only every stride-th byte belongs to the sector.
+		@return Sector, or null if there is no mapping or the position is invalid
+	*/
+	Sector readMappedSector(int nSectorNumber, long pos, int stride) throws IOException {
+		MappedFileAccess map = getMappedAccess();
+		if (map == null || pos < 0 || pos + (long)TFileSystem.SECTOR_LENGTH * stride > map.length()) 
+			return null;
+		Sector sect = new Sector(nSectorNumber);
+		byte[] content = sect.getData();
+		if (stride == 1) 
+			map.read(pos, content, 0, content.length);
+		else 
+			map.readStrided(pos, stride, content, 0, content.length);
+		return sect;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (m_mapped != null) {
+			m_mapped.close();
+			m_mapped = null;
+		}
+		if (m_file != null) {
+			m_file.close();
+			m_file = null;
+		}
+		// Unsaved changes are discarded when closing; the undo history
+		// of the saved changes is kept for the next session
+		m_writeCache.closeJournal(new java.io.File(m_sFileName));
+	}
+	
+	private java.io.File getJournalFile() {
+		String sTempDir = m_Settings.getPropertyString(TIImageTool.TEMPDIR, System.getProperty("java.io.tmpdir"));
+		java.io.File dir = new java.io.File(sTempDir, TIImageTool.TEMPDIRNAME);
+		return SectorJournal.getJournalFile(dir, new java.io.File(m_sFileName));
+	}
+	
+	private boolean journalEnabled() {
+		return (m_Settings != null) && m_Settings.getPropertyBoolean(TIImageTool.UNDOJOURNAL);
+	}
+	
+	/** Opens the undo journal of this image, if enabled. If there is a
+		journal from a previous session that matches the image file, it is
+		replayed; the undo history is restored immediately, while unsaved
+		changes must be confirmed by recoverJournal. Otherwise, a new journal
+		is started.
+		@return true if the journal contains unsaved changes
+	*/
+	public boolean openJournal() throws IOException {
+		if (!journalEnabled()) return false;
+		SectorJournal journal = new SectorJournal(getJournalFile());
+		try {
+			if (journal.open(new java.io.File(m_sFileName))) {
+				SectorCache cache = m_writeCache.createEmpty();
+				cache.replay(journal);
+				if (cache.hasUnsavedEntries()) {
+					m_recoveredCache = cache;
+					return true;
 				}
-				else 
-					m_codec.loadEmptyFormatUnit();
-				// System.out.println(Utilities.hexdump(abyFU));
+				m_writeCache = cache;
+				return false;
 			}
-			m_codec.decode();
-		} 
+		}
+		catch (IOException iox) {
+			System.err.println(TIImageTool.langstr("JournalDamaged") + ": " + iox.getMessage());
+		}
+		journal.close();
+		startJournal();
+		return false;
+	}
+	
+	/** Takes over the unsaved changes found by openJournal, or discards
+		them and starts a new journal. */
+	public void recoverJournal(boolean bRecover) throws IOException {
+		if (m_recoveredCache == null) return;
+		if (bRecover) {
+			m_writeCache = m_recoveredCache;
+		}
 		else {
+			m_recoveredCache.getJournal().close();
+			startJournal();
+		}
+		m_recoveredCache = null;
+	}
+	
+	/** Starts a new journal for the image file, if enabled. */
+	void startJournal() throws IOException {
+		if (!journalEnabled()) return;
+		SectorJournal journal = new SectorJournal(getJournalFile());
+		try {
+			m_writeCache.startJournal(journal, new java.io.File(m_sFileName));
+		}
+		catch (IOException iox) {
+			journal.close();
+			throw iox;
+		}
+	}
+	
+	/** Closes the journal and deletes it. */
+	void deleteJournal() throws IOException {
+		SectorJournal journal = m_writeCache.getJournal();
+		if (journal != null) journal.delete();
+	}
+	
+	/** Attaches the codec to the given format unit. */
+	void attachFormatUnit(FormatUnit fu) {
+		m_codec.setFormatUnit(fu);
+		m_currentUnit = fu;
+		m_nCurrentFormatUnit = fu.number;
+	}
+	
+	/** Loads the format unit and attaches the codec to it. If the format unit
+		is not cached, it is read from the file and decoded; when the cache is
+		full, the least recently used unit is removed and written back if it
+		has been changed. 
+	*/
+	protected void loadFormatUnit(int funum) throws ImageException, IOException {
+		if (funum < 0) throw new InternalException("Wrong format unit number: " + funum);
+
+		FormatUnit fu = m_fuCache.get(m_nActivePartition, funum);
+		if (fu != null) {
 			// System.out.println("Format unit " + funum + " in memory");
-		} 
+			attachFormatUnit(fu);
+			return;
+		}
+		
+		// Flush the least recently used format units to the image
+		while (m_fuCache.isFull()) {
+			FormatUnit old = m_fuCache.removeEldest();
+			if (old.dirty) {
+				try {
+					// System.out.println("Write back format unit " + old.number + " on " + m_sFileName);
+					writeFormatUnit(old);
+				}
+				catch (ProtectedException px) {
+					System.err.println(TIImageTool.langstr("ImageFWP"));
+				}
+			} 
+		}
+		
+		// System.out.println("Load format unit " + funum + " from file");
+		fu = new FormatUnit(m_nActivePartition, funum, new byte[getFormatUnitLength(funum)]);
+		attachFormatUnit(fu);
+		if (m_bInitial) {
+			// System.out.println("Create FU " + funum);
+			m_codec.prepareNewFormatUnit(funum, getFormatUnitParameters());
+		}
+		else {
+			readFormatUnit(fu);
+			// System.out.println(Utilities.hexdump(fu.buffer));
+		}
+		m_codec.decode();
+		fu.createIndex(this);
+		m_fuCache.put(fu);
+	}
+	
+	/** Reads the contents of the format unit from the image file. The codec
+		is already attached to the format unit. Formats that store their 
+		format units in a different way (like compressed images) override 
+		this method. */
+	void readFormatUnit(FormatUnit fu) throws ImageException, IOException {
+		long pos = getFormatUnitPosition(fu.number);
+		if (pos >= 0) {
+			readImageBytes(pos, fu.buffer);
+		}
+		else 
+			m_codec.loadEmptyFormatUnit();
 	}
 	
 	/** Reads a sector.
@@ -132,16 +358,106 @@ public abstract class FileImageFormat extends ImageFormat {
 			// Otherwise, determine the format unit of this sector
 			// System.out.println("from image");
 			int funum = getFUNumberFromSector(nSectorNumber); // throws ImageException
-			loadFormatUnit(funum);
-				
-			ImageSector isect = findSector(nSectorNumber); // throws ImageException
-			if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), nSectorNumber));
-			sect = isect;
+			
+			// Cached format units may contain changes that are not yet 
+			// written to the file, so the mapping is only used otherwise
+			if (!m_fuCache.contains(m_nActivePartition, funum)) {
+				sect = readMappedSector(nSectorNumber);
+			}
+			
+			if (sect == null) {
+				loadFormatUnit(funum);
+				ImageSector isect = findSector(nSectorNumber); // throws ImageException
+				if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), nSectorNumber));
+				sect = isect;
+			}
 		}
 		// System.out.println(Utilities.hexdump(sect.getData()));
 		return sect;	
 	}
 	
+	/** Reads the sectors of the intervals into the buffer. The intervals are
+		split into runs of sectors that are not in the write cache. A run of
+		sectors stored linearly in the file is read by a single access; 
+		otherwise, each format unit of the run is loaded once, and all its
+		sectors of the run are copied. 
+	*/
+	@Override
+	public void readSectors(Interval[] aint, byte[] dest, int nOffset) throws IOException, ImageException {
+		for (Interval intv : aint) {
+			int nSector = intv.start;
+			while (nSector <= intv.end) {
+				int nCount = readRun(nSector, intv.end, dest, nOffset);
+				nSector += nCount;
+				nOffset += nCount * TFileSystem.SECTOR_LENGTH;
+			}
+		}
+	}
+	
+	/** Reads sectors from nFirst up to nLast, as many as possible at once.
+		@return Number of sectors that were read
+	*/
+	private int readRun(int nFirst, int nLast, byte[] dest, int nOffset) throws IOException, ImageException {
+		// Early accesses and changed sectors go the usual way
+		if (m_bInitial || (nFirst == 0 && getFormatUnitLength(0)<=0) || m_writeCache.contains(nFirst)) {
+			Sector sect = readSector(nFirst);
+			System.arraycopy(sect.getData(), 0, dest, nOffset, TFileSystem.SECTOR_LENGTH);
+			return 1;
+		}
+		
+		int funum = getFUNumberFromSector(nFirst); // throws ImageException
+		long pos = getLinearSectorPosition(nFirst);
+		int nCount = 1;
+		
+		// Cached format units may contain changes that are not yet written
+		// to the file
+		if (pos >= 0 && !m_fuCache.contains(m_nActivePartition, funum)) {
+			int nLastFU = funum;
+			while (nFirst + nCount <= nLast) {
+				int nSector = nFirst + nCount;
+				if (getLinearSectorPosition(nSector) != pos + (long)nCount * TFileSystem.SECTOR_LENGTH) break;
+				if (m_writeCache.contains(nSector)) break;
+				int nFU = getFUNumberFromSector(nSector);
+				if (nFU != nLastFU) {
+					if (m_fuCache.contains(m_nActivePartition, nFU)) break;
+					nLastFU = nFU;
+				}
+				nCount++;
+			}
+			int len = nCount * TFileSystem.SECTOR_LENGTH;
+			if (pos + len <= m_file.length()) {
+				// System.out.println("Read " + nCount + " sectors from " + nFirst + " at once");
+				readImageBytes(pos, dest, nOffset, len);
+				return nCount;
+			}
+			nCount = 1;
+		}
+
+		loadFormatUnit(funum);
+		while (true) {
+			ImageSector isect = findSector(nFirst + nCount - 1); // throws ImageException
+			if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), nFirst + nCount - 1));
+			System.arraycopy(isect.getData(), 0, dest, nOffset + (nCount-1) * TFileSystem.SECTOR_LENGTH, TFileSystem.SECTOR_LENGTH);
+			int nSector = nFirst + nCount;
+			if (nSector > nLast || getFUNumberFromSector(nSector) != funum || m_writeCache.contains(nSector)) break;
+			nCount++;
+		}
+		return nCount;
+	}
+	
+	/** Sorts the sectors by their format units, so that each format unit
+		is loaded once, and the format units are read in ascending order. */
+	@Override
+	long getReadOrderKey(int nSectorNumber) {
+		try {
+			return ((long)getFUNumberFromSector(nSectorNumber) << 32) | (nSectorNumber & 0xffffffffL);
+		}
+		catch (ImageException ix) {
+			// Read it at the end; readSector reports the error
+			return Long.MAX_VALUE;
+		}
+	}
+	
 	/** Writes a sector.
 	*/
 	public void writeSector(Sector sect) {
@@ -149,59 +465,118 @@ public abstract class FileImageFormat extends ImageFormat {
 	}	
 	
 	/** Write back the sector. This means to load the respective format unit,
-	    possibly writing back the last format unit first, then modifying
-	    the sector contents. The format unit will be written lazily, i.e.
-	    at the end, or when another format unit is loaded.
+	    possibly writing back the least recently used format unit first, then 
+	    modifying the sector contents. The format unit will be written lazily, 
+	    i.e. at the end, or when it is evicted from the format unit cache.
 	*/
 	void writeBack(Sector sect) throws ImageException, IOException, ProtectedException {
 		// Determine format unit
 		int secnum = sect.getNumber();
 		int funum = getFUNumberFromSector(secnum); // throws ImageException
 		loadFormatUnit(funum);
-		m_nCurrentFormatUnit = funum;		
 		ImageSector isect = findSector(secnum);
 		if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), secnum));
 		isect.modify(sect.getData());	
-		// if (!m_bDirty) System.out.println("Set dirty on " + m_sFileName + ", FU " + m_nCurrentFormatUnit);
-		m_bDirty = true;
+		// if (!m_currentUnit.dirty) System.out.println("Set dirty on " + m_sFileName + ", FU " + m_nCurrentFormatUnit);
+		m_currentUnit.dirty = true;
 	}
 	
-	/** Saves all changed sectors to the image. No format change. */
+	/** Saves all changed sectors to the image. No format change. 
+		The changed sectors are grouped by their format units, and each
+		affected format unit is written once, in the order of their positions
+		in the file.
+	*/
 	public void saveImage() throws ImageException, IOException, ProtectedException {
 		reopenForWrite();
-		for (int i=0; i < getTotalSectors(); i++) {
-			Sector sect = m_writeCache.read(i);
-			if (sect != null) {
+		
+		SortedMap<Integer,List<Sector>> units = new TreeMap<Integer,List<Sector>>();
+		int nTotal = getTotalSectors();
+		for (Sector sect : m_writeCache.getChangedSectors()) {
+			if (sect.getNumber() >= nTotal) break;
+			int funum = getFUNumberFromSector(sect.getNumber()); // throws ImageException
+			List<Sector> list = units.get(funum);
+			if (list == null) {
+				list = new ArrayList<Sector>();
+				units.put(funum, list);
+			}
+			list.add(sect);
+		}
+		
+		List<Integer> order = new ArrayList<Integer>(units.keySet());
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer fu1, Integer fu2) {
+				// Format units without a position yet go to the end
+				long pos1 = getFormatUnitPosition(fu1);
+				long pos2 = getFormatUnitPosition(fu2);
+				if (pos1 < 0) pos1 = Long.MAX_VALUE;
+				if (pos2 < 0) pos2 = Long.MAX_VALUE;
+				if (pos1 != pos2) return (pos1 < pos2)? -1 : 1;
+				return fu1.compareTo(fu2);
+			}
+		});
+		
+		for (int funum : order) {
+			loadFormatUnit(funum);
+			for (Sector sect : units.get(funum)) {
 				// System.out.println("Write back sector "  + sect.getNumber());  // #%
-				writeBack(sect);
+				ImageSector isect = findSector(sect.getNumber());
+				if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), sect.getNumber()));
+				isect.modify(sect.getData());
 			}
+			writeFormatUnit(m_currentUnit);
 		}
-		// Write back the last format unit, which has not yet been committed 
-		// System.out.println("Write back current format unit at end");
-		writeCurrentFormatUnit();
+		
+		// Write back the format units which have not yet been committed 
+		// System.out.println("Write back cached format units at end");
+		writeDirtyFormatUnits();
 		
 		m_writeCache.setCheckpoint();
 		m_writeCache.nextGeneration(true);
 		reopenForRead();
+		
+		// Bind the journal to the saved image
+		m_writeCache.rewriteJournal(new java.io.File(m_sFileName));
+		IOException iox = m_writeCache.getJournalError();
+		if (iox != null) throw new IOException(TIImageTool.langstr("JournalFailed") + ": " + iox.getMessage(), iox);
+	}
+	
+	/** Receives the progress of a conversion. */
+	public interface Progress {
+		/** Called after each written format unit. 
+			@return false if the conversion shall be cancelled
+		*/
+		boolean update(int nDone, int nTotal);
+	}
+	
+	/** Save from the old image to this image, using one worker thread per
+		processor. */
+	public void saveImageFromOld(ImageFormat imgOld) throws ImageException, IOException {
+		saveImageFromOld(imgOld, Runtime.getRuntime().availableProcessors(), null);
 	}
 	
 	/** Save from the old image to this image. 
-	    This is done by reading a sector from the old source image
-	    and writing it to this target image for each sector from 0 to max.
-	    By this method, new images do not support any copy protection.
+		The sectors of each format unit of this image are read from the old 
+		image at once. Each format unit is created, filled, and encoded by a
+		worker thread with its own codec, while the format units are written
+		to the file in the order of their numbers. For a single thread, the
+		format units are built by the calling thread. 
+		By this method, new images do not support any copy protection.
+		@param nThreads Number of worker threads
+		@param progress Receives the progress, may be null
+		@return false if the conversion was cancelled; the image file is then
+		incomplete
 	*/
-	public void saveImageFromOld(ImageFormat imgOld) throws ImageException, IOException {
+	public boolean saveImageFromOld(ImageFormat imgOld, int nThreads, Progress progress) throws ImageException, IOException {
 		m_nCurrentFormatUnit = NONE;
+		m_fuCache.clear();
 		try {
 			reopenForWrite();
-			// System.out.println("Write back " + getTotalSectors() + " sectors");
-			for (int i=0; i < getTotalSectors(); i++) {
-				Sector sect = imgOld.readSector(i);
-				// System.out.println("Write back sector "  + sect.getNumber());  // #%
-				writeBack(sect);
-			}
-			// Write back the last format unit, which has not yet been committed 
-			writeCurrentFormatUnit();
+			boolean bDone = (createCodec() == null || isPartitioned())? 
+				copySectors(imgOld, progress) : convertFormatUnits(imgOld, nThreads, progress);
+			if (!bDone) return false;
+			
+			// Write back the format units which have not yet been committed 
+			writeDirtyFormatUnits();
 			
 			m_writeCache.setCheckpoint();
 			m_writeCache.nextGeneration(true);
@@ -211,28 +586,219 @@ public abstract class FileImageFormat extends ImageFormat {
 		catch (ProtectedException px) {
 			px.printStackTrace();  // should not happen
 		}
-	}	
+		return true;
+	}
 	
-	/** Writes back the current format unit. */
-	void writeCurrentFormatUnit() throws IOException, ProtectedException {
+	/** Copies the image sector by sector, for formats without a codec 
+		for the worker threads. */
+	private boolean copySectors(ImageFormat imgOld, Progress progress) throws ImageException, IOException, ProtectedException {
+		int nTotal = getTotalSectors();
+		// System.out.println("Write back " + nTotal + " sectors");
+		for (int i=0; i < nTotal; i++) {
+			Sector sect = imgOld.readSector(i);
+			// System.out.println("Write back sector "  + sect.getNumber());  // #%
+			writeBack(sect);
+			if (progress != null && !progress.update(i+1, nTotal)) return false;
+		}
+		return true;
+	}
+	
+	private boolean convertFormatUnits(ImageFormat imgOld, int nThreads, Progress progress) throws ImageException, IOException, ProtectedException {
+		// Group the sectors by their format units
+		int nTotal = getTotalSectors();
+		int[] anUnit = new int[nTotal];
+		int nUnits = 0;
+		for (int i=0; i < nTotal; i++) {
+			anUnit[i] = getFUNumberFromSector(i); // throws ImageException
+			if (anUnit[i] >= nUnits) nUnits = anUnit[i] + 1;
+		}
+		int[] anCount = new int[nUnits];
+		for (int i=0; i < nTotal; i++) anCount[anUnit[i]]++;
+		int[][] aanSector = new int[nUnits][];
+		for (int funum=0; funum < nUnits; funum++) {
+			aanSector[funum] = new int[anCount[funum]];
+			anCount[funum] = 0;
+		}
+		for (int i=0; i < nTotal; i++) aanSector[anUnit[i]][anCount[anUnit[i]]++] = i;
+
+		// The parameters are the same for all format units
+		FormatUnitParameters param = getFormatUnitParameters();
+		
+		if (nThreads <= 1) {
+			UnitBuilder builder = createUnitBuilder();
+			for (int funum=0; funum < nUnits; funum++) {
+				if (aanSector[funum].length == 0) continue;
+				writeBuiltFormatUnit(builder.build(funum, param, aanSector[funum], readUnitSectors(imgOld, aanSector[funum])));
+				if (progress != null && !progress.update(funum+1, nUnits)) return false;
+			}
+			return true;
+		}
+		
+		// Each running task takes a builder from the queue and returns it
+		final BlockingQueue<UnitBuilder> builders = new ArrayBlockingQueue<UnitBuilder>(nThreads);
+		for (int i=0; i < nThreads; i++) builders.add(createUnitBuilder());
+		
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		LinkedList<Future<FormatUnit>> pending = new LinkedList<Future<FormatUnit>>();
+		try {
+			int funum = 0;
+			while (funum < nUnits || !pending.isEmpty()) {
+				// Keep the workers busy, but limit the number of format units
+				// in memory
+				if (funum < nUnits && pending.size() < 2 * nThreads) {
+					if (aanSector[funum].length > 0) {
+						final int nUnit = funum;
+						final FormatUnitParameters unitParam = param;
+						final int[] anSector = aanSector[funum];
+						final byte[] content = readUnitSectors(imgOld, anSector);
+						pending.add(pool.submit(new Callable<FormatUnit>() {
+							public FormatUnit call() throws ImageException {
+								UnitBuilder builder = builders.remove();
+								try {
+									return builder.build(nUnit, unitParam, anSector, content);
+								}
+								finally {
+									builders.add(builder);
+								}
+							}
+						}));
+					}
+					funum++;
+					continue;
+				}
+				
+				FormatUnit fu = getBuiltFormatUnit(pending.removeFirst());
+				writeBuiltFormatUnit(fu);
+				if (progress != null && !progress.update(fu.number+1, nUnits)) return false;
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return true;
+	}
+	
+	/** Reads the sectors of a format unit from the old image. */
+	private byte[] readUnitSectors(ImageFormat imgOld, int[] anSector) throws ImageException, IOException {
+		List<Interval> list = new ArrayList<Interval>();
+		int nStart = 0;
+		for (int i=1; i <= anSector.length; i++) {
+			if (i == anSector.length || anSector[i] != anSector[i-1] + 1) {
+				list.add(new Interval(anSector[nStart], anSector[i-1]));
+				nStart = i;
+			}
+		}
+		byte[] content = new byte[anSector.length * TFileSystem.SECTOR_LENGTH];
+		imgOld.readSectors(list.toArray(new Interval[list.size()]), content, 0);
+		return content;
+	}
+	
+	/** Waits for the worker thread and passes on its exception. */
+	private FormatUnit getBuiltFormatUnit(Future<FormatUnit> future) throws ImageException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ix) {
+			Thread.currentThread().interrupt();
+			throw new ImageException(ix.getMessage());
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof ImageException) throw (ImageException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new InternalException(cause.toString());
+		}
+	}
+	
+	/** Creates a new codec for a worker thread. Formats that do not 
+		support building format units in parallel return null.
+		To be overridden by subclasses. */
+	FormatCodec createCodec() {
+		return null;
+	}
+	
+	UnitBuilder createUnitBuilder() {
+		return new UnitBuilder();
+	}
+	
+	/** Builds new format units with its own codec. Each worker thread uses
+		its own builder. Only the format parameters are used from the image,
+		which do not change during the conversion. */
+	class UnitBuilder {
+		FormatCodec m_builderCodec;
+		
+		UnitBuilder() {
+			m_builderCodec = createCodec();
+		}
+		
+		/** Creates the format unit, fills in the sectors, and encodes it.
+			@param anSector Numbers of the sectors in this format unit
+			@param content Contents of these sectors
+		*/
+		FormatUnit build(int funum, FormatUnitParameters param, int[] anSector, byte[] content) throws ImageException {
+			FormatUnit fu = new FormatUnit(m_nActivePartition, funum, new byte[getFormatUnitLength(funum)]);
+			m_builderCodec.setFormatUnit(fu);
+			m_builderCodec.prepareNewFormatUnit(funum, param);
+			m_builderCodec.decode();
+			fu.createIndex(FileImageFormat.this);
+			
+			byte[] data = new byte[TFileSystem.SECTOR_LENGTH];
+			for (int i=0; i < anSector.length; i++) {
+				ImageSector isect = findSector(fu, anSector[i]);
+				if (isect == null) throw new ImageException(String.format(TIImageTool.langstr("SectorNotFound"), anSector[i]));
+				System.arraycopy(content, i * TFileSystem.SECTOR_LENGTH, data, 0, TFileSystem.SECTOR_LENGTH);
+				isect.modify(data);
+			}
+			m_builderCodec.encode();
+			finish(fu);
+			return fu;
+		}
+		
+		/** Called for the encoded format unit. To be overridden by subclasses. */
+		void finish(FormatUnit fu) {
+		}
+	}
+	
+	/** Writes a format unit that has been encoded by a UnitBuilder. */
+	void writeBuiltFormatUnit(FormatUnit fu) throws IOException, ProtectedException {
+		attachFormatUnit(fu);
+		storeFormatUnit(fu);
+	}
+	
+	/** Writes back the format unit. */
+	void writeFormatUnit(FormatUnit fu) throws IOException, ProtectedException {
+		attachFormatUnit(fu);
 		m_codec.encode();
+		storeFormatUnit(fu);
+	}
+	
+	/** Writes the encoded format unit to the file. The codec is attached to 
+		the format unit. */
+	void storeFormatUnit(FormatUnit fu) throws IOException {
 		prepareFormatUnitWrite();
 		
-		long offset = getFormatUnitPosition(m_nCurrentFormatUnit);
+		long offset = getFormatUnitPosition(fu.number);
 		if (offset >= 0) {
-			// System.out.println("write format unit " + m_nCurrentFormatUnit + " at position " + offset);  // #%
-			// reopenForWrite();
+			// System.out.println("write format unit " + fu.number + " at position " + offset);  // #%
 			m_file.seek(offset);
 			m_file.write(m_codec.getFormatUnitBuffer());
 			// System.out.println(Utilities.hexdump(m_codec.getFormatUnitBuffer()));
-			// reopenForRead();
 		}
 		else {
 			// Maybe the format unit was filled with zeros, and nothing has changed
-			// System.out.println("Not writing format unit " + m_nCurrentFormatUnit);
+			// System.out.println("Not writing format unit " + fu.number);
+		}
+		// if (fu.dirty) System.out.println("Clean dirty on " + m_sFileName + ", FU " + fu.number);
+		fu.dirty = false;
+	}
+	
+	/** Writes back all changed format units in the cache in the order of 
+		their numbers. The units remain in the cache. */
+	void writeDirtyFormatUnits() throws IOException, ImageException, ProtectedException {
+		for (FormatUnit fu : m_fuCache.getDirtyUnits()) {
+			writeFormatUnit(fu);
 		}
-		// if (m_bDirty) System.out.println("Clean dirty on " + m_sFileName + ", FU " + m_nCurrentFormatUnit);
-		m_bDirty = false;
 	}
 	
 	public void reopenForWrite() throws IOException, ProtectedException {
@@ -261,17 +827,22 @@ public abstract class FileImageFormat extends ImageFormat {
 	/** Gets the length of the format unit. */
 	abstract int getFormatUnitLength(int number);
 
-	/** Finds the sector in the format unit. */
+	/** Finds the sector in the current format unit. */
 	// Each FIB is read twice: for the file name, and for the file contents
 	ImageSector findSector(int number) throws ImageException {
 		// System.out.println("find " + number);
-		for (ImageSector is : m_codec.getDecodedSectors()) {
-			// System.out.println("- number " + is.getNumber());
-			if (is.getNumber() == number) {
-				return is;
-			}
-		}
-		return null;
+		return findSector(m_currentUnit, number);
+	}
+	
+	/** Finds the sector in the given format unit. */
+	ImageSector findSector(FormatUnit fu, int number) throws ImageException {
+		return fu.getSector(number);
+	}
+	
+	/** Key of the decoded sector for the lookup in its format unit. Usually
+		the sector number. */
+	int getSectorKey(ImageSector is) {
+		return is.getNumber();
 	}
 	
 	abstract void prepareNewImage(FormatParameters param) throws IOException, ImageException;
@@ -347,6 +347,12 @@ public class FloppyFileSystem extends TFileSystem {
 		m_allocMap = new AllocationMap(getTotalSectors() / getSectorsPerAU(), getSectorsPerAU(), true, bitfield);
 	}	
 	
+	/** The data chain of the FIB holds 76 entries of 3 bytes. */
+	@Override
+	int getMaxIntervals() {
+		return 76;
+	}
+	
 	@Override
 	public Interval getAllocationInterval() {
 		return new Interval(0, 0);
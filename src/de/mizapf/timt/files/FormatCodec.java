@@ -42,6 +42,9 @@ import de.mizapf.timt.util.InternalException;
 abstract class FormatCodec {
 	
 	byte[] m_formatUnit;
+	
+	/** Number of the format unit in m_formatUnit. */
+	int m_nFormatUnit;
 
 	/** The sectors in this buffer as appearing on the medium. */
 	protected List<ImageSector> m_decodedSectors;
@@ -55,6 +58,13 @@ abstract class FormatCodec {
 		m_formatUnit = buf;
 	}
 	
+	/** Attaches the codec to the buffer and the sector list of the format unit. */
+	void setFormatUnit(FormatUnit fu) {
+		m_formatUnit = fu.buffer;
+		m_decodedSectors = fu.sectors;
+		m_nFormatUnit = fu.number;
+	}
+	
 	ImageSector[] getDecodedSectors() {
 		return m_decodedSectors.toArray(new ImageSector[0]);
 	}	
@@ -0,0 +1,35 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.io.IOException;
+
+/** Recognizes the format of an image file. Each image format provides a 
+	detector, which is registered when the formats are set up.
+*/
+interface FormatDetector {
+	/** Rates how well the image file matches the format. 
+		@return 0 for no match, up to 100 for a certain match; values above
+		50 select the format
+	*/
+	int vote(ImageProbe probe) throws IOException;
+}
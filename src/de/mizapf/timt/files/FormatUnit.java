@@ -0,0 +1,126 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2025 Michael Zapf
+    www.mizapf.de
+    
+****************************************************************************/
+
+
+package de.mizapf.timt.files;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
+
+/** A format unit that has been loaded from the image and decoded by the
+	FormatCodec. The raw buffer and the decoded sectors belong together;
+	the codec is attached to one format unit at a time.
+*/
+class FormatUnit {
+	
+	/** Partition which was active when the unit was decoded. The decoded
+		sector numbers are relative to this partition. */
+	int partition;
+	
+	/** Format unit number in the image. */
+	int number;
+	
+	/** Buffer with the format unit as stored in the image. */
+	byte[] buffer;
+	
+	/** Sectors decoded from the buffer. */
+	List<ImageSector> sectors;
+	
+	/** Indicates whether the sectors were changed after loading. */
+	boolean dirty;
+	
+	/** Lookup of the decoded sectors by their key. For regular format units,
+		the keys are contiguous, and the sectors are stored in an array 
+		starting with the lowest key. Otherwise, a map is used. */
+	private ImageSector[] index;
+	private int indexBase;
+	private Map<Integer,ImageSector> indexMap;
+	
+	FormatUnit(int part, int num, byte[] buf) {
+		partition = part;
+		number = num;
+		buffer = buf;
+		sectors = new LinkedList<ImageSector>();
+		dirty = false;
+	}
+	
+	/** Creates the index for the decoded sectors. When there are several
+		sectors with the same key, the first one is found. 
+	*/
+	void createIndex(FileImageFormat format) {
+		int[] keys = new int[sectors.size()];
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int i = 0;
+		for (ImageSector is : sectors) {
+			int key = format.getSectorKey(is);
+			keys[i++] = key;
+			if (key < min) min = key;
+			if (key > max) max = key;
+		}
+		
+		index = null;
+		indexMap = null;
+		if (keys.length == 0) return;
+		
+		// Allow for some missing sectors
+		if ((long)max - min < 2L * keys.length) {
+			index = new ImageSector[max - min + 1];
+			indexBase = min;
+			i = 0;
+			for (ImageSector is : sectors) {
+				if (index[keys[i]-min] == null) index[keys[i]-min] = is;
+				i++;
+			}
+		}
+		else {
+			// System.out.println("Irregular format unit " + number);
+			indexMap = new HashMap<Integer,ImageSector>();
+			i = 0;
+			for (ImageSector is : sectors) {
+				if (!indexMap.containsKey(keys[i])) indexMap.put(keys[i], is);
+				i++;
+			}
+		}
+	}
+	
+	/** Gets the decoded sector with the given key, or null if there is no
+		such sector. */
+	ImageSector getSector(int key) {
+		if (index != null) {
+			int pos = key - indexBase;
+			if (pos < 0 || pos >= index.length) return null;
+			return index[pos];
+		}
+		if (indexMap != null) return indexMap.get(key);
+		return null;
+	}
+	
+	long getKey() {
+		return getKey(partition, number);
+	}
+	
+	static long getKey(int part, int num) {
+		return ((long)part << 32) | (num & 0xffffffffL);
+	}
+}
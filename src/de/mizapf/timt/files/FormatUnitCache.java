@@ -0,0 +1,149 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2025 Michael Zapf
+    www.mizapf.de
+    
+****************************************************************************/
+
+
+package de.mizapf.timt.files;
+
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/** Keeps the most recently used format units of an image in memory. This 
+	avoids reloading and decoding a format unit when the accesses alternate
+	between some tracks (like FDIR, FIB, and file contents).
+	
+	The cache does not write anything to the image. When the cache is full, 
+	the least recently used unit must be removed by the image format, which
+	has to write it back if it is dirty.
+	
+	The cache counts hits, misses, and evictions, which can be used to find
+	a suitable capacity (property "fucache").
+*/
+public class FormatUnitCache {
+	
+	public final static int DEFAULT_CAPACITY = 16;
+	
+	private LinkedHashMap<Long,FormatUnit> m_units;
+	
+	private int m_nCapacity;
+	
+	private long m_nHits;
+	private long m_nMisses;
+	private long m_nEvictions;
+	
+	FormatUnitCache(int capacity) {
+		// Access order, so the first entry is the least recently used
+		m_units = new LinkedHashMap<Long,FormatUnit>(16, 0.75f, true);
+		setCapacity(capacity);
+	}
+	
+	/** Gets the format unit if it is cached, and marks it as recently used. 
+		@return Format unit or null if it is not cached
+	*/
+	FormatUnit get(int part, int funum) {
+		FormatUnit fu = m_units.get(FormatUnit.getKey(part, funum));
+		if (fu == null) m_nMisses++;
+		else m_nHits++;
+		return fu;
+	}
+	
+	/** Checks whether the format unit is cached, without counting a hit or
+		a miss or changing the access order. */
+	boolean contains(int part, int funum) {
+		return m_units.containsKey(FormatUnit.getKey(part, funum));
+	}
+	
+	void put(FormatUnit fu) {
+		m_units.put(fu.getKey(), fu);
+	}
+
+	boolean isFull() {
+		return m_units.size() >= m_nCapacity;
+	}
+	
+	/** Removes the least recently used format unit.
+		@return Removed format unit, or null if the cache is empty
+	*/
+	FormatUnit removeEldest() {
+		Iterator<FormatUnit> it = m_units.values().iterator();
+		if (!it.hasNext()) return null;
+		FormatUnit fu = it.next();
+		it.remove();
+		m_nEvictions++;
+		return fu;
+	}
+	
+	/** Delivers all dirty format units, sorted by their number. */
+	List<FormatUnit> getDirtyUnits() {
+		List<FormatUnit> dirty = new ArrayList<FormatUnit>();
+		for (FormatUnit fu : m_units.values()) {
+			if (fu.dirty) dirty.add(fu);
+		}
+		Collections.sort(dirty, new Comparator<FormatUnit>() {
+			public int compare(FormatUnit a, FormatUnit b) {
+				return Integer.compare(a.number, b.number);
+			}
+		});
+		return dirty;
+	}
+	
+	/** Drops all format units without writing them. */
+	void clear() {
+		m_units.clear();
+	}
+	
+	void setCapacity(int capacity) {
+		m_nCapacity = (capacity < 1)? 1 : capacity;
+	}
+	
+	public int getCapacity() {
+		return m_nCapacity;
+	}
+	
+	public int getSize() {
+		return m_units.size();
+	}
+	
+	public long getHits() {
+		return m_nHits;
+	}
+	
+	public long getMisses() {
+		return m_nMisses;
+	}
+	
+	public long getEvictions() {
+		return m_nEvictions;
+	}
+	
+	public void resetStatistics() {
+		m_nHits = 0;
+		m_nMisses = 0;
+		m_nEvictions = 0;
+	}
+	
+	public String toString() {
+		return "size=" + m_units.size() + "/" + m_nCapacity + ", hits=" + m_nHits + ", misses=" + m_nMisses + ", evictions=" + m_nEvictions;
+	}
+}
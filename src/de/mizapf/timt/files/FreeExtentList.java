@@ -0,0 +1,148 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+/** List of the free areas of an allocation map, sorted by their first AU.
+	The list is built by one scan over the map and is then used to plan
+	allocations without touching the map; planned areas are removed from
+	the list, so that several files can be planned one after another.
+*/
+class FreeExtentList {
+
+	private int[] m_anStart;
+	private int[] m_anLength;
+	private int m_nCount;
+	
+	/** Collects all free AUs from nFirstAU up to the end of the map. */
+	FreeExtentList(AllocationMap map, int nFirstAU) {
+		m_anStart = new int[16];
+		m_anLength = new int[16];
+		m_nCount = 0;
+		
+		int nMax = map.getMaxAU();
+		int nStart = map.findBit(nFirstAU, nMax, false);
+		while (nStart != AllocationMap.NOTFOUND) {
+			int nEnd = map.findBit(nStart+1, nMax, true);
+			if (nEnd == AllocationMap.NOTFOUND) nEnd = nMax;
+			insert(m_nCount, nStart, nEnd - nStart);
+			nStart = map.findBit(nEnd+1, nMax, false);
+		}
+	}
+	
+	/** Creates a copy of the list, used for trying a plan. */
+	FreeExtentList(FreeExtentList other) {
+		m_anStart = other.m_anStart.clone();
+		m_anLength = other.m_anLength.clone();
+		m_nCount = other.m_nCount;
+	}
+	
+	/** Takes over the contents of a copy after its plan was accepted. */
+	void set(FreeExtentList other) {
+		m_anStart = other.m_anStart;
+		m_anLength = other.m_anLength;
+		m_nCount = other.m_nCount;
+	}
+	
+	int size() {
+		return m_nCount;
+	}
+	
+	int getStart(int nIndex) {
+		return m_anStart[nIndex];
+	}
+	
+	int getLength(int nIndex) {
+		return m_anLength[nIndex];
+	}
+	
+	/** Returns the index of the first area that ends behind the given AU,
+		or size() if there is none. */
+	int indexOf(int nAU) {
+		int nLow = 0;
+		int nHigh = m_nCount;
+		while (nLow < nHigh) {
+			int nMid = (nLow + nHigh) >>> 1;
+			if (m_anStart[nMid] + m_anLength[nMid] <= nAU) nLow = nMid + 1;
+			else nHigh = nMid;
+		}
+		return nLow;
+	}
+	
+	/** Splits the area that contains the given AU, so that an area starts
+		at this AU. 
+		@return Index of the first area at or behind the AU
+	*/
+	int split(int nAU) {
+		int nIndex = indexOf(nAU);
+		if (nIndex < m_nCount && m_anStart[nIndex] < nAU) {
+			int nFront = nAU - m_anStart[nIndex];
+			insert(nIndex+1, nAU, m_anLength[nIndex] - nFront);
+			m_anLength[nIndex] = nFront;
+			nIndex++;
+		}
+		return nIndex;
+	}
+	
+	/** Removes nCount AUs from the start of the area with the given index.
+		Empty areas are dropped from the list.
+		@return First AU that was removed
+	*/
+	int take(int nIndex, int nCount) {
+		int nStart = m_anStart[nIndex];
+		if (nCount >= m_anLength[nIndex]) {
+			System.arraycopy(m_anStart, nIndex+1, m_anStart, nIndex, m_nCount - nIndex - 1);
+			System.arraycopy(m_anLength, nIndex+1, m_anLength, nIndex, m_nCount - nIndex - 1);
+			m_nCount--;
+		}
+		else {
+			m_anStart[nIndex] += nCount;
+			m_anLength[nIndex] -= nCount;
+		}
+		return nStart;
+	}
+	
+	/** Removes the AUs of the given range, which need not be free. Used to 
+		exclude areas that were planned but not allocated yet. */
+	void remove(int nFirstAU, int nCount) {
+		int nEnd = nFirstAU + nCount;
+		int nIndex = split(nFirstAU);
+		while (nIndex < m_nCount && m_anStart[nIndex] < nEnd) {
+			take(nIndex, nEnd - m_anStart[nIndex]);
+		}
+	}
+	
+	private void insert(int nIndex, int nStart, int nLength) {
+		if (m_nCount == m_anStart.length) {
+			int[] anStart = new int[m_nCount * 2];
+			int[] anLength = new int[m_nCount * 2];
+			System.arraycopy(m_anStart, 0, anStart, 0, m_nCount);
+			System.arraycopy(m_anLength, 0, anLength, 0, m_nCount);
+			m_anStart = anStart;
+			m_anLength = anLength;
+		}
+		System.arraycopy(m_anStart, nIndex, m_anStart, nIndex+1, m_nCount - nIndex);
+		System.arraycopy(m_anLength, nIndex, m_anLength, nIndex+1, m_nCount - nIndex);
+		m_anStart[nIndex] = nStart;
+		m_anLength[nIndex] = nLength;
+		m_nCount++;
+	}
+}
@@ -21,7 +21,6 @@
 
 package de.mizapf.timt.files;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
@@ -211,6 +210,37 @@ public class HFEFormat extends FloppyImageFormat {
 	
 	/** Format index */
 	private int m_nFormatIndex;	
+
+	/** Bit order reversal of the samples, LSB first to MSB first. */
+	private final static byte[] REVERSE = new byte[256];
+	
+	/** Samples 0, 2, 4, 6 and 1, 3, 5, 7 of a byte, as MSB-first nibble. */
+	private final static byte[] EVENSAMPLES = new byte[256];
+	private final static byte[] ODDSAMPLES = new byte[256];
+
+	/** Data bits of eight cells (bits 6, 4, 2, 0) as nibble. */
+	private final static byte[] DATABITS = new byte[256];
+	
+	static {
+		for (int i=0; i < 256; i++) {
+			int rev = 0;
+			int even = 0;
+			int odd = 0;
+			int data = 0;
+			for (int j=0; j < 8; j++) {
+				if ((i & (1<<j))!=0) rev |= 0x80 >> j;
+			}
+			for (int j=0; j < 4; j++) {
+				if ((i & (1<<(2*j)))!=0) even |= 0x08 >> j;
+				if ((i & (1<<(2*j+1)))!=0) odd |= 0x08 >> j;
+				if ((i & (1<<(2*j)))!=0) data |= 1 << j;
+			}
+			REVERSE[i] = (byte)rev;
+			EVENSAMPLES[i] = (byte)even;
+			ODDSAMPLES[i] = (byte)odd;
+			DATABITS[i] = (byte)data;
+		}
+	}
 	
 	class EndOfTrackException extends Exception {
 	}
@@ -363,19 +393,23 @@ public class HFEFormat extends FloppyImageFormat {
 		int m_currentSampleNumber;   // format unit length * 8
 		int m_currentHead;
 		boolean m_mfm;
-		byte m_currentGroup;		
-		int m_samplecount;
-		int m_value;
-		boolean m_first;		
 		int m_codeRate;
-		int m_shiftRegister;
 		int m_lastDataBit;
 		boolean m_debug = false;
 		
+		// Cell stream of the current head, MSB first
+		byte[] m_abyCells;
+		int m_nCellBase;		// bit position of the first cell
+		int m_nCellCount;
+		int m_nCell;			// next cell to read
+		int m_nFirstSample;		// sample number of the first cell
+		int m_nSamplesPerCell;
+		
 		HFECodec(int encoding, int rate) {
 			super();
 			m_mfm = (encoding < HFEHeader.ISOIBM_FM_ENCODING);
 			m_codeRate = rate;
+			m_nSamplesPerCell = ((m_codeRate == 250) && !m_mfm)? 2 : 1;
 		}
 		
 		void decode() {
@@ -386,48 +420,40 @@ public class HFEFormat extends FloppyImageFormat {
 			m_decodedSectors.clear();
 			
 			// System.out.println("Format unit length=" + m_formatUnit.length);
-			m_samplecount = m_formatUnit.length * 8;  // Each byte encodes 8 cells; all bits for either head
-			// We count all cells, even for the oversampling of FM. In that case,
-			// a data bit takes four cells.
+			// Sector positions are counted in samples, even for the oversampling
+			// of FM. In that case, a data bit takes four samples.
 						
 			// System.out.println("mfm = " + m_mfm);
 			// System.out.println("coderate = " + m_codeRate);
-			// System.out.println("cells = " + m_samplecount);
 
 			for (m_currentHead = 0; m_currentHead < 2; m_currentHead++) {
-				m_first = true;
-				m_currentSampleNumber = 0;
+				try {
+					loadCells();
 				
-				while (m_currentSampleNumber < m_samplecount) {
-					// System.out.println(m_currentSampleNumber);
-					try {
+					while (m_nCell < m_nCellCount) {
 						searchIDAM();
 						initcrc = (m_mfm)? 0xb230 : 0xef21;
 						
 						// Read the header
-						abyHeader[0] = (byte)readBits(8);
-						abyHeader[1] = (byte)readBits(8);
-						abyHeader[2] = (byte)readBits(8);
-						abyHeader[3] = (byte)readBits(8);
+						readBytes(abyHeader);
 						
 						// and the header CRC
-						int crch = readBits(16);
+						int crch = readBits16();
 						// and check against the calculated CRC
-						int crcc = Utilities.crc16_get(abyHeader, 0, 4, initcrc);
+						int crcc = CRC16.update(initcrc, abyHeader, 0, 4);
 						if (crch != crcc) System.out.println(String.format(TIImageTool.langstr("BadHeaderCRC"), abyHeader[0], abyHeader[1], abyHeader[2], Utilities.toHex(crcc, 4), Utilities.toHex(crch, 4)));
 						// FIXME: We should abandon this sector when the CRC is bad
 						// TODO: Discuss what to do when things are not quite ok
 						
 						int mark = searchDAM();
-						int pos = m_currentSampleNumber; // right after the DAM, first cell of the contents
+						// right after the DAM, first cell of the contents
+						int pos = m_nFirstSample + m_nCell * m_nSamplesPerCell; 
 						
 						// Read the sector contents
 						abySector = new byte[TFileSystem.SECTOR_LENGTH];
-						for (int i=0; i < TFileSystem.SECTOR_LENGTH; i++) {
-							abySector[i] = (byte)readBits(8);
-						}
+						readBytes(abySector);
 						// and the CRC
-						int crcd = readBits(16);
+						int crcd = readBits16();
 						// System.out.println("Found sector " + new Location(abyHeader) + ", pos=" + pos);
 						// System.out.println(Utilities.hexdump(abySector));
 						
@@ -441,11 +467,10 @@ public class HFEFormat extends FloppyImageFormat {
 						
 						m_decodedSectors.add(sect);
 					}
-					catch (EndOfTrackException ex) {
-						// TODO: What if we have different sector counts?
-						if (m_nSectorsPerTrack == -1) m_nSectorsPerTrack = m_decodedSectors.size();
-						break;
-					}
+				}
+				catch (EndOfTrackException ex) {
+					// TODO: What if we have different sector counts?
+					if (m_nSectorsPerTrack == -1) m_nSectorsPerTrack = m_decodedSectors.size();
 				}
 				// System.out.println("Next head " + (m_currentHead+1));
 			}
@@ -453,69 +478,101 @@ public class HFEFormat extends FloppyImageFormat {
 				System.out.println("Found " + m_decodedSectors.size() + " sectors");
 		}
 		
-		/** Get the number of bits from the cell level sequence. 
+		/** Collects the samples of the current head from the interleaved
+			blocks and turns them into a cell stream. Leading 0 samples at the
+			beginning of the track are skipped. For double-rate sampling, every
+			second sample is thrown away.
 		*/
-		private int readBits(int number) throws EndOfTrackException {
-			m_value = 0;
-			for (int i=0; i < number; i++) {
-				m_value <<= 1;
-				m_value |= getNextBit();
+		private void loadCells() throws EndOfTrackException {
+			// Consider the interleave of both sides every 0x100 bytes
+			// 0000   0100    0200    0300    0400   0500   ...
+			// C0H0   C0H1    C1H0    C1H1    C2H0   C2H1   ...
+			byte[] track = new byte[(m_formatUnit.length + 1) / 2 + 256];
+			int length = 0;
+			for (int start = m_currentHead * 256; start < m_formatUnit.length; start += 512) {
+				int count = Math.min(256, m_formatUnit.length - start);
+				System.arraycopy(m_formatUnit, start, track, length, count);
+				length += count;
 			}
-			return m_value;
-		}		
+
+			// Find the first 1 sample
+			int first = 0;
+			while (first < length && track[first]==0) first++;
+			if (first == length) throw new EndOfTrackException();
+			m_nFirstSample = first * 8 + Integer.numberOfTrailingZeros(track[first] & 0xff);
+			
+			// Leave 4 bytes of 0 cells in front and behind, so we can always
+			// fetch whole words
+			if (m_nSamplesPerCell == 1) {
+				m_abyCells = new byte[length + 8];
+				for (int i=0; i < length; i++) 
+					m_abyCells[i+4] = REVERSE[track[i] & 0xff];
+				m_nCellBase = 32 + m_nFirstSample;
+				m_nCellCount = length * 8 - m_nFirstSample;
+			}
+			else {
+				// Use the samples at the same phase as the first 1 sample
+				byte[] half = ((m_nFirstSample & 1)==0)? EVENSAMPLES : ODDSAMPLES;
+				m_abyCells = new byte[(length+1)/2 + 8];
+				for (int i=0; i < length; i+=2) 
+					m_abyCells[i/2+4] = (byte)((half[track[i] & 0xff] << 4) | half[track[i+1] & 0xff]);
+				m_nCellBase = 32 + m_nFirstSample / 2;
+				m_nCellCount = (length * 8 - m_nFirstSample) / 2;
+			}
+			m_nCell = 0;
+		}
 		
-		/** Get the next bit from the cell level sequence.	*/
-		private int getNextBit() throws EndOfTrackException {
-			int clock = getNextCell();	// throw away clock bit 	
-			return getNextCell(); // return data bit
+		/** Delivers the 16 cells that end with the given cell. */
+		private int getCellWord(int cell) {
+			int bitpos = m_nCellBase + cell - 15;
+			int pos = bitpos >> 3;
+			int value = ((m_abyCells[pos] & 0xff) << 16) | ((m_abyCells[pos+1] & 0xff) << 8) | (m_abyCells[pos+2] & 0xff);
+			return (value >> (8 - (bitpos & 7))) & 0xffff;
 		}
 		
-		/** Gets the next cell. This depends on the currently selected head.  
-			Skip all leading 0 at the beginning of the track. 
-		    When we are at the end of this format unit, any further read will
-		    stay at the last bit. */
-		private int getNextCell() throws EndOfTrackException {
-			int value = 0;
-			if (m_first) {
-				while (value == 0) {
-					value = getNextSample();
-				}
-				m_first = false;
+		/** Delivers the data bits of the 16 cells that end with the given cell.
+			Clock bits are at the odd positions. */
+		private int getDataByte(int cell) {
+			int word = getCellWord(cell);
+			return (DATABITS[word >> 8] << 4) | DATABITS[word & 0xff];
+		}
+		
+		/** Reads the next bytes from the cell level sequence. */
+		private void readBytes(byte[] aby) throws EndOfTrackException {
+			if (m_nCell + aby.length * 16 > m_nCellCount) throw new EndOfTrackException();
+			for (int i=0; i < aby.length; i++) {
+				m_nCell += 16;
+				aby[i] = (byte)getDataByte(m_nCell-1);
 			}
-			else 
-				value = getNextSample();
-
-			// For double-rate sampling, throw away the next sample
-			if ((m_codeRate == 250) && !m_mfm) getNextSample();
-			
-			m_shiftRegister = ((m_shiftRegister << 1) | value) & 0xffff;					
-			return value; 		
 		}
 		
-		private int getNextSample() throws EndOfTrackException {
-			if ((m_currentSampleNumber % 8)==0) {			
-				int position = m_currentSampleNumber / 8; 
-				// Consider the interleave of both sides every 0x100 bytes
-				// 0000   0100    0200    0300    0400   0500   ...
-				// C0H0   C0H1    C1H0    C1H1    C2H0   C2H1   ...
-				
-				int block = position / 256;
-				int offset = position % 256;		
-				int actPosition = block*512 + m_currentHead * 256 + offset;
-				if (actPosition >= m_formatUnit.length) {			
-					// Go to the last position for this head
-					// actPosition = m_formatUnit.length - (1-m_currentHead) * 256 - 1;
-					// m_currentSampleNumber = (m_formatUnit.length / 2) * 8 - 1;
-					throw new EndOfTrackException();
+		private int readBits16() throws EndOfTrackException {
+			if (m_nCell + 32 > m_nCellCount) throw new EndOfTrackException();
+			m_nCell += 32;
+			return (getDataByte(m_nCell-17) << 8) | getDataByte(m_nCell-1);
+		}
+		
+		/** Searches the next cell position from the current one where the 
+			last 16 cells match the pattern. Advances behind that position. 
+			Reads four bytes at a time and compares eight positions for each fetch. */
+		private void searchPattern(int pattern, int mask) throws EndOfTrackException {
+			while (m_nCell < m_nCellCount) {
+				int bitpos = m_nCellBase + m_nCell - 15;
+				int pos = bitpos >> 3;
+				int value = ((m_abyCells[pos] & 0xff) << 24) | ((m_abyCells[pos+1] & 0xff) << 16) 
+					| ((m_abyCells[pos+2] & 0xff) << 8) | (m_abyCells[pos+3] & 0xff);
+				value <<= (bitpos & 7);
+				// Cells m_nCell ... m_nCell+7 as last cells of the word
+				int end = Math.min(8, m_nCellCount - m_nCell);
+				for (int i=0; i < end; i++) {
+					if (((value >>> (16 - i)) & mask) == pattern) {
+						m_nCell += i + 1;
+						return;
+					}
 				}
-				
-				m_currentGroup = (byte)((m_formatUnit[actPosition])&0xff);
+				m_nCell += end;
 			}
-			int value = m_currentGroup & 1;
-			m_currentGroup >>= 1;
-			// System.out.println("current cellpos = " + m_currentSampleNumber + ", value = " + value);
-			m_currentSampleNumber++;
-			return value;
+			throw new EndOfTrackException();
 		}
 			
 		private int searchIDAM() throws EndOfTrackException{
@@ -529,8 +586,6 @@ public class HFEFormat extends FloppyImageFormat {
 		private int searchMark(boolean dam) throws EndOfTrackException {
 			int value = 0;
 			int marks = 1;
-			int bit = 0;
-			int val = 0;
 			int mark = 0;
 			int mask = 0;
 
@@ -546,15 +601,17 @@ public class HFEFormat extends FloppyImageFormat {
 				
 				marks = 3;
 				while (marks > 0) {
-					getNextCell();
-					if (m_shiftRegister == 0x4489) marks--;  // A1
+					searchPattern(0x4489, 0xffff);  // A1
+					marks--;
 					
 					if (marks == 0) {
-						value = readBits(8);  // read the ident field
+						if (m_nCell + 16 > m_nCellCount) throw new EndOfTrackException();
+						m_nCell += 16;
+						value = getDataByte(m_nCell-1);  // read the ident field
 						if ((value & mask) != mark) marks = 3; // Not the expected mark
 					}
 				}
-				// System.out.println(Utilities.toHex(m_value,4));
+				// System.out.println(Utilities.toHex(value,4));
 			}
 			else {
 				if (dam) {
@@ -566,24 +623,14 @@ public class HFEFormat extends FloppyImageFormat {
 					mask = 0xffff;
 				}
 				
-				while (marks > 0) {
-					getNextCell();
-					// Valid DAMs are 1111 0101 0110 1010  = f56a
-					//                1111 0101 0110 1011  = f56b
-					//                1111 0101 0110 1110  = f56e
-					//                1111 0101 0110 1111  = f56f
-					if ((m_shiftRegister & mask) == mark) marks--;
-				}
+				// Valid DAMs are 1111 0101 0110 1010  = f56a
+				//                1111 0101 0110 1011  = f56b
+				//                1111 0101 0110 1110  = f56e
+				//                1111 0101 0110 1111  = f56f
+				searchPattern(mark, mask);
 				
-				// Get the value
-				value = 0;
-				val = m_shiftRegister; // .d.d.d.d.d.d.d.d
-				int setbit = 0x0100;
-				for (int i=0; i < 8; i++) {
-					if ((val & 1)!=0) value |= setbit;
-					val >>= 2;
-					value >>= 1;
-				}
+				// Get the value from the data cells .d.d.d.d.d.d.d.d
+				value = getDataByte(m_nCell-1);
 			}
 			return value;
 		}
@@ -594,6 +641,9 @@ public class HFEFormat extends FloppyImageFormat {
 					int pos = isect.getPosition();
 					m_currentSampleNumber = pos;
 					m_currentHead = isect.getLocation().head;
+					// The clock cell in front of the first data bit depends 
+					// on the last data bit of the mark
+					if (m_mfm) m_lastDataBit = readSample(pos-1);
 					// m_debug = (isect.getNumber()==0);
 					
 					// System.out.println("writing sector " + isect.getNumber() + ", pos=" + pos);
@@ -672,6 +722,13 @@ public class HFEFormat extends FloppyImageFormat {
 			if ((m_codeRate == 250) && !m_mfm) writeNextSample(0);  // no change for the next cell
 		}
 		
+		/** Reads a sample of the current head from the format unit. */
+		private int readSample(int sample) {
+			int position = sample / 8;
+			int actPosition = (position / 256)*512 + m_currentHead * 256 + position % 256;
+			return (m_formatUnit[actPosition] >> (sample % 8)) & 1;
+		}
+		
 		private void writeNextSample(int level) throws EndOfTrackException {
 			// For each track, sample 0 starts at a byte boundary
 			// if (m_debug) System.out.print(level);
@@ -763,7 +820,7 @@ public class HFEFormat extends FloppyImageFormat {
 				abyHeader[3] = (byte)0x01;
 				
 				for (byte b : abyHeader) writeBits(b, 8);
-				int crcc = Utilities.crc16_get(abyHeader, 0, 4, initcrc);	
+				int crcc = CRC16.update(initcrc, abyHeader, 0, 4);	
 				writeBits(crcc, 16);
 				
 				// Gap2
@@ -795,7 +852,7 @@ public class HFEFormat extends FloppyImageFormat {
 				
 				// CRC
 				initcrc = t.mfm? 0xe295 : 0xbf84;
-				int crcd = Utilities.crc16_get(content, 0, 256, initcrc);
+				int crcd = CRC16.update(initcrc, content, 0, 256);
 				writeBits(crcd, 16);
 				
 				// Gap3
@@ -818,18 +875,15 @@ public class HFEFormat extends FloppyImageFormat {
 		}	
 	}
 	
-	static int vote(String sFile) throws FileNotFoundException, IOException {
-		File fl = new File(sFile);
-		
-		byte[] hxc = "HXCPICFE".getBytes();
-		boolean isHxc = true;
-			
-		// Read start of file
-		FileInputStream fis = new FileInputStream(fl);
-		for (int i=0; i < hxc.length; i++) {
-			int ch = fis.read();
-			if ((char)ch != hxc[i]) return 0;
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return HFEFormat.vote(probe);
 		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
+		byte[] hxc = "HXCPICFE".getBytes();
+		if (!probe.startsWith(hxc)) return 0;
 		return 100;
 	}
 	
@@ -904,9 +958,14 @@ public class HFEFormat extends FloppyImageFormat {
 		return tracklut;
 	}
 	
+	@Override
+	FormatCodec createCodec() {
+		return new HFECodec(m_header.track_encoding, m_header.bitRate);
+	}
+	
 	/** Find the image sector by the linear sector number. */
 	@Override
-	ImageSector findSector(int number) throws ImageException {
+	ImageSector findSector(FormatUnit fu, int number) throws ImageException {
 		// Calculate the CHS location
 		if (number != 0) {
 			// if (number >= getTotalSectors()) throw new ImageException(String.format(TIImageTool.langstr("ImageSectorHigh"), getTotalSectors()));
@@ -914,12 +973,23 @@ public class HFEFormat extends FloppyImageFormat {
 		}
 		Location loc = lbaToChs(number, getTracks(), getSectorsPerTrack());
 		
-		for (ImageSector is : m_codec.getDecodedSectors()) {
-			if (is.getLocation().equals(loc)) return is;
-		}
+		ImageSector is = fu.getSector(getLocationKey(loc));
+		if (is != null && is.getLocation().equals(loc)) return is;
 		return null;
 	}
 	
+	/** The sector numbers in the decoded sectors may be wrong as long as the
+		number of sectors per track is unknown, so we use the location from
+		the sector header. */
+	@Override
+	int getSectorKey(ImageSector is) {
+		return getLocationKey(is.getLocation());
+	}
+	
+	private int getLocationKey(Location loc) {
+		return ((loc.cylinder & 0xff) << 16) | ((loc.head & 0xff) << 8) | (loc.sector & 0xff);
+	}
+	
 	/** The positions of the format units have already been determined by the header. */
 	long getFormatUnitPosition(int funum) {
 		return m_cylinderpos[funum];
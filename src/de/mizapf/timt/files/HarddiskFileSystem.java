@@ -267,6 +267,12 @@ public abstract class HarddiskFileSystem extends TFileSystem {
 		m_allocMap = new AllocationMap(getTotalSectors()/getSectorsPerAU(), getSectorsPerAU(), false, bitfield);
 	}
 	
+	/** The data chain of the FIB holds 54 pairs of AU numbers. */
+	@Override
+	int getMaxIntervals() {
+		return 54;
+	}
+	
 	@Override
 	public Interval getAllocationInterval() {
 		return new Interval(0, 31);
@@ -26,6 +26,9 @@ import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.lang.reflect.*;
 import de.mizapf.timt.util.Utilities;
 import de.mizapf.timt.TIImageTool;
@@ -130,13 +133,36 @@ public abstract class ImageFormat  {
 
 	public final static String[] suffix = { "", "dsk", "dtk", "cf7", "hfe", "hd", "raw" };
 
-	// Indicates whether the current format unit has been changed 
-	boolean m_bDirty;
-
 	protected static String formatline;
 	
 	protected static Class[] m_formatClass;
 	
+	/** Detectors of the formats, in the same order as the classes. */
+	protected static FormatDetector[] m_detector;
+	
+	/** Detected format types by the path of the image file. */
+	private static Map<String,DetectedFormat> m_detected = new LinkedHashMap<String,DetectedFormat>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,DetectedFormat> eldest) {
+			return size() > DETECTCACHE;
+		}
+	};
+	
+	private final static int DETECTCACHE = 1000;
+	
+	/** Format type of an image file, which is valid as long as the file is
+		not changed. */
+	private static class DetectedFormat {
+		long modified;
+		long length;
+		int type;
+		
+		DetectedFormat(long mod, long len, int tp) {
+			modified = mod;
+			length = len;
+			type = tp;
+		}
+	}
+	
 	protected static Settings m_Settings; 
 
 	protected byte[] m_fillPattern;
@@ -149,6 +175,10 @@ public abstract class ImageFormat  {
 		formatline = formstr;
 		String[] formats = formatline.split(",\\s*");
 		m_formatClass = new Class[7];
+		m_detector = new FormatDetector[7];
+		synchronized (m_detected) {
+			m_detected.clear();
+		}
 		for (int i=0; i < formats.length; i++) {
 			Object[] ao = new Object[0];
 			try {
@@ -160,6 +190,7 @@ public abstract class ImageFormat  {
 				// System.out.println(index);
 				if (m_formatClass[index] == null) {
 					m_formatClass[index] = fmt;
+					m_detector[index] = (FormatDetector)fmt.getDeclaredField("DETECTOR").get(null);
 				}
 				else {
 					System.err.println("Ignoring class " + formats[i] + ": Duplicate type number");
@@ -174,6 +205,9 @@ public abstract class ImageFormat  {
 			catch (NoSuchMethodException nmx) {
 				System.err.println("Ignoring class " + formats[i] + ": Does not implement type method");
 			}
+			catch (NoSuchFieldException nfx) {
+				System.err.println("Class " + formats[i] + " cannot be detected: Does not have a detector");
+			}
 			catch (IllegalAccessException iax) {
 				System.err.println("Ignoring class " + formats[i] + ": No access to vote method");
 			}
@@ -206,44 +240,73 @@ public abstract class ImageFormat  {
 		long nLength = fl.length();
 		if (nLength == 0) throw new ImageException(sFile + ": " + TIImageTool.langstr("ImageEmpty"));
 		
-		for (Class<?> cls : m_formatClass) {
-			try {
-				if (cls != null) {
-					// System.out.println("Trying " + cls.getName()); 
-					Method vote = cls.getDeclaredMethod("vote", String.class);
-					if (((Integer)vote.invoke(null, sFile)).intValue() > 50) { 
-						Constructor<?> cons = cls.getConstructor(String.class);
-						return (ImageFormat)cons.newInstance(sFile);
+		String sKey = fl.getAbsolutePath();
+		long nModified = fl.lastModified();
+		DetectedFormat det = null;
+		synchronized (m_detected) {
+			det = m_detected.get(sKey);
+		}
+		if (det != null && det.modified == nModified && det.length == nLength) {
+			ImageFormat image = createFormat(det.type, sFile);
+			if (image != null) return image;
+		}
+		
+		// The file is opened once for all detectors
+		ImageProbe probe = new ImageProbe(fl, nLength);
+		try {
+			for (int i=0; i < m_detector.length; i++) {
+				if (m_detector[i] != null && m_detector[i].vote(probe) > 50) {
+					ImageFormat image = createFormat(i, sFile);
+					if (image != null) {
+						synchronized (m_detected) {
+							m_detected.put(sKey, new DetectedFormat(nModified, nLength, i));
+						}
+						return image;
 					}
 				}
 			}
-			catch (NoSuchMethodException nmx) {
-				System.err.println("Ignoring class " + cls.getName() + ": Does not implement vote method");
-			}
-			catch (IllegalAccessException iax) {
-				System.err.println("Ignoring class " + cls.getName() + ": No access to vote method");
-			}
-			catch (InvocationTargetException itx) {
-				if (itx.getCause() instanceof FileNotFoundException) 
-					throw (FileNotFoundException)itx.getCause();
+		}
+		finally {
+			probe.close();
+		}
+		throw new ImageException(sFile + ": " + TIImageTool.langstr("ImageUnknown"));
+	}
+	
+	/** Opens the image file in the given format. 
+		@return Image format, or null if the class cannot be used
+	*/
+	private static ImageFormat createFormat(int nType, String sFile) throws FileNotFoundException, IOException, ImageException {
+		Class<?> cls = m_formatClass[nType];
+		try {
+			Constructor<?> cons = cls.getConstructor(String.class);
+			return (ImageFormat)cons.newInstance(sFile);
+		}
+		catch (NoSuchMethodException nmx) {
+			System.err.println("Ignoring class " + cls.getName() + ": Does not implement specific constructor");
+		}
+		catch (IllegalAccessException iax) {
+			System.err.println("Ignoring class " + cls.getName() + ": No access to constructor");
+		}
+		catch (InvocationTargetException itx) {
+			if (itx.getCause() instanceof FileNotFoundException) 
+				throw (FileNotFoundException)itx.getCause();
+			else {
+				if (itx.getCause() instanceof IOException) 
+					throw (IOException)itx.getCause();
 				else {
-					if (itx.getCause() instanceof IOException) 
-						throw (IOException)itx.getCause();
+					if (itx.getCause() instanceof ImageException) {
+						throw (ImageException)itx.getCause();
+					}
 					else {
-						if (itx.getCause() instanceof ImageException) {
-							throw (ImageException)itx.getCause();
-						}
-						else {
-							itx.printStackTrace();
-						}
+						itx.printStackTrace();
 					}
 				}
 			}
-			catch (InstantiationException iax) {
-				System.err.println("Ignoring class " + cls.getName() + ": Cannot instantiate class");
-			}
 		}
-		throw new ImageException(sFile + ": " + TIImageTool.langstr("ImageUnknown"));
+		catch (InstantiationException iax) {
+			System.err.println("Ignoring class " + cls.getName() + ": Cannot instantiate class");
+		}
+		return null;
 	}
 		
 	static Class<?> getClassForFormat(int nFormat) {
@@ -312,13 +375,27 @@ public abstract class ImageFormat  {
 	/** Load the contents of a sequence of sectors. */
 	public byte[] getContent(int nStart, int nEnd) throws IOException, ImageException {
 		byte[] content = new byte[(nEnd-nStart+1) * TFileSystem.SECTOR_LENGTH];
-		for (int i=nStart; i <= nEnd; i++) {
-			Sector sect = readSector(i);
-			System.arraycopy(sect.getData(), 0, content, (i-nStart)*TFileSystem.SECTOR_LENGTH, TFileSystem.SECTOR_LENGTH);
-		}	
+		readSectors(new Interval[] { new Interval(nStart, nEnd) }, content, 0);
 		return content;
 	}
 	
+	/** Reads the sectors of the intervals into the buffer, one interval after
+		the other. Formats may override this method to read runs of sectors
+		at once; this implementation reads sector by sector. 
+		@param aint Intervals of sector numbers
+		@param dest Buffer for the contents
+		@param nOffset Position in the buffer for the first sector
+	*/
+	public void readSectors(Interval[] aint, byte[] dest, int nOffset) throws IOException, ImageException {
+		for (Interval intv : aint) {
+			for (int i=intv.start; i <= intv.end; i++) {
+				Sector sect = readSector(i);
+				System.arraycopy(sect.getData(), 0, dest, nOffset, TFileSystem.SECTOR_LENGTH);
+				nOffset += TFileSystem.SECTOR_LENGTH;
+			}
+		}
+	}
+	
 	protected byte[] getFillPattern() {
 		return m_fillPattern;
 	}
@@ -327,12 +404,73 @@ public abstract class ImageFormat  {
 	abstract int getImageType();
 	
 	protected ImageFormat() {
-		m_writeCache = new SectorCache();
+		m_writeCache = new SectorCache(getIntegerSetting(TIImageTool.UNDODEPTH, SectorCache.DEFAULT_DEPTH),
+				getIntegerSetting(TIImageTool.UNDOMEM, SectorCache.DEFAULT_MEMORY) * 1048576L);
 		m_nTotalSectors = -1;
 	}
 	
+	/** Gets a numeric setting, or the default value if the settings are not
+		available or the value cannot be parsed. */
+	static int getIntegerSetting(String sKey, int nDefault) {
+		if (m_Settings == null) return nDefault;
+		try {
+			return Integer.parseInt(m_Settings.getPropertyString(sKey, String.valueOf(nDefault)));
+		}
+		catch (NumberFormatException nfx) {
+			System.err.println(TIImageTool.langstr("ParseError") + ": " + nfx.getMessage());
+			return nDefault;
+		}
+	}
+	
+	/** Gets a setting, or the default value if the settings are not 
+		available. */
+	static String getStringSetting(String sKey, String sDefault) {
+		if (m_Settings == null) return sDefault;
+		return m_Settings.getPropertyString(sKey, sDefault);
+	}
+	
 	public abstract Sector readSector(int nSectorNumber) throws ImageException, IOException;
 	
+	/** Reads the given sectors in the order of their positions in the image,
+		so that the image is read in one pass instead of jumping back and 
+		forth. Used for the FIBs of a directory.
+		@param anSector Sector numbers in any order
+		@return Sectors in the order of anSector; sectors that cannot be 
+		read are null, so that the caller gets the error when it reads them
+		again
+	*/
+	public Sector[] readSectors(int[] anSector) throws IOException {
+		Integer[] anOrder = new Integer[anSector.length];
+		final long[] anPos = new long[anSector.length];
+		for (int i=0; i < anSector.length; i++) {
+			anOrder[i] = i;
+			anPos[i] = getReadOrderKey(anSector[i]);
+		}
+		Arrays.sort(anOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(anPos[a], anPos[b]);
+			}
+		});
+		
+		Sector[] asect = new Sector[anSector.length];
+		for (int i : anOrder) {
+			try {
+				asect[i] = readSector(anSector[i]);
+			}
+			catch (ImageException ix) {
+				asect[i] = null;
+			}
+		}
+		return asect;
+	}
+	
+	/** Delivers a key for sorting sectors by their position in the image.
+		Formats whose sectors are not stored in the order of their numbers
+		override this method. */
+	long getReadOrderKey(int nSectorNumber) {
+		return nSectorNumber;
+	}
+	
 	public abstract void writeSector(Sector sect);
 		
 	void close() throws IOException {
@@ -390,6 +528,10 @@ public abstract class ImageFormat  {
 		return m_writeCache.canBeRedone();
 	}
 	
+	public boolean undoPossible() {
+		return m_writeCache.canBeUndone();
+	}
+	
 	abstract String getImageName();
 	abstract String getShortImageName();
 	
@@ -0,0 +1,84 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** The beginning and the length of an image file, as seen by the format
+	detectors. The file is opened once for all detectors; bytes behind the
+	header are read from the file when needed.
+*/
+class ImageProbe {
+
+	final static int HEADERLENGTH = 512;
+	
+	private RandomAccessFile m_file;
+	private long m_nLength;
+	private byte[] m_abyHeader;
+	
+	ImageProbe(File fl, long nLength) throws IOException {
+		m_file = new RandomAccessFile(fl, "r");
+		m_nLength = nLength;
+		m_abyHeader = new byte[(int)Math.min(nLength, HEADERLENGTH)];
+		try {
+			m_file.readFully(m_abyHeader);
+		}
+		catch (IOException iox) {
+			m_file.close();
+			throw iox;
+		}
+	}
+	
+	long getLength() {
+		return m_nLength;
+	}
+	
+	/** Checks whether the file starts with the signature. */
+	boolean startsWith(byte[] sig) {
+		if (sig.length > m_abyHeader.length) return false;
+		for (int i=0; i < sig.length; i++) {
+			if (m_abyHeader[i] != sig[i]) return false;
+		}
+		return true;
+	}
+	
+	/** Reads bytes of the file. 
+		@throws IOException if the bytes are behind the end of the file
+	*/
+	byte[] read(long pos, int len) throws IOException {
+		byte[] aby = new byte[len];
+		if (pos + len <= m_abyHeader.length) {
+			System.arraycopy(m_abyHeader, (int)pos, aby, 0, len);
+		}
+		else {
+			m_file.seek(pos);
+			m_file.readFully(aby);
+		}
+		return aby;
+	}
+	
+	void close() throws IOException {
+		m_file.close();
+	}
+}
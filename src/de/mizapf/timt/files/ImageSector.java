@@ -20,7 +20,7 @@
 ****************************************************************************/
 
 package de.mizapf.timt.files;
-import de.mizapf.timt.util.Utilities;
+import de.mizapf.timt.util.CRC16;
 
 import java.io.*;
 
@@ -67,15 +67,13 @@ public class ImageSector extends Sector {
 	}
 	
 	void initCrc(byte mark, boolean mfm) {
-		byte[] head = { (byte)0xa1, (byte)0xa1, (byte)0xa1, (byte)0xfb };
-		head[3] = mark;
-		int start = mfm? 0 : 3;
-		m_initcrc = Utilities.crc16_get(head, start, 4-start, 0xffff); 	
+		// MFM includes the three A1 sync bytes
+		m_initcrc = CRC16.update(mfm? CRC16.MFMSYNC : CRC16.INIT, mark); 	
 	}
 	
 	void calculateCrc() {
 		m_crc = new byte[2];
-		m_crcvalue = Utilities.crc16_get(m_content, 0, m_content.length, m_initcrc);	
+		m_crcvalue = CRC16.update(m_initcrc, m_content, 0, m_content.length);	
 		m_crc[0] = (byte)((m_crcvalue>>8)&0xff);
 		m_crc[1] = (byte)(m_crcvalue&0xff);
 	}
@@ -85,6 +85,8 @@
 
     [  0] UINT32 offset;        // starting offset div by hunk size
 
+    V5 compressed map format: see CHDDecompressor
+
     Metadata format:
     
     [  0] char   tag[4]
@@ -168,7 +170,6 @@ package de.mizapf.timt.files;
 
 import java.io.File;
 import java.io.RandomAccessFile;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
@@ -177,6 +178,12 @@ import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.util.zip.CRC32;
 import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import de.mizapf.timt.TIImageTool;
 import de.mizapf.timt.util.*;
@@ -202,24 +209,28 @@ public class MameCHDFormat extends HarddiskImageFormat {
 
 	private CHDHeader m_header;
 	
-	static int vote(String sFile) throws FileNotFoundException, IOException {
-		
-		FileInputStream fis = new FileInputStream(sFile);
+	/** Set if the image is saved in compressed form. */
+	private boolean m_bCompact;
+	
+	/** Compressed hunks of compact images which have not yet been saved. */
+	private Map<Integer,CHDCompressor.Unit> m_pending;
+	
+	private CHDCompressor m_compressor;
+	
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return MameCHDFormat.vote(probe);
+		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
 		
 		// File system size must be bigger than 3 MB
 		// No, not with unexpanded CHD
 //		if (fileSystem.length()==0 || fileSystem.length() < 3000000) return 0;
 		
 		byte[] chd = "MComprHD".getBytes();
-		int vote = 100;
-		
-		// Read start of file
-		for (int i=0; (i < chd.length) && (vote > 0); i++) {
-			int ch = fis.read();
-			if (ch != chd[i]) vote = 0; 
-		}
-		fis.close();
-		return vote;
+		return probe.startsWith(chd)? 100 : 0;
 	}
 	
 	class CHDHeader {
@@ -232,6 +243,8 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		byte[] m_hunkmap;
 		int m_nFlags;
 		int m_nCompression;
+		int[] m_anCompressor;
+		int m_nUnitLength;
 		long m_nLogicalSize;
 		long m_nMetaOffset;
 		
@@ -243,6 +256,12 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		
 		byte[] m_abyFull;
 		
+		/** Only used for compressed V5 images. */
+		CHDDecompressor m_decompressor;
+		
+		/** Metadata of new images. */
+		List<byte[]> m_metaEntries;
+		
 		final static int MAPENTRYSIZEv4 = 16;	
 		final static int MAPENTRYSIZEv5 = 4;	
 		
@@ -287,19 +306,32 @@ public class MameCHDFormat extends HarddiskImageFormat {
 					m_nMapOffset = Utilities.getInt64be(head, 40);
 					
 					m_nLogicalSize = Utilities.getInt64be(head, 32);
-					m_nHunkCount = (int)(m_nLogicalSize / m_nHunkLength);
-					m_hunkmap = new byte[m_nHunkCount * MAPENTRYSIZEv5];
+					m_nHunkCount = (int)((m_nLogicalSize + m_nHunkLength - 1) / m_nHunkLength);
+					m_nUnitLength = Utilities.getInt32be(head, 60);
+					if (m_nUnitLength <= 0) m_nUnitLength = m_nHunkLength;
 					
-					m_nCompression = Utilities.getInt32be(head, 16);
+					m_anCompressor = new int[4];
+					for (int i=0; i < 4; i++)
+						m_anCompressor[i] = Utilities.getInt32be(head, 16 + 4*i);
+					m_nCompression = m_anCompressor[0];
 					m_nMetaOffset = Utilities.getInt64be(head, 48);
 					
-					m_nHunkCount = (int)m_nLogicalSize / m_nHunkLength;
+					if (m_nCompression != 0) {
+						String sCodec = CHDDecompressor.getUnsupportedCodec(m_anCompressor);
+						if (sCodec != null) 
+							throw new ImageException(String.format(TIImageTool.langstr("MameCHDCodec"), sCodec));
+						m_decompressor = new CHDDecompressor(m_anCompressor, m_nHunkLength, m_nUnitLength, m_nHunkCount);
+					}
+					else {
+						m_hunkmap = new byte[m_nHunkCount * MAPENTRYSIZEv5];
+					}
 				}
 				else
 					throw new ImageException(String.format(TIImageTool.langstr("MameCHDTooHigh"), m_nVersion));	
 			}
 			
-			if (m_nCompression != 0) 
+			// Compressed V4 images are not supported
+			if (m_nCompression != 0 && m_decompressor == null) 
 				throw new ImageException(TIImageTool.langstr("MameCHDCompressed")); 										
 		}
 		
@@ -329,6 +361,7 @@ public class MameCHDFormat extends HarddiskImageFormat {
 			if ((m_nLogicalSize % m_nHunkLength)!=0) m_nHunkCount++;
 			
 			int nMapEntrySize = MAPENTRYSIZEv5;
+			m_nUnitLength = nPhysSectorLength;
 			m_nMapOffset = (long)nHeaderLength;
 			m_nMetaOffset = 0;
 			m_nCompression = 0;
@@ -410,6 +443,7 @@ public class MameCHDFormat extends HarddiskImageFormat {
 			byte[] abyMetaEntry1 = createMetaEntry("GDDD", sb.toString());
 			
 			long nMetaEnd = 0;
+			m_metaEntries = new ArrayList<byte[]>();
 			
 			if (parm.isHFDC()) {
 				linkMetaEntry(abyMetaEntry1, m_nMetaOffset + abyMetaEntry1.length);
@@ -419,12 +453,16 @@ public class MameCHDFormat extends HarddiskImageFormat {
 				dos.write(abyMetaEntry1);
 				dos.write(abyMetaEntry2);
 				dos.write(abyMetaEntry3);
+				m_metaEntries.add(abyMetaEntry1);
+				m_metaEntries.add(abyMetaEntry2);
+				m_metaEntries.add(abyMetaEntry3);
 				
 				nMetaEnd = m_nMetaOffset + abyMetaEntry1.length + abyMetaEntry2.length + abyMetaEntry3.length; 
 			}
 			else {
 				linkMetaEntry(abyMetaEntry1, 0);
 				dos.write(abyMetaEntry1);
+				m_metaEntries.add(abyMetaEntry1);
 				nMetaEnd = m_nMetaOffset + abyMetaEntry1.length; 
 			}
 						
@@ -475,6 +513,26 @@ public class MameCHDFormat extends HarddiskImageFormat {
 			return m_nCompression;
 		}
 		
+		boolean isCompressed() {
+			return m_decompressor != null;
+		}
+		
+		int[] getCompressors() {
+			return m_anCompressor;
+		}
+		
+		long getLogicalSize() {
+			return m_nLogicalSize;
+		}
+		
+		int getUnitLength() {
+			return m_nUnitLength;
+		}
+		
+		int getHunkCount() {
+			return m_nHunkCount;
+		}
+		
 		long getMapOffset() {
 			return m_nMapOffset;
 		}
@@ -483,9 +541,44 @@ public class MameCHDFormat extends HarddiskImageFormat {
 			return m_nHunkLength;
 		}
 		
-		void loadHunkmap(RandomAccessFile file) throws IOException {
-			file.seek(m_nMapOffset);
-			file.readFully(m_hunkmap);
+		void loadHunkmap(RandomAccessFile file) throws IOException, ImageException {
+			if (isCompressed()) {
+				m_decompressor.readMap(file, m_nMapOffset);
+			}
+			else {
+				file.seek(m_nMapOffset);
+				file.readFully(m_hunkmap);
+			}
+		}
+		
+		/** Reads and decompresses the hunk of a compressed image. */
+		void readCompressedHunk(RandomAccessFile file, int nHunk, byte[] buffer) throws IOException, ImageException {
+			m_decompressor.readHunk(file, nHunk, buffer);
+		}
+		
+		/** Delivers the hunk of a compressed image as stored in the file. */
+		CHDCompressor.Unit getStoredUnit(RandomAccessFile file, int nHunk) throws IOException, ImageException {
+			return m_decompressor.getStoredUnit(file, nHunk);
+		}
+		
+		/** Delivers all metadata entries, including their headers. */
+		List<byte[]> getMetaEntries(RandomAccessFile file) throws IOException {
+			if (m_metaEntries != null) return m_metaEntries;
+			
+			List<byte[]> entries = new ArrayList<byte[]>();
+			long nOffset = m_nMetaOffset;
+			byte[] abyMeta = new byte[METALENGTH];
+			while (nOffset != 0) {
+				file.seek(nOffset);
+				file.readFully(abyMeta);
+				int nMetaLength = Utilities.getInt32be(abyMeta, 4) & 0x00ffffff;
+				byte[] entry = new byte[METALENGTH + nMetaLength];
+				System.arraycopy(abyMeta, 0, entry, 0, METALENGTH);
+				file.readFully(entry, METALENGTH, nMetaLength);
+				entries.add(entry);
+				nOffset = Utilities.getInt64be(abyMeta, 8);
+			}
+			return entries;
 		}
 		
 		void loadMetadata(RandomAccessFile file) throws IOException, ImageException {
@@ -564,6 +657,8 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		
 		long getFormatUnitPosition(int funum) {	
 			long pos = 0;
+			// Compressed hunks have no fixed position
+			if (isCompressed()) return EMPTY;
 			if (m_nVersion == 5) {
 				pos = Utilities.getInt32be(m_hunkmap, funum * MAPENTRYSIZEv5) * m_nHunkLength;
 				if (pos==0) pos = EMPTY;
@@ -633,8 +728,7 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		void decode() {
 			m_decodedSectors.clear();
 			int count = m_formatUnit.length / TFileSystem.SECTOR_LENGTH;
-			// The current FU number is member of ImageFormat
-			int startSector = m_nCurrentFormatUnit * count - getPartitionSectorOffset();
+			int startSector = m_nFormatUnit * count - getPartitionSectorOffset();
 			// System.out.println("partition sector offset = " + getPartitionSectorOffset());
 			for (int i = 0; i < count; i++) {
 				m_decodedSectors.add(new ImageSector(startSector + i, m_formatUnit, i * TFileSystem.SECTOR_LENGTH));
@@ -668,6 +762,18 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		m_codec = new CHDCodec();
 		m_bInitial = false;
 		
+		loadHeader();
+		m_bCompact = m_header.isCompressed();
+		m_pending = new HashMap<Integer,CHDCompressor.Unit>();
+		
+		// Set the geometry. Note that the sectors are always 256 bytes, even
+		// when SCSI drives have 512 byte sectors (physical sectors vs. logical sectors)
+		m_nTotalSectors = m_header.getTotalSectors() * (m_header.getSectorSize() / TFileSystem.SECTOR_LENGTH);
+		
+		if (isPartitioned()) setupPartitionTable();
+	}
+	
+	private void loadHeader() throws IOException, ImageException {
 		// Set up the header
 		m_header = new CHDHeader(m_file);
 		
@@ -681,12 +787,6 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		// Metadata at the end may need to be skipped
 		// Follow the linked list of metadata blobs
 		m_header.findAppendOffset(m_file);
-		
-		// Set the geometry. Note that the sectors are always 256 bytes, even
-		// when SCSI drives have 512 byte sectors (physical sectors vs. logical sectors)
-		m_nTotalSectors = m_header.getTotalSectors() * (m_header.getSectorSize() / TFileSystem.SECTOR_LENGTH);
-		
-		if (isPartitioned()) setupPartitionTable();
 	}
 	
 	public MameCHDFormat(String sImageName, FormatParameters params) throws IOException, ImageException {
@@ -694,6 +794,8 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		m_codec = new CHDCodec();
 		m_format = params;
 		prepareNewImage(params);
+		m_bCompact = (m_Settings != null) && m_Settings.getPropertyBoolean(TIImageTool.CHDCOMPACT);
+		m_pending = new HashMap<Integer,CHDCompressor.Unit>();
 	}
 
 	public String getFormatName() {
@@ -717,6 +819,155 @@ public class MameCHDFormat extends HarddiskImageFormat {
 		return m_header.getFormatUnitPosition(funum);
 	}
 	
+	@Override
+	void readFormatUnit(FormatUnit fu) throws ImageException, IOException {
+		CHDCompressor.Unit unit = m_pending.get(fu.number);
+		if (unit != null) 
+			getCompressor().expand(unit, fu.buffer);
+		else {
+			if (m_header.isCompressed()) 
+				m_header.readCompressedHunk(m_file, fu.number, fu.buffer);
+			else
+				super.readFormatUnit(fu);
+		}
+	}
+	
+	private CHDCompressor getCompressor() {
+		if (m_compressor == null) {
+			m_compressor = createCompressor();
+		}
+		return m_compressor;
+	}
+	
+	private CHDCompressor createCompressor() {
+		int[] compressors = m_header.isCompressed()? m_header.getCompressors() : null;
+		return new CHDCompressor(compressors, m_header.getHunkLength(), m_header.getHunkCount());
+	}
+	
+	@Override
+	FormatCodec createCodec() {
+		return new CHDCodec();
+	}
+	
+	@Override
+	UnitBuilder createUnitBuilder() {
+		return m_bCompact? new CompressingUnitBuilder() : new UnitBuilder();
+	}
+	
+	/** Compresses the built format units in the worker thread. The compressor
+		cannot be shared between threads, so each builder has its own. */
+	class CompressingUnitBuilder extends UnitBuilder {
+		CHDCompressor m_builderCompressor;
+		
+		CompressingUnitBuilder() {
+			m_builderCompressor = createCompressor();
+		}
+		
+		@Override
+		void finish(FormatUnit fu) {
+			CHDCompressor.Unit unit = m_builderCompressor.compress(fu.buffer);
+			synchronized (m_pending) {
+				m_pending.put(fu.number, unit);
+			}
+		}
+	}
+	
+	/** Compact images are written as a whole when saving. */
+	@Override
+	void writeBuiltFormatUnit(FormatUnit fu) throws IOException, ProtectedException {
+		if (!m_bCompact) super.writeBuiltFormatUnit(fu);
+	}
+	
+	/** Compact images cannot be changed in place, so the format unit is 
+		compressed and kept until the image is saved. */
+	@Override
+	void writeFormatUnit(FormatUnit fu) throws IOException, ProtectedException {
+		if (!m_bCompact) {
+			super.writeFormatUnit(fu);
+			return;
+		}
+		attachFormatUnit(fu);
+		m_codec.encode();
+		// System.out.println("Compress hunk " + fu.number);
+		m_pending.put(fu.number, getCompressor().compress(m_codec.getFormatUnitBuffer()));
+		fu.dirty = false;
+	}
+	
+	@Override
+	void writeDirtyFormatUnits() throws IOException, ImageException, ProtectedException {
+		super.writeDirtyFormatUnits();
+		if (m_bCompact) writeCompactImage();
+	}
+	
+	/** Writes the complete image in compressed form. The image is written
+		to a temporary file first, which then replaces the image file. 
+		Unchanged hunks of compressed images are copied without 
+		decompressing them. Since the compressed map cannot be updated in
+		place, this happens on every save of a compressed image. */
+	private void writeCompactImage() throws IOException, ImageException {
+		final CHDCompressor comp = getCompressor();
+		final int nHunkLength = m_header.getHunkLength();
+		
+		File temp = new File(m_sFileName + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			comp.writeImage(out, m_header.getLogicalSize(), m_header.getUnitLength(), m_header.getMetaEntries(m_file), 
+				new CHDCompressor.UnitSource() {
+					public CHDCompressor.Unit getUnit(int hunk) throws IOException, ImageException {
+						CHDCompressor.Unit unit = m_pending.get(hunk);
+						if (unit != null) return unit;
+						
+						if (m_header.isCompressed() && comp.canCopy()) 
+							return m_header.getStoredUnit(m_file, hunk);
+						
+						byte[] abyHunk = new byte[nHunkLength];
+						if (m_header.isCompressed()) {
+							m_header.readCompressedHunk(m_file, hunk, abyHunk);
+						}
+						else {
+							// Hunks that were never written remain empty
+							long pos = m_header.getFormatUnitPosition(hunk);
+							if (pos >= 0) {
+								m_file.seek(pos);
+								m_file.readFully(abyHunk);
+							}
+						}
+						return comp.compress(abyHunk);
+					}
+				});
+		}
+		catch (IOException iox) {
+			out.close();
+			temp.delete();
+			throw iox;
+		}
+		catch (ImageException ix) {
+			out.close();
+			temp.delete();
+			throw ix;
+		}
+		out.close();
+		
+		// The image file must be closed for replacing it on some systems.
+		// If the move fails, the original image is opened again and the 
+		// pending hunks are kept for the next attempt.
+		boolean bMoved = false;
+		m_file.close();
+		try {
+			Files.move(temp.toPath(), new File(m_sFileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			bMoved = true;
+		}
+		finally {
+			if (!bMoved) temp.delete();
+			m_file = new RandomAccessFile(m_sFileName, "rw");
+			// Load the map of the current file; the contents of the cached 
+			// format units remain valid
+			loadHeader();
+		}
+		m_pending.clear();
+		m_compressor = null;
+	}
+	
 	/** Format units are hunks in this format. Sectors are arranged linearly 
 	    from 0 to the maximum number. */
 	int getFUNumberFromSector(int number) throws ImageException {
@@ -0,0 +1,109 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2025 Michael Zapf
+    www.mizapf.de
+    
+****************************************************************************/
+
+
+package de.mizapf.timt.files;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Read access to an image file by memory mapping. The file is mapped in 
+	segments of 1 GiB so that images larger than 2 GiB can be mapped as well.
+	Segments are mapped on their first access. 
+	
+	The mapping remains open until close() is called. Writes to the file by
+	other RandomAccessFile instances are visible in the mapping, so the
+	mapping does not need to be renewed after saving, as long as the file
+	length does not change.
+*/
+class MappedFileAccess {
+	
+	private final static int SEGMENT_SHIFT = 30;
+	private final static long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	
+	private RandomAccessFile m_file;
+	private FileChannel m_channel;
+	private MappedByteBuffer[] m_segment;
+	private long m_nLength;
+	
+	MappedFileAccess(String sFileName) throws IOException {
+		m_file = new RandomAccessFile(sFileName, "r");
+		m_channel = m_file.getChannel();
+		m_nLength = m_channel.size();
+		m_segment = new MappedByteBuffer[(int)((m_nLength + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT)];
+	}
+	
+	long length() {
+		return m_nLength;
+	}
+	
+	private ByteBuffer getSegment(int number) throws IOException {
+		if (m_segment[number] == null) {
+			long start = (long)number << SEGMENT_SHIFT;
+			long len = Math.min(SEGMENT_SIZE, m_nLength - start);
+			m_segment[number] = m_channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+		}
+		// Each caller gets its own position
+		return m_segment[number].duplicate();
+	}
+	
+	/** Copies len bytes from the file position pos into the buffer. */
+	void read(long pos, byte[] dest, int offset, int len) throws IOException {
+		if (pos < 0 || pos + len > m_nLength) throw new EOFException("Position " + pos + " beyond end of file");
+		while (len > 0) {
+			ByteBuffer seg = getSegment((int)(pos >> SEGMENT_SHIFT));
+			int segpos = (int)(pos & (SEGMENT_SIZE-1));
+			int count = Math.min(len, seg.capacity() - segpos);
+			seg.position(segpos);
+			seg.get(dest, offset, count);
+			pos += count;
+			offset += count;
+			len -= count;
+		}
+	}
+	
+	/** Copies len bytes into the buffer, taking every stride-th byte starting
+		at position pos. */
+	void readStrided(long pos, int stride, byte[] dest, int offset, int len) throws IOException {
+		if (pos < 0 || pos + (long)len * stride > m_nLength) throw new EOFException("Position " + pos + " beyond end of file");
+		ByteBuffer seg = null;
+		int segnum = -1;
+		for (int i=0; i < len; i++) {
+			if ((int)(pos >> SEGMENT_SHIFT) != segnum) {
+				segnum = (int)(pos >> SEGMENT_SHIFT);
+				seg = getSegment(segnum);
+			}
+			dest[offset + i] = seg.get((int)(pos & (SEGMENT_SIZE-1)));
+			pos += stride;
+		}
+	}
+	
+	void close() throws IOException {
+		// The mapped segments are released by the garbage collector
+		m_segment = null;
+		m_channel.close();
+		m_file.close();
+	}
+}
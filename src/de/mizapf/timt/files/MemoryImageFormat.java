@@ -23,6 +23,7 @@ package de.mizapf.timt.files;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import de.mizapf.timt.TIImageTool;
+import de.mizapf.timt.util.InternalException;
 
 // Can a partitioned format also be a memory image format?
 // Basically not.
@@ -61,7 +62,13 @@ public class MemoryImageFormat extends ImageFormat {
 	/** Read a sector. The MemoryImageFormat always uses a write cache. */
 	public Sector readSector(int nSectorNumber) {
 		Sector sect = null;
-		sect = m_writeCache.read(nSectorNumber);
+		try {
+			sect = m_writeCache.read(nSectorNumber);
+		}
+		catch (IOException iox) {
+			// Memory images have no journal
+			throw new InternalException(iox.getMessage());
+		}
 
 		if (sect == null) {
 			// Create an empty sector
@@ -37,18 +37,24 @@ class RawHDFormat extends HarddiskImageFormat {
 
 	int m_nFormatUnitLength;
 	
-	static int vote(String sFile) throws IOException, EOFException {
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return RawHDFormat.vote(probe);
+		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
 		
-		File fl = new File(sFile);
+		long nLength = probe.getLength();
 		
 		// File system size must be bigger than 3 MB
-		if (fl.length()==0 || fl.length() < 3000000) return 0;
+		if (nLength==0 || nLength < 3000000) return 0;
 		
 		// Is it a MAME format?
-		if (MameCHDFormat.vote(sFile)==100) return 0;
+		if (MameCHDFormat.vote(probe)==100) return 0;
 		
 		// We should have a multiple of the sector size
-		if ((fl.length() % 256) != 0) return 10;
+		if ((nLength % 256) != 0) return 10;
 		return 100;		
 	}
 		
@@ -57,8 +63,7 @@ class RawHDFormat extends HarddiskImageFormat {
 		void decode() {
 			m_decodedSectors.clear();
 			int count = m_formatUnit.length / TFileSystem.SECTOR_LENGTH;
-			// The current FU number is member of ImageFormat
-			int startSector = m_nCurrentFormatUnit * count - getPartitionSectorOffset();
+			int startSector = m_nFormatUnit * count - getPartitionSectorOffset();
 			// System.out.println("partition sector offset = " + getPartitionSectorOffset());
 			for (int i = 0; i < count; i++) {
 				m_decodedSectors.add(new ImageSector(startSector + i, m_formatUnit, i * TFileSystem.SECTOR_LENGTH));
@@ -107,6 +112,11 @@ class RawHDFormat extends HarddiskImageFormat {
 		return TIImageTool.langstr("RAWType");
 	}
 	
+	@Override
+	FormatCodec createCodec() {
+		return new RawHDCodec();
+	}
+	
 	@Override
 	Sector readSector0() throws IOException {
 		// Read the first 256 bytes
@@ -117,6 +127,24 @@ class RawHDFormat extends HarddiskImageFormat {
 		return new Sector(0, sector0);
 	}
 	
+	/** Raw images are read from a memory mapping of the image. */
+	@Override
+	boolean supportsMappedAccess() {
+		return true;
+	}
+
+	/** Sectors are stored linearly in this format, offset by the partition. */
+	@Override
+	Sector readMappedSector(int nSectorNumber) throws IOException {
+		long pos = (long)(nSectorNumber + getPartitionSectorOffset()) * TFileSystem.SECTOR_LENGTH;
+		return readMappedSector(nSectorNumber, pos, 1);
+	}
+	
+	@Override
+	long getLinearSectorPosition(int nSectorNumber) {
+		return (long)(nSectorNumber + getPartitionSectorOffset()) * TFileSystem.SECTOR_LENGTH;
+	}
+	
 	int getFUNumberFromSector(int secnum) {
 		secnum += getPartitionSectorOffset();
 		if (secnum == 0) return 0;
@@ -38,6 +38,14 @@ public class Sector implements Cloneable {
 		this(nNumber, abySector, 0);
 	}
 	
+	/** Creates a new sector instance with empty content, which is filled
+		by the caller via getData. */
+	Sector(int nNumber) {
+		m_content = new byte[TFileSystem.SECTOR_LENGTH];
+		m_nNumber = nNumber;
+		m_generation = 0;
+	}
+	
 	public Sector(int nNumber, byte[] abyFormatUnit, int offset) {
 		m_content = new byte[TFileSystem.SECTOR_LENGTH];
 		System.arraycopy(abyFormatUnit, offset, m_content, 0, m_content.length);
@@ -20,12 +20,10 @@
 ****************************************************************************/
 
 package de.mizapf.timt.files;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.IOException;
 
 import de.mizapf.timt.util.Utilities;
 
@@ -54,10 +52,11 @@ import de.mizapf.timt.util.Utilities;
     
     When there is a new generation, the current version is relinked to the 
     new generation, and the previous end of list is dropped with no way to
-    restore it again.    
+    restore it again. This happens with the first write operation after 
+    an Undo.
     
     read --+--> null if there were no changes to the sector in the image
-           +--> Sector (clone) whose generation is the highest below m_generation
+           +--> Sector (copy) whose generation is the highest below m_generation
            
     write--+--> new entry in the list of this sector, with gen set to m_generation
            +--> overwritten entry when gen==m_generation
@@ -65,22 +64,185 @@ import de.mizapf.timt.util.Utilities;
     Undo can only succeed on performed transactions, which is declared by
     calling next_generation.
     
+    Storage:
+    
+    The versions are numbered; each version has a slot for the sector 
+    contents in the arena, which consists of byte arrays for 256 sectors 
+    each. The list of changes of a sector is a chain of version numbers 
+    from the newest to the oldest version, and the newest version is found
+    by the sector number in an index. Also, the versions of each generation
+    are chained, so that a rollback only visits the changed sectors. 
+    Versions and slots of dropped versions are reused.
+    
+    The history is limited by the number of generations (undo steps) and by
+    the memory for the sector contents. Versions that cannot be reached by
+    Undo anymore are dropped. The current contents of all changed sectors
+    are always kept, even when they exceed the memory limit.
+    
+    Journal:
+    
+    When a journal is attached, all writes and generation changes are
+    also appended to the journal file. The history is then only limited by
+    the number of undo steps; when the memory limit is exceeded, the slots
+    of older versions are released, and their contents are reloaded from 
+    the journal when needed. The journal can be replayed into a new cache 
+    to restore the changes and the history after the image is opened again.
+    When the image is saved, the journal is rewritten with the versions 
+    that can still be reached, so it does not grow across sessions.
 */
 public class SectorCache {
 	
-	SortedMap<Integer,LinkedList<Sector>> m_cache;
+	public final static int DEFAULT_DEPTH = 100;
+	public final static int DEFAULT_MEMORY = 64;  // MiB
+	
+	private final static int NONE = -1;
+	
+	/** Sectors per byte array in the arena. */
+	private final static int SLABSECTORS = 256;
+	
+	/** Newest version of each sector. */
+	private SectorIndex m_index;
+	
+	/** Per version: sector number, generation (NONE if free), next older 
+	    version of this sector (or next free version), next version of the
+	    same generation */
+	private int[] m_anNumber;
+	private int[] m_anGeneration;
+	private int[] m_anOlder;
+	private int[] m_anSameGen;
+	
+	/** Per version: slot of the contents (NONE if only in the journal),
+	    position of the contents in the journal (-1 if not journaled) */
+	private int[] m_anSlot;
+	private long[] m_alJournal;
+	
+	private int m_nVersions;
+	private int m_nLive;
+	private int m_nFree;
+	
+	/** Sector contents by slot. */
+	private List<byte[]> m_slabs;
+	
+	/** Free slots */
+	private int[] m_anFreeSlots;
+	private int m_nFreeSlots;
+	private int m_nSlots;
+	
+	/** First version of each generation. */
+	private int[] m_anFirstOfGen;
 	
 	private int m_generation;
 	private int m_checkpoint;
 	private int m_current;
+	
+	/** Generations of the last save were dropped after an Undo. */
+	private boolean m_bCheckpointLost;
 	private int m_maxgen;
 	
+	/** Lowest generation that can be reached by Undo. */
+	private int m_floor;
+	
+	private int m_nMaxDepth;
+	private long m_nMaxBytes;
+	
+	private SectorJournal m_journal;
+	
+	/** Journal is not written during replay */
+	private boolean m_bNoLogging;
+	
+	/** Journal could not be written; used for reading only */
+	private boolean m_bJournalFailed;
+	
+	/** Error of the journal that has not been reported yet */
+	private IOException m_journalError;
+	
+	/** Generations below this one have released the slots of their older
+	    versions. */
+	private int m_nSpillGen;
+	
 	private final static boolean DEBUG = false;
 	
 	private String m_sName; // debugging
 	
+	/** Map from sector number to version, using open addressing. Sector
+		numbers are never negative. */
+	private static class SectorIndex {
+		int[] m_anKey;
+		int[] m_anValue;
+		int m_nSize;
+		
+		SectorIndex() {
+			m_anKey = new int[64];
+			m_anValue = new int[64];
+			Arrays.fill(m_anKey, NONE);
+		}
+		
+		private int find(int key) {
+			int mask = m_anKey.length - 1;
+			int h = key * 0x9e3779b9;
+			int pos = (h ^ (h >>> 16)) & mask;
+			while (m_anKey[pos] != NONE && m_anKey[pos] != key) {
+				pos = (pos + 1) & mask;
+			}
+			return pos;
+		}
+		
+		int get(int key) {
+			int pos = find(key);
+			return (m_anKey[pos] == key)? m_anValue[pos] : NONE;
+		}
+		
+		void put(int key, int value) {
+			int pos = find(key);
+			if (m_anKey[pos] == NONE) {
+				if (2 * (m_nSize + 1) > m_anKey.length) {
+					grow();
+					pos = find(key);
+				}
+				m_anKey[pos] = key;
+				m_nSize++;
+			}
+			m_anValue[pos] = value;
+		}
+		
+		private void grow() {
+			int[] keys = m_anKey;
+			int[] values = m_anValue;
+			m_anKey = new int[keys.length * 2];
+			m_anValue = new int[keys.length * 2];
+			Arrays.fill(m_anKey, NONE);
+			for (int i=0; i < keys.length; i++) {
+				if (keys[i] != NONE) {
+					int pos = find(keys[i]);
+					m_anKey[pos] = keys[i];
+					m_anValue[pos] = values[i];
+				}
+			}
+		}
+	}
+	
 	SectorCache() {
-		m_cache = new TreeMap<Integer,LinkedList<Sector>>();
+		this(DEFAULT_DEPTH, DEFAULT_MEMORY * 1048576L);
+	}
+	
+	/** Creates a cache which keeps the given number of undo steps, as long
+		as the sector contents do not exceed the given number of bytes.
+		At least one undo step is always kept. */
+	SectorCache(int nMaxDepth, long nMaxBytes) {
+		m_index = new SectorIndex();
+		m_anNumber = new int[SLABSECTORS];
+		m_anGeneration = new int[SLABSECTORS];
+		m_anOlder = new int[SLABSECTORS];
+		m_anSameGen = new int[SLABSECTORS];
+		m_anSlot = new int[SLABSECTORS];
+		m_alJournal = new long[SLABSECTORS];
+		m_slabs = new ArrayList<byte[]>();
+		m_anFreeSlots = new int[SLABSECTORS];
+		m_anFirstOfGen = new int[16];
+		Arrays.fill(m_anFirstOfGen, NONE);
+		m_nFree = NONE;
+		m_nMaxDepth = Math.max(1, nMaxDepth);
+		m_nMaxBytes = nMaxBytes;
 		m_checkpoint = -1; // For memory images, the checkpoint of last save is -1
 	}
 	
@@ -88,97 +250,497 @@ public class SectorCache {
 		m_sName = sName;
 	}
 	
-	private Sector getRecentVersion(LinkedList<Sector> seclist, boolean withCurrent) {
-		Iterator<Sector> backit = seclist.descendingIterator();
-		if (DEBUG) System.out.println("Version list length: " + seclist.size() + ", nextgen = " + m_generation);
-		Sector sect = null;
-		while (backit.hasNext()) {
-			Sector sec = backit.next();
-			if (DEBUG) System.out.print("Cache: Sector " + sec.getNumber() + " (v"  + sec.getGeneration() + "), withCurrent = " + withCurrent + ": ");
-			
-			// Must be "<" for a working Undo
-			// Undos are done from committed changes, so nextgen is higher than
-			// the latest change of any sector
-			// With <=, the latest change will still be found, although it was "undone"
-			// TODO: Check whether error conditions are really cleanly undone
-			if ((sec.getGeneration() < m_generation) 
-				|| (withCurrent && (sec.getGeneration() == m_generation))) {
-				if (DEBUG) System.out.println("hit");
-				sect = sec;
-				break;
-			}
-			else {
-				if (DEBUG) System.out.println("skip");
+	private byte[] getSlab(int slot) {
+		return m_slabs.get(slot / SLABSECTORS);
+	}
+	
+	private int getSlabOffset(int slot) {
+		return (slot % SLABSECTORS) * TFileSystem.SECTOR_LENGTH;
+	}
+	
+	private int allocateSlot() {
+		if (m_nFreeSlots > 0) return m_anFreeSlots[--m_nFreeSlots];
+		int slot = m_nSlots++;
+		if (slot / SLABSECTORS == m_slabs.size()) 
+			m_slabs.add(new byte[SLABSECTORS * TFileSystem.SECTOR_LENGTH]);
+		return slot;
+	}
+	
+	/** Releases the slot of the version, if it has one. */
+	private void releaseSlot(int version) {
+		int slot = m_anSlot[version];
+		if (slot == NONE) return;
+		if (m_nFreeSlots == m_anFreeSlots.length) 
+			m_anFreeSlots = Arrays.copyOf(m_anFreeSlots, m_nFreeSlots * 2);
+		m_anFreeSlots[m_nFreeSlots++] = slot;
+		m_anSlot[version] = NONE;
+	}
+	
+	/** Number of bytes of sector contents in memory. */
+	private long getUsedMemory() {
+		return (long)(m_nSlots - m_nFreeSlots) * TFileSystem.SECTOR_LENGTH;
+	}
+	
+	/** Gets a new version for the sector and links it to the generation. 
+		The version has no slot yet. */
+	private int newVersion(int number, int gen) {
+		int version = m_nFree;
+		if (version != NONE) {
+			m_nFree = m_anOlder[version];
+		}
+		else {
+			version = m_nVersions++;
+			if (version == m_anNumber.length) {
+				int size = version * 2;
+				m_anNumber = Arrays.copyOf(m_anNumber, size);
+				m_anGeneration = Arrays.copyOf(m_anGeneration, size);
+				m_anOlder = Arrays.copyOf(m_anOlder, size);
+				m_anSameGen = Arrays.copyOf(m_anSameGen, size);
+				m_anSlot = Arrays.copyOf(m_anSlot, size);
+				m_alJournal = Arrays.copyOf(m_alJournal, size);
 			}
 		}
-		// If we could not find a version earlier than the selected generation, return null
+		
+		if (gen >= m_anFirstOfGen.length) {
+			int oldlen = m_anFirstOfGen.length;
+			m_anFirstOfGen = Arrays.copyOf(m_anFirstOfGen, Math.max(gen + 1, oldlen * 2));
+			Arrays.fill(m_anFirstOfGen, oldlen, m_anFirstOfGen.length, NONE);
+		}
+		m_anNumber[version] = number;
+		m_anGeneration[version] = gen;
+		m_anOlder[version] = NONE;
+		m_anSlot[version] = NONE;
+		m_alJournal[version] = -1;
+		m_anSameGen[version] = m_anFirstOfGen[gen];
+		m_anFirstOfGen[gen] = version;
+		m_nLive++;
+		return version;
+	}
+	
+	/** Returns the version to the free list. The version is not unlinked
+		from its generation; this is only done by dropping the whole 
+		generation. */
+	private void freeVersion(int version) {
+		releaseSlot(version);
+		m_anGeneration[version] = NONE;
+		m_anOlder[version] = m_nFree;
+		m_nFree = version;
+		m_nLive--;
+	}
+	
+	/** Gets the newest version of the sector below the current generation,
+		or at the current generation if withCurrent is true. */
+	private int getRecentVersion(int number, boolean withCurrent) {
+		int version = m_index.get(number);
+		int limit = withCurrent? m_generation + 1 : m_generation;
+		
+		// Must be "<" for a working Undo
+		// Undos are done from committed changes, so nextgen is higher than
+		// the latest change of any sector
+		while (version != NONE && m_anGeneration[version] >= limit) {
+			if (DEBUG) System.out.println("Cache: Sector " + number + " (v"  + m_anGeneration[version] + "), withCurrent = " + withCurrent + ": skip");
+			version = m_anOlder[version];
+		}
+		// If we could not find a version earlier than the selected generation, return NONE
 		// i.e. take it from the image
-		return sect;
+		return version;
 	}
 	
 	/** Get the contents of a given sector.
 	    @param number Sector number
 		@return Sector, or null if the sector was never written to after start
 		or after a write back
+		@throws IOException if the contents cannot be reloaded from the journal
 	*/
-	Sector read(int number) {
-		// Get the history of this sector
-		LinkedList<Sector> secversions = m_cache.get(number);
-		if (secversions==null) {
+	Sector read(int number) throws IOException {
+		int version = getRecentVersion(number, false);
+		if (version == NONE) {
 			// No history yet
 			// System.out.println("Image: Sector " + number);
 			return null;
 		}
-		
-		return getRecentVersion(secversions, false);		
+		Sector sect = null;
+		if (m_anSlot[version] == NONE) {
+			// Only in the journal; keep it in memory again if possible
+			if (getUsedMemory() < m_nMaxBytes) {
+				loadSlot(version);
+			}
+			else {
+				sect = new Sector(number);
+				m_journal.readContent(m_alJournal[version], sect.getData(), 0);
+			}
+		}
+		if (sect == null) {
+			int slot = m_anSlot[version];
+			sect = new Sector(number, getSlab(slot), getSlabOffset(slot));
+		}
+		sect.setGeneration(m_anGeneration[version]);
+		return sect;
+	}
+	
+	/** Indicates whether read delivers contents for the sector. Does not
+		copy or reload the contents. */
+	boolean contains(int number) {
+		return getRecentVersion(number, false) != NONE;
+	}
+	
+	/** Reloads the contents of the version from the journal into a new slot. */
+	private void loadSlot(int version) throws IOException {
+		int slot = allocateSlot();
+		try {
+			m_journal.readContent(m_alJournal[version], getSlab(slot), getSlabOffset(slot));
+		}
+		catch (IOException iox) {
+			m_anFreeSlots[m_nFreeSlots++] = slot;
+			throw iox;
+		}
+		m_anSlot[version] = slot;
+	}
+	
+	/** Gets the contents of all sectors that were changed, in ascending
+		order of their numbers. Sectors whose changes were undone 
+		completely are not included.
+		@return List of sectors as delivered by read
+	*/
+	List<Sector> getChangedSectors() throws IOException {
+		int[] numbers = new int[m_index.m_nSize];
+		int count = 0;
+		for (int i=0; i < m_index.m_anKey.length; i++) {
+			int number = m_index.m_anKey[i];
+			if (number != NONE && getRecentVersion(number, false) != NONE) 
+				numbers[count++] = number;
+		}
+		Arrays.sort(numbers, 0, count);
+		List<Sector> list = new ArrayList<Sector>(count);
+		for (int i=0; i < count; i++) {
+			list.add(read(numbers[i]));
+		}
+		return list;
 	}
 	
 	/** Store the contents of the sector at the current generation. Does not
 	    change the generation number. If this is the first write operation
-	    of this sector, creates a new entry in the map.
+	    of this sector in this generation, creates a new version.
 	    @param sect Sector
 	*/
 	void write(Sector sect) {
 		if (DEBUG) System.out.println("Write sector " + sect.getNumber() + ", gen " + m_generation);
-		boolean bNew = true;
-		
+
 		// Set the generation
 		sect.setGeneration(m_generation);
+		
+		int number = sect.getNumber();
+		int version = getWriteVersion(number);
+		int slot = m_anSlot[version];
+		if (slot == NONE) {
+			slot = allocateSlot();
+			m_anSlot[version] = slot;
+		}
+		byte[] content = sect.getData();
+		int len = Math.min(content.length, TFileSystem.SECTOR_LENGTH);
+		System.arraycopy(content, 0, getSlab(slot), getSlabOffset(slot), len);
+		Arrays.fill(getSlab(slot), getSlabOffset(slot) + len, getSlabOffset(slot) + TFileSystem.SECTOR_LENGTH, (byte)0);
+		// System.out.println(Utilities.hexdump(sect.getData()));
+		
+		m_alJournal[version] = -1;
+		if (m_journal != null && !m_bJournalFailed) {
+			try {
+				m_alJournal[version] = m_journal.logWrite(number, m_generation, getSlab(slot), getSlabOffset(slot));
+			}
+			catch (IOException iox) {
+				journalFailed(iox);
+			}
+		}
+	}
+	
+	/** Gets the version of the sector in the current generation; creates
+		a new version if this is the first write operation of the sector in
+		this generation. */
+	private int getWriteVersion(int number) {
+		// Changes after an Undo start a new history; drop the undone generations
+		if (m_generation < m_maxgen) {
+			if (DEBUG) System.out.println("Drop the generations from " + m_generation);
+			dropGenerations(m_generation);
+			m_maxgen = m_generation;
+		}
+		
+		int version = m_index.get(number);
+		
+		if (version == NONE || m_anGeneration[version] != m_generation) {
+			// Append new generation
+			int older = version;
+			version = newVersion(number, m_generation);
+			m_anOlder[version] = older;
+			m_index.put(number, version);
+			if (DEBUG) System.out.println("Caching a new version (" + m_generation + ") of sector " + number);
 			
-		// Get the history of this sector
-		LinkedList<Sector> secversions = m_cache.get(sect.getNumber());
-
-		if (secversions==null) {
-			// No history yet
-			secversions = new LinkedList<Sector>();
-			m_cache.put(sect.getNumber(), secversions);
-			if (DEBUG) System.out.println("Creating new history for sector " + sect.getNumber());
+			// The older version may belong to a generation whose old versions
+			// have already been moved to the journal
+			if (older != NONE && m_anGeneration[older] < m_nSpillGen && m_alJournal[older] != -1) 
+				releaseSlot(older);
 		}
 		else {
-			Sector lsect = getRecentVersion(secversions, true);
-			if (lsect != null) {
-				if (lsect.getGeneration() == m_generation) {
-					// Same generation; overwrite the sector contents
-					lsect.modify(sect.getData());
-					if (DEBUG) System.out.println("Replacing the contents of sector " + sect.getNumber() + " in generation " + m_generation);
-					bNew = false;
+			// Same generation; overwrite the sector contents
+			if (DEBUG) System.out.println("Replacing the contents of sector " + number + " in generation " + m_generation);
+		}
+		return version;
+	}
+	
+	/** Replays the limit of the history from a rewritten journal. */
+	void replayFloor(int floor) {
+		dropHistory(floor);
+	}
+	
+	/** Replays a write operation from the journal. The contents remain in
+		the journal at the given position. */
+	void replayWrite(int number, int gen, long pos) throws IOException {
+		if (gen != m_generation) throw new IOException("Journal does not match the cache: generation " + gen + ", expected " + m_generation);
+		int version = getWriteVersion(number);
+		releaseSlot(version);
+		m_alJournal[version] = pos;
+	}
+	
+	/** Removes all versions of the given generation and above. */
+	private void dropGenerations(int gen) {
+		if (gen <= m_checkpoint) m_bCheckpointLost = true;
+		for (int g = gen; g < m_anFirstOfGen.length; g++) {
+			for (int version = m_anFirstOfGen[g]; version != NONE; version = m_anSameGen[version]) {
+				// Newer versions are always in front
+				int number = m_anNumber[version];
+				int newest = m_index.get(number);
+				while (newest != NONE && m_anGeneration[newest] >= gen) {
+					if (DEBUG) System.out.println("Removing sector " + number + ", version " + m_anGeneration[newest] + ", m_gen = " + m_generation);
+					int older = m_anOlder[newest];
+					freeVersion(newest);
+					newest = older;
+				}
+				m_index.put(number, newest);
+			}
+			m_anFirstOfGen[g] = NONE;
+		}
+		if (m_nSpillGen > gen) m_nSpillGen = gen;
+	}
+	
+	/** Removes all versions that cannot be reached anymore when Undo is
+		possible down to the given generation. For each sector, the newest
+		version below that generation must be kept. */
+	private void dropHistory(int floor) {
+		for (int g = m_floor; g < floor && g < m_anFirstOfGen.length; g++) {
+			for (int version = m_anFirstOfGen[g]; version != NONE; version = m_anSameGen[version]) {
+				if (m_anGeneration[version] == NONE) continue;
+				int keep = m_index.get(m_anNumber[version]);
+				while (m_anGeneration[keep] >= floor) keep = m_anOlder[keep];
+				int older = m_anOlder[keep];
+				m_anOlder[keep] = NONE;
+				while (older != NONE) {
+					int next = m_anOlder[older];
+					freeVersion(older);
+					older = next;
+				}
+			}
+			// Versions of this generation are only reached by their sector from now on
+			m_anFirstOfGen[g] = NONE;
+		}
+		if (floor > m_floor) m_floor = floor;
+	}
+	
+	/** Limits the history by the number of undo steps and by memory, but
+		keeps at least one undo step. With a journal, the history is only 
+		limited by the number of undo steps, and old versions are removed
+		from memory. */
+	private void limitHistory() {
+		dropHistory(m_generation - m_nMaxDepth);
+		if (m_journal != null && !m_bJournalFailed) {
+			spillHistory();
+			return;
+		}
+		while ((long)m_nLive * TFileSystem.SECTOR_LENGTH > m_nMaxBytes && m_floor < m_generation - 1) {
+			dropHistory(m_floor + 1);
+		}
+		if (DEBUG) System.out.println("History(" + m_sName + "): " + m_nLive + " versions, undo possible to generation " + m_floor);
+	}
+	
+	/** Releases the slots of versions that have been replaced by newer 
+		versions, beginning with the oldest generations, until the memory
+		limit is met. The contents of the previous generation are kept. */
+	private void spillHistory() {
+		while (getUsedMemory() > m_nMaxBytes && m_nSpillGen < m_generation - 1) {
+			if (m_nSpillGen < m_anFirstOfGen.length) {
+				for (int version = m_anFirstOfGen[m_nSpillGen]; version != NONE; version = m_anSameGen[version]) {
+					if (m_alJournal[version] != -1 && m_index.get(m_anNumber[version]) != version) 
+						releaseSlot(version);
+				}
+			}
+			m_nSpillGen++;
+		}
+		if (DEBUG) System.out.println("History(" + m_sName + "): " + m_nLive + " versions, " + getUsedMemory() + " bytes in memory");
+	}
+	
+	/** Starts a new journal for the given image file. From now on, all
+		changes are logged. */
+	void startJournal(SectorJournal journal, java.io.File image) throws IOException {
+		journal.create(image, m_generation, m_checkpoint);
+		m_journal = journal;
+		m_bJournalFailed = false;
+	}
+	
+	/** Creates an empty cache with the same settings as this one; used for
+		replaying a journal. */
+	SectorCache createEmpty() {
+		SectorCache cache = new SectorCache(m_nMaxDepth, m_nMaxBytes);
+		cache.m_sName = m_sName;
+		return cache;
+	}
+	
+	/** Replays the journal into this empty cache, starting at the generation
+		and checkpoint of the journal. Undo is possible down to the generation
+		below the start of the journal, unless the journal sets another floor.
+		After replay, further changes are appended to the journal.
+	*/
+	void replay(SectorJournal journal) throws IOException {
+		m_generation = journal.getGeneration();
+		m_checkpoint = journal.getCheckpoint();
+		m_maxgen = m_generation;
+		m_floor = Math.max(0, m_generation - 1);
+		m_journal = journal;
+		m_bJournalFailed = false;
+		m_bNoLogging = true;
+		try {
+			journal.replay(this);
+		}
+		finally {
+			m_bNoLogging = false;
+		}
+	}
+	
+	SectorJournal getJournal() {
+		return m_journal;
+	}
+	
+	/** Rewrites the journal after the image has been saved. The new journal
+		only contains the versions that can still be reached by Undo or Redo,
+		starting one generation below the floor of the history with the 
+		versions that are kept for the floor, followed by the floor itself. 
+		If the journal cannot be rewritten, the old one is kept. 
+		@return true if the journal has been rewritten
+	*/
+	boolean rewriteJournal(java.io.File image) {
+		if (m_journal == null || m_bJournalFailed) return false;
+		
+		// Sort the versions by generation; the versions below the floor 
+		// are put into the generation below the floor
+		long[] alOrder = new long[m_nLive];
+		int count = 0;
+		for (int version=0; version < m_nVersions; version++) {
+			int gen = m_anGeneration[version];
+			if (gen == NONE) continue;
+			if (gen < m_floor) gen = m_floor - 1;
+			alOrder[count++] = ((long)gen << 32) | version;
+		}
+		Arrays.sort(alOrder, 0, count);
+		int start = Math.max(0, m_floor - 1);
+		
+		SectorJournal journal = m_journal.createReplacement();
+		long[] alPos = new long[count];
+		byte[] content = new byte[TFileSystem.SECTOR_LENGTH];
+		try {
+			journal.create(image, start, m_checkpoint);
+			int gen = start;
+			for (int i=0; i < count; i++) {
+				gen = advanceJournal(journal, gen, (int)(alOrder[i] >> 32));
+				int version = (int)alOrder[i];
+				int slot = m_anSlot[version];
+				if (slot != NONE) {
+					alPos[i] = journal.logWrite(m_anNumber[version], gen, getSlab(slot), getSlabOffset(slot));
 				}
 				else {
-					if (DEBUG) System.out.println("lsect.gen=" + lsect.getGeneration() + ", m_gen=" + m_generation);
+					m_journal.readContent(m_alJournal[version], content, 0);
+					alPos[i] = journal.logWrite(m_anNumber[version], gen, content, 0);
 				}
 			}
+			gen = advanceJournal(journal, gen, m_maxgen);
+			for (; gen > m_generation; gen--) journal.logOperation(SectorJournal.PREVIOUS, 0);
+			journal.replace(m_journal);
+		}
+		catch (IOException iox) {
+			if (DEBUG) System.out.println("Cannot rewrite the journal: " + iox.getMessage());
+			try {
+				journal.delete();
+				if (!m_journal.isOpen()) throw iox;
+				m_journal.updateImage(image);
+			}
+			catch (IOException iox1) {
+				journalFailed(iox1);
+			}
+			return false;
+		}
+		m_journal = journal;
+		for (int i=0; i < count; i++) {
+			m_alJournal[(int)alOrder[i]] = alPos[i];
+		}
+		return true;
+	}
+	
+	/** Closes the journal when the image is closed. Unsaved changes, 
+		including those that were undone or redone past the last save, are 
+		discarded; the journal is rewritten at the last checkpoint, so that 
+		the undo history of the saved generations is kept for the next 
+		session. The journal is deleted if it has failed or if there is no 
+		history. */
+	void closeJournal(java.io.File image) throws IOException {
+		if (m_journal == null) return;
+		boolean bKeep = !m_bJournalFailed && m_checkpoint >= 0;
+		if (bKeep && (m_generation != m_checkpoint + 1 || m_maxgen > m_generation)) {
+			// The saved state must still be in the history
+			if (m_bCheckpointLost || m_checkpoint + 1 < m_floor) bKeep = false;
 			else {
-				// else we once had a history before undoing. In that case, bNew = true
-				if (DEBUG) System.out.println("Clear the history of sector " + sect.getNumber());
-				secversions.clear();
+				m_generation = m_checkpoint + 1;
+				dropGenerations(m_generation);
+				m_maxgen = m_generation;
+				bKeep = rewriteJournal(image);
 			}
 		}
-		if (bNew) {
-			// Append new generation
-			secversions.add((Sector)sect.clone());
-			if (DEBUG) System.out.println("Caching a new version (" + m_generation + ") of sector " + sect.getNumber());
+		if (bKeep && m_nLive > 0) m_journal.close();
+		else m_journal.delete();
+		m_journal = null;
+	}
+	
+	/** Appends generation changes to the rewritten journal until the given
+		generation is reached. The floor is set when it is passed. */
+	private int advanceJournal(SectorJournal journal, int gen, int target) throws IOException {
+		while (gen < target) {
+			journal.logOperation(SectorJournal.NEXT, 1);
+			gen++;
+			if (gen == m_floor) journal.logOperation(SectorJournal.FLOOR, m_floor);
+		}
+		return gen;
+	}
+	
+	/** When the journal cannot be written anymore, it is only used for 
+		reading the versions that are already spilled. The history is
+		limited again. The error is kept until it is fetched by
+		getJournalError. */
+	private void journalFailed(IOException iox) {
+		m_journalError = iox;
+		m_bJournalFailed = true;
+	}
+	
+	/** Gets the error that disabled the journal, if it has not been fetched
+		yet. */
+	IOException getJournalError() {
+		IOException iox = m_journalError;
+		m_journalError = null;
+		return iox;
+	}
+	
+	private void log(int type, int arg) {
+		if (m_journal == null || m_bNoLogging || m_bJournalFailed) return;
+		try {
+			m_journal.logOperation(type, arg);
+		}
+		catch (IOException iox) {
+			journalFailed(iox);
 		}
-		// System.out.println(Utilities.hexdump(sect.getData()));
 	}
 	
 	/** Removes all entries that were not committed by a following 
@@ -187,18 +749,9 @@ public class SectorCache {
 	*/
 	public void rollback() {
 		if (DEBUG) System.out.println("Rollback");
-		Set<Integer> number = m_cache.keySet();
-		for (int i : number) {
-			LinkedList<Sector> seclist = m_cache.get(i);
-			Iterator<Sector> backit = seclist.descendingIterator();
-			while (backit.hasNext()) {
-				Sector sec = backit.next();
-				if (sec.getGeneration() >= m_generation) {
-					if (DEBUG) System.out.println("Removing sector " + i + ", version " + sec.getGeneration() + ", m_gen = " + m_generation);
-					backit.remove();
-				}
-			}
-		}
+		log(SectorJournal.ROLLBACK, 0);
+		dropGenerations(m_generation);
+		if (m_maxgen > m_generation) m_maxgen = m_generation;
 	}
 	
 	/** Indicates whether this image has unsaved changes. Note that the
@@ -212,24 +765,39 @@ public class SectorCache {
 	public void nextGeneration(boolean bNew) {
 //		Thread.currentThread().dumpStack();
 		if (DEBUG) System.out.println("+ nextgen(" + m_sName + "): " + (m_generation+1));
+		log(SectorJournal.NEXT, bNew? 1 : 0);
+		// A new generation after an Undo drops the undone generations
+		if (bNew && m_generation < m_maxgen) dropGenerations(m_generation);
 		m_generation++;
-		if (bNew) m_maxgen = m_generation;
+		if (bNew) {
+			m_maxgen = m_generation;
+			limitHistory();
+		}
 	}
 		
 	public void previousGeneration() {
+		if (!canBeUndone()) return;
 		if (DEBUG) System.out.println("- prevgen(" + m_sName + "): " + (m_generation-1));
+		log(SectorJournal.PREVIOUS, 0);
 		m_generation--;
 	}
 	
+	/** Reopens the last generation for further changes. Undone generations
+		are dropped. */
 	public void sameGeneration() {
-		if (m_generation > 1) {
+		if (m_generation > 1 && canBeUndone()) {
 			if (DEBUG) System.out.println("- samegen(" + m_sName + "): " + (m_generation-1));
+			log(SectorJournal.SAME, 0);
 			m_generation--;
+			dropGenerations(m_generation + 1);
+			m_maxgen = m_generation;
 		}
 	}
 
 	public void setCheckpoint() {
+		log(SectorJournal.CHECKPOINT, 0);
 		m_checkpoint = m_generation;
+		m_bCheckpointLost = false;
 	}
 	
 	// Not used yet, and maybe identical to m_generation
@@ -241,8 +809,12 @@ public class SectorCache {
 		return m_generation < m_maxgen;
 	}
 	
+	/** Indicates whether the history still contains the previous generation. */
+	public boolean canBeUndone() {
+		return m_generation > m_floor;
+	}
+	
 	public boolean isNew() {
 		return (m_checkpoint < 0) && (m_generation==1);
 	}
 }
-
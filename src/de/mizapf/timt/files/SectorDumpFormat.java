@@ -48,10 +48,15 @@ class SectorDumpFormat extends FloppyImageFormat {
 		{ 409600, 2, 40, 20 }			// CF7 volume
 	};
 
-	static int vote(String sFile) throws IOException {
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return SectorDumpFormat.vote(probe);
+		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
 		
-		File fl = new File(sFile);
-		long nLength = fl.length();
+		long nLength = probe.getLength();
 		
 		// File system size must be less than 3 MB
 		if (nLength==0 || nLength > 3000000) return 0;
@@ -134,7 +139,7 @@ class SectorDumpFormat extends FloppyImageFormat {
 		
 		int getLinearSectorNumber(int bufferpos) {
 			// The first sector is always the first in the FU
-			int start = m_nCurrentFormatUnit * getSectorsPerTrack();
+			int start = m_nFormatUnit * getSectorsPerTrack();
 			return start + bufferpos / getIncrement();
 		}
 	}
@@ -176,6 +181,11 @@ class SectorDumpFormat extends FloppyImageFormat {
 		return m_nSectorsPerTrack;
 	}
 	
+	@Override
+	FormatCodec createCodec() {
+		return new SectorDumpCodec();
+	}
+	
 	public String getFormatName() {
 		return TIImageTool.langstr("SectorDump");
 	}
@@ -204,6 +214,23 @@ class SectorDumpFormat extends FloppyImageFormat {
 		return null; 
 	}
 	
+	/** Sector dumps are read from a memory mapping of the image. */
+	@Override
+	boolean supportsMappedAccess() {
+		return true;
+	}
+	
+	/** Sectors are stored linearly in this format. */
+	@Override
+	Sector readMappedSector(int nSectorNumber) throws IOException {
+		return readMappedSector(nSectorNumber, (long)nSectorNumber * TFileSystem.SECTOR_LENGTH, 1);
+	}
+	
+	@Override
+	long getLinearSectorPosition(int nSectorNumber) {
+		return (long)nSectorNumber * TFileSystem.SECTOR_LENGTH;
+	}
+	
 	Sector readSector0() throws IOException {
 		byte[] sect0 = new byte[TFileSystem.SECTOR_LENGTH];
 		m_file.seek(0);
@@ -0,0 +1,311 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.files;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import de.mizapf.timt.util.Utilities;
+
+/** Undo journal of an image file. All changes to the sector cache are
+	appended to this file, so that the cache can drop the contents of old
+	versions from memory and reload them when needed, and so that unsaved
+	changes and the undo history can be restored when the image is opened
+	again.
+
+	Header (32 bytes):
+
+	0-7:   Magic "TIMTJRN1"
+	8-15:  Length of the image file
+	16-23: Last modification time of the image file
+	24-27: Generation of the cache when the journal was started
+	28-31: Checkpoint of the cache when the journal was started
+
+	The journal is only valid for the image file as long as its length and
+	modification time match the header. After each save, the journal is 
+	rewritten with the versions that can still be reached by Undo.
+
+	Records:
+
+	Write:     type (1), sector number (4), generation (4), contents (256), CRC32 (4)
+	Operation: type (1), argument (4), CRC32 (4)
+
+	The CRC covers all bytes of the record in front of it. A record with
+	a wrong checksum ends the journal; this happens when the program was
+	terminated while writing.
+*/
+class SectorJournal {
+
+	final static int WRITE = 1;
+	final static int NEXT = 2;
+	final static int PREVIOUS = 3;
+	final static int SAME = 4;
+	final static int ROLLBACK = 5;
+	final static int CHECKPOINT = 6;
+	final static int FLOOR = 7;
+
+	private final static byte[] MAGIC = { 'T', 'I', 'M', 'T', 'J', 'R', 'N', '1' };
+	private final static int HEADERLEN = 32;
+
+	private final static int WRITELEN = 1 + 4 + 4 + TFileSystem.SECTOR_LENGTH + 4;
+	private final static int OPLEN = 1 + 4 + 4;
+
+	/** Extension of journal files */
+	final static String SUFFIX = ".tij";
+
+	private File m_fileJournal;
+	private RandomAccessFile m_file;
+
+	/** End of the valid records */
+	private long m_nEnd;
+
+	private byte[] m_abyRecord;
+	private CRC32 m_crc;
+
+	private int m_nGeneration;
+	private int m_nCheckpoint;
+
+	/** Creates the journal object for the given file; the file is not
+		opened yet. */
+	SectorJournal(File fileJournal) {
+		m_fileJournal = fileJournal;
+		m_abyRecord = new byte[WRITELEN];
+		m_crc = new CRC32();
+	}
+
+	/** Gets the journal file for the image file in the given directory.
+		The name contains a hash of the full path, so that images with the
+		same name in different directories do not share the journal. */
+	static File getJournalFile(File dir, File image) {
+		String sPath = image.getAbsolutePath();
+		return new File(dir, image.getName() + "-" + Integer.toHexString(sPath.hashCode()) + SUFFIX);
+	}
+
+	/** Opens an existing journal and checks whether it belongs to the
+		given image file in its current state.
+		@return true if the journal can be used for the image
+	*/
+	boolean open(File image) throws IOException {
+		if (!m_fileJournal.exists()) return false;
+		m_file = new RandomAccessFile(m_fileJournal, "rw");
+		if (m_file.length() < HEADERLEN) return false;
+
+		byte[] header = new byte[HEADERLEN];
+		m_file.seek(0);
+		m_file.readFully(header);
+		for (int i=0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) return false;
+		}
+		if (getLong(header, 8) != image.length()) return false;
+		if (getLong(header, 16) != image.lastModified()) return false;
+		m_nGeneration = Utilities.getInt32be(header, 24);
+		m_nCheckpoint = Utilities.getInt32be(header, 28);
+		m_nEnd = HEADERLEN;
+		return true;
+	}
+
+	/** Starts a new journal for the image file, replacing any existing one. */
+	void create(File image, int generation, int checkpoint) throws IOException {
+		if (m_file == null) m_file = new RandomAccessFile(m_fileJournal, "rw");
+		m_file.setLength(0);
+		m_nGeneration = generation;
+		m_nCheckpoint = checkpoint;
+
+		byte[] header = new byte[HEADERLEN];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		setLong(header, 8, image.length());
+		setLong(header, 16, image.lastModified());
+		Utilities.setInt32be(header, 24, generation);
+		Utilities.setInt32be(header, 28, checkpoint);
+		m_file.seek(0);
+		m_file.write(header);
+		m_nEnd = HEADERLEN;
+	}
+
+	/** Creates the journal object for a new journal that shall replace 
+		this one; the file is not opened yet. */
+	SectorJournal createReplacement() {
+		return new SectorJournal(new File(m_fileJournal.getPath() + ".new"));
+	}
+	
+	/** Replaces the file of the given journal by the file of this journal,
+		which is used from now on. If the file cannot be replaced, this 
+		journal is deleted, and the given journal remains in use. */
+	void replace(SectorJournal old) throws IOException {
+		close();
+		old.close();
+		try {
+			Files.move(m_fileJournal.toPath(), old.m_fileJournal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException iox) {
+			m_fileJournal.delete();
+			old.m_file = new RandomAccessFile(old.m_fileJournal, "rw");
+			throw iox;
+		}
+		m_fileJournal = old.m_fileJournal;
+		m_file = new RandomAccessFile(m_fileJournal, "rw");
+	}
+	
+	boolean isOpen() {
+		return m_file != null;
+	}
+
+	/** Binds the journal to the new state of the image file after it has
+		been saved. */
+	void updateImage(File image) throws IOException {
+		byte[] ident = new byte[16];
+		setLong(ident, 0, image.length());
+		setLong(ident, 8, image.lastModified());
+		m_file.seek(8);
+		m_file.write(ident);
+	}
+
+	int getGeneration() {
+		return m_nGeneration;
+	}
+
+	int getCheckpoint() {
+		return m_nCheckpoint;
+	}
+
+	/** Appends the contents of a sector.
+		@return Position of the record, used for reloading the contents
+	*/
+	long logWrite(int number, int gen, byte[] content, int offset) throws IOException {
+		m_abyRecord[0] = (byte)WRITE;
+		Utilities.setInt32be(m_abyRecord, 1, number);
+		Utilities.setInt32be(m_abyRecord, 5, gen);
+		System.arraycopy(content, offset, m_abyRecord, 9, TFileSystem.SECTOR_LENGTH);
+		return append(WRITELEN);
+	}
+
+	/** Appends an operation of the cache. */
+	void logOperation(int type, int arg) throws IOException {
+		m_abyRecord[0] = (byte)type;
+		Utilities.setInt32be(m_abyRecord, 1, arg);
+		append(OPLEN);
+	}
+
+	private long append(int len) throws IOException {
+		m_crc.reset();
+		m_crc.update(m_abyRecord, 0, len-4);
+		Utilities.setInt32be(m_abyRecord, len-4, (int)m_crc.getValue());
+		long pos = m_nEnd;
+		m_file.seek(pos);
+		m_file.write(m_abyRecord, 0, len);
+		m_nEnd = pos + len;
+		return pos;
+	}
+
+	/** Reads the sector contents of the write record at the given position. */
+	void readContent(long pos, byte[] dest, int offset) throws IOException {
+		byte[] record = new byte[WRITELEN];
+		m_file.seek(pos);
+		m_file.readFully(record);
+		if (record[0] != WRITE || !checkRecord(record, WRITELEN))
+			throw new IOException("Bad journal record at position " + pos + " in " + m_fileJournal.getName());
+		System.arraycopy(record, 9, dest, offset, TFileSystem.SECTOR_LENGTH);
+	}
+
+	private boolean checkRecord(byte[] record, int len) {
+		m_crc.reset();
+		m_crc.update(record, 0, len-4);
+		return Utilities.getInt32be(record, len-4) == (int)m_crc.getValue();
+	}
+
+	/** Replays all records into the cache. The sector contents are not
+		loaded; the cache only remembers their positions. Stops at the first
+		incomplete or damaged record, which is removed.
+	*/
+	void replay(SectorCache cache) throws IOException {
+		byte[] record = new byte[WRITELEN];
+		long pos = HEADERLEN;
+		long length = m_file.length();
+		m_file.seek(pos);
+
+		while (pos + OPLEN <= length) {
+			m_file.readFully(record, 0, OPLEN);
+			int type = record[0];
+			int len = (type == WRITE)? WRITELEN : OPLEN;
+			if (pos + len > length) break;
+			if (type == WRITE) m_file.readFully(record, OPLEN, WRITELEN - OPLEN);
+			if (!checkRecord(record, len)) break;
+
+			int arg = Utilities.getInt32be(record, 1);
+			// System.out.println("Journal: type " + type + ", arg " + arg + " at " + pos);
+			switch (type) {
+			case WRITE:
+				cache.replayWrite(arg, Utilities.getInt32be(record, 5), pos);
+				break;
+			case NEXT:
+				cache.nextGeneration(arg != 0);
+				break;
+			case PREVIOUS:
+				cache.previousGeneration();
+				break;
+			case SAME:
+				cache.sameGeneration();
+				break;
+			case ROLLBACK:
+				cache.rollback();
+				break;
+			case CHECKPOINT:
+				cache.setCheckpoint();
+				break;
+			case FLOOR:
+				cache.replayFloor(arg);
+				break;
+			default:
+				throw new IOException("Unknown journal record type " + type + " in " + m_fileJournal.getName());
+			}
+			pos += len;
+		}
+		// Remove the damaged rest
+		m_nEnd = pos;
+		if (m_nEnd < length) m_file.setLength(m_nEnd);
+	}
+
+	void close() throws IOException {
+		if (m_file != null) {
+			m_file.close();
+			m_file = null;
+		}
+	}
+
+	void delete() throws IOException {
+		close();
+		m_fileJournal.delete();
+	}
+
+	private static long getLong(byte[] aby, int pos) {
+		return ((long)Utilities.getInt32be(aby, pos) << 32) | (Utilities.getInt32be(aby, pos+4) & 0xffffffffL);
+	}
+
+	private static void setLong(byte[] aby, int pos, long value) {
+		Utilities.setInt32be(aby, pos, (int)(value >>> 32));
+		Utilities.setInt32be(aby, pos+4, (int)value);
+	}
+}
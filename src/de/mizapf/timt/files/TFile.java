@@ -53,6 +53,15 @@ public class TFile extends Element {
 	
 	private int			m_nIsArchive;
 	
+	/** First FIB of a file whose FIB chain and data chain have not been 
+		read yet; null when they are available. */
+	private Sector			m_sectFIB;
+	private Volume			m_volFIB;
+	
+	/** Error when reading the FIB chain or the data chain; passed to all
+		callers that need the complete file. */
+	private ImageException	m_chainError;
+	
 	public final static byte VARIABLE = (byte)0x80;
 	public final static byte EMULATE = (byte)0x20;
 	public final static byte MODIFIED = (byte)0x10;
@@ -113,8 +122,10 @@ public class TFile extends Element {
 		}
 		m_tCreation = new Time(aby, 0x14);
 		m_tUpdate = new Time(aby, 0x18);
-		m_anFIBSector = getAllFIB(vol, sectFIB);
-		m_aCluster = getAllClusters(vol, m_anFIBSector);
+		// The FIB chain and the data chain are read on first use
+		m_anFIBSector = new int[] { sectFIB.getNumber() };
+		m_sectFIB = sectFIB;
+		m_volFIB = vol;
 		m_dirParent = dirParent;
 		m_bProtected = false;
 		checkL3();		
@@ -125,6 +136,42 @@ public class TFile extends Element {
 	protected TFile() {
 		m_bProtected = false;
 	}
+	
+	/** Reads the chained FIBs and the data chain. If a chained FIB cannot
+		be read, only the data chain of the first FIB is used, and the error
+		is kept for loadChain. */
+	private synchronized void readChain() {
+		if (m_sectFIB == null) return;
+		try {
+			m_anFIBSector = getAllFIB(m_volFIB, m_sectFIB);
+			m_aCluster = getAllClusters(m_volFIB, m_anFIBSector);
+		}
+		catch (IOException iox) {
+			m_chainError = new ImageException(TIImageTool.langstr("TFileDamaged") + " (" + m_sectFIB.getNumber() + "). " + TIImageTool.langstr("IOError") + ": " + iox.getClass().getName());
+			m_aCluster = getFirstClusters();
+		}
+		catch (ImageException ix) {
+			m_chainError = ix;
+			m_aCluster = getFirstClusters();
+		}
+		m_sectFIB = null;
+		m_volFIB = null;
+	}
+	
+	/** Reads the chained FIBs and the data chain if not done yet. Called 
+		by all operations that need the complete file.
+		@throws ImageException if the chains could not be read
+	*/
+	void loadChain() throws ImageException {
+		readChain();
+		if (m_chainError != null) throw m_chainError;
+	}
+	
+	private Interval[] getFirstClusters() {
+		m_anFIBSector = new int[] { m_sectFIB.getNumber() };
+		List<Interval> lst = getDataChainPointerBlockList(m_volFIB, m_sectFIB.getData());
+		return lst.toArray(new Interval[lst.size()]);
+	}
 
 	private void checkL3() throws ImageException {
 		m_bL3Swapped = false;
@@ -163,7 +210,7 @@ public class TFile extends Element {
 						}
 					}
 				}
-				if (m_nNumberOfRecords > 1000000) throw new ImageException(TIImageTool.langstr("TFileDamaged") + " (" + m_anFIBSector[0] + ")");
+				if (m_nNumberOfRecords > 1000000) throw new ImageException(TIImageTool.langstr("TFileDamaged") + " (" + getFIBLocation() + ")");
 			}
 			else {
 				// Check whether the L3 count of variable files is correct
@@ -298,10 +345,12 @@ public class TFile extends Element {
 
 	/** Called from from ImageCheck and Directory.deleteFile */
 	public int[] getFIBLocations() {
+		readChain();
 		return m_anFIBSector;
 	}
 	
 	public boolean isFragmented() {
+		readChain();
 		return m_aCluster.length>1;
 	}
 	
@@ -356,6 +405,7 @@ public class TFile extends Element {
 		if ((nAUSize > 1) && ((nTotal %  nAUSize)!=0)) nTotal = ((nTotal / nAUSize)+1) * nAUSize;
 		// Add all FIBs, but only those that occupy position 0 in the AU
 		// All other positions are already allocated via position 0.
+		readChain();
 		for (int i=0; i < m_anFIBSector.length; i++) {
 			if ((nAUSize == 1) || ((m_anFIBSector[i] % nAUSize)==0)) nTotal = nTotal + nAUSize;
 		}
@@ -372,6 +422,7 @@ public class TFile extends Element {
 	
 	/** Called from Directory.moveinFile/insertFile/renameFile. */
 	byte[] createFIB(int nSectorNumber, int nFDIRSector) throws ProtectedException, ImageException {
+		loadChain();
 		byte[] aFibNew = new byte[256];
 
 		Volume vol = getVolume();
@@ -487,6 +538,7 @@ public class TFile extends Element {
 	/** Delivers all intervals of this file over all FIBs of this file. 
 		The intervals refer to sectors. */
 	public Interval[] getAllocatedBlocks() {
+		readChain();
 		return m_aCluster;
 	}
 	
@@ -531,7 +583,13 @@ public class TFile extends Element {
 		int nRead = 0;
 		int nSector = 0;
 		Interval current = null;
+		
+		// Runs of consecutive sectors are read at once
+		List<Interval> lstRun = new ArrayList<Interval>();
+		int nRunStart = -1;
+		int nRunEnd = -1;
 		// System.out.println("File " + getName() + ", used: " + getUsedSectors());
+		loadChain();
 		if (m_aCluster.length==0) {
 			throw new ImageException(String.format(TIImageTool.langstr("TFileNoContent"), getPathname()));
 		}
@@ -566,9 +624,14 @@ public class TFile extends Element {
 			nSectorInCluster++;
 
 			nRead++;
-			Sector sect = vol.readSector(nSector);
-			System.arraycopy(sect.getData(), 0, aby, i*256, 256);
+			if (nSector != nRunEnd + 1 || nRunStart == -1) {
+				if (nRunStart != -1) lstRun.add(new Interval(nRunStart, nRunEnd));
+				nRunStart = nSector;
+			}
+			nRunEnd = nSector;
 		}
+		lstRun.add(new Interval(nRunStart, nRunEnd));
+		vol.readSectors(lstRun.toArray(new Interval[lstRun.size()]), aby, 0);
 		return aby;
 	}
 	
@@ -586,6 +649,7 @@ public class TFile extends Element {
 		int nSector = 0;
 		Interval current = null;
 		
+		loadChain();
 		if (m_aCluster.length==0) {
 			throw new ImageException(TIImageTool.langstr("FileNoContent"));
 		}
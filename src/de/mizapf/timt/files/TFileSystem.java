@@ -74,6 +74,24 @@ public abstract class TFileSystem {
 	
 	protected ImageFormat m_Image;
 	
+	/** Allocation policy and its name in the settings */
+	private AllocationPolicy m_policy;
+	private String m_sPolicy;
+	
+	/** Space planned by reserveSpace */
+	private List<Reservation> m_lstReserved = new LinkedList<Reservation>();
+	
+	/** Space planned for the contents of files in a directory, by file 
+		name. */
+	public static class Reservation {
+		Directory m_dir;
+		Map<String,Interval[]> m_plans = new HashMap<String,Interval[]>();
+		
+		Reservation(Directory dir) {
+			m_dir = dir;
+		}
+	}
+	
 	public TFileSystem() {
 	}
 	
@@ -134,137 +152,175 @@ public abstract class TFileSystem {
 		Allocation handling
 	*/
 	
+	/** Finds free space for a file of the given size. The areas are chosen
+		by the allocation policy of the settings, but never more areas than
+		the file information block can hold if this can be avoided. The 
+		space is not allocated.
+		@param nSectors Number of sectors
+		@param nStarting Sector number behind which the space should be
+		found; if there is not enough space, the sectors in front are used
+		@return Intervals of sectors, or null if there is not enough space
+	*/
 	public Interval[] findFreeSpace(int nSectors, int nStarting) {
-		List<Interval> intList = new LinkedList<Interval>();
-		AllocationMap allocMap = (AllocationMap)m_allocMap.clone();
-		Interval intnew;
-		
-		int nStartSector = 0;
-//		System.out.println("find free space for " + nSectors + " sectors, starting from sector " + nStarting);
+		// System.out.println("find free space for " + nSectors + " sectors, starting from sector " + nStarting);
 
 		// If the file is empty, return an empty list
 		if (nSectors == 0)
 			return new Interval[0];
 
-		int nSectorsPerAU = getSectorsPerAU();
+		if (m_allocMap.getMaxAU() < 0) throw new InternalException("Negative max AU in allocation map");
 
-		if (nSectorsPerAU > 1) {
-			if ((nSectors % nSectorsPerAU)!=0) nSectors = ((nSectors/nSectorsPerAU)+1)*nSectorsPerAU;
-		}
-				
-		// Two-Pass search: 
-		// 1. Search a gap that holds as many sectors of the file
-		// as possible
-		// 2. Go greedy, allocate the rest
-		
-		int nAUSize = allocMap.getAUSize();
-		int nRequiredAU = nSectors / nAUSize;
-		
-		int nSize = 0;
-		int nEndAU = 0;
-		// leave some space for the FDIRs
-		int nStartAU = nStarting / nAUSize; 
-		int nMaxSize = 0;
-		int nMaxStart = 0;
-		boolean bFirst = true;
-		
-		if (allocMap.getMaxAU() < 0) throw new InternalException("Negative max AU in allocation map");
+		return planSpace(getFreeExtents(), getRequiredAUs(nSectors), nStarting);
+	}
+	
+	/** Finds free space for the contents of a file. If space has been 
+		reserved for a file of this name and size in the directory, this 
+		space is delivered. Other calls of findFreeSpace never get reserved
+		space.
+	*/
+	public Interval[] findFreeSpace(Directory dir, String sName, int nSectors, int nStarting) {
+		if (nSectors == 0)
+			return new Interval[0];
+
+		int nRequiredAU = getRequiredAUs(nSectors);
+		Interval[] aint = takeReservedSpace(dir, sName, nRequiredAU);
+		if (aint != null) return aint;
+		return findFreeSpace(nSectors, nStarting);
+	}
+	
+	/** Finds free space for several files at once. The files are planned
+		from the largest to the smallest one, so that large files are less 
+		likely to be split. The space is not allocated.
+		@return Intervals for each file in the order of anSectors, or null if
+		not all files fit on the medium
+	*/
+	public Interval[][] findFreeSpace(int[] anSectors, int nStarting) {
+		Interval[][] aaint = new Interval[anSectors.length][];
+		Integer[] anOrder = new Integer[anSectors.length];
+		for (int i=0; i < anOrder.length; i++) anOrder[i] = i;
 		
-		// First pass
-		// If we hit the end of the medium, the first pass fails, and we 
-		// use the second pass to try from the beginning
-		while (nStartAU < allocMap.getMaxAU()) {
-			// System.out.println("nStartAU = " + nStartAU);
-			nStartAU = allocMap.getNextFreeAUAfter(nStartAU); 
-			if (nStartAU == AllocationMap.NOTFOUND) {
-				break;
+		final int[] anSize = anSectors;
+		Arrays.sort(anOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return anSize[b] - anSize[a];
 			}
-			
-			nEndAU = allocMap.getNextAllocatedAUAfter(nStartAU, nRequiredAU);
-			if (nEndAU == AllocationMap.EVENLONGER) nEndAU = nStartAU + nRequiredAU;
-			// System.out.println("open="+nStartAU + ", up to (excluding) =" + nEndAU);
-
-			nSize = nEndAU - nStartAU;
+		});
 
-			if (nSize >= nRequiredAU) {
-				nStartSector = nStartAU * nAUSize;
-				 // System.out.println("Allocated area large enough; interval (sectors) = [" +nStartSector + ", " + (nStartSector + nSectors-1) + "]" );
-				intList.add(new Interval(nStartSector, nStartSector + nSectors-1)); 
-				// we are done; we do not need a second pass
-				return intList.toArray(new Interval[1]);
-			}
-			// else this space does not suffice, continue search
-			
-			// better than last time?
-			if (nSize > nMaxSize) {
-				nMaxSize = nSize;
-				nMaxStart = nStartAU;
+		FreeExtentList free = getFreeExtents();
+		for (int i : anOrder) {
+			if (anSectors[i] == 0) {
+				aaint[i] = new Interval[0];
+				continue;
 			}
-			nStartAU = nEndAU;
+			aaint[i] = planSpace(free, getRequiredAUs(anSectors[i]), nStarting);
+			if (aaint[i] == null) return null;
 		}
-		
-		// System.out.println("Allocated area not large enough; required=" + nRequiredAU + ", found=" + nMaxSize);
-		
-		// If we are here, the largest gap was not large enough. OTOH this 
-		// also means that the gap of AUs that we found can be completely 
-		// filled.
-		
-		// Put largest chunk into list (nMaxStart, nLastMaxAUSize)
-		// If nMaxStart is 0, we reached the end of the medium. Do not add anything to the list.
-		if (nMaxStart != 0) {
-			nStartSector = nMaxStart * nAUSize;
-			// System.out.println("Allocated first part; interval (sectors) = [" +nStartSector + ", " + (nStartSector + (nMaxSize * nAUSize) - 1) + "]" );
-			intnew = new Interval(nStartSector, nStartSector + (nMaxSize * nAUSize) - 1);
-			intList.add(intnew); 
-			allocMap.allocate(intnew);
-			nRequiredAU -= nMaxSize;
-			nSectors -= nMaxSize*nAUSize;
+		return aaint;
+	}
+	
+	/** Plans the space for several files that are about to be inserted 
+		into the directory. When these files are inserted, they get the 
+		planned intervals; all other allocations avoid the planned space. 
+		Space that is already reserved remains reserved. Must be followed by
+		releaseSpace.
+		@return Reservation, or null if not all files fit on the medium; in 
+		that case, nothing is reserved
+	*/
+	public Reservation reserveSpace(Directory dir, String[] asNames, int[] anSectors, int nStarting) {
+		Interval[][] aaint = findFreeSpace(anSectors, nStarting);
+		if (aaint == null) return null;
+		Reservation res = new Reservation(dir);
+		for (int i=0; i < aaint.length; i++) {
+			if (aaint[i].length > 0) res.m_plans.put(asNames[i].trim(), aaint[i]);
 		}
-		
-		// Second pass
-		nStartAU = 1;
-		while (nStartAU < allocMap.getMaxAU()) {
-			nStartAU = allocMap.getNextFreeAUAfter(nStartAU);
-			if (nStartAU==-1) {
-				// System.out.println("No free AU available; failed to find free space.");
-				return null;
-			}
-			// System.out.println("next free = " + nStartAU);
-			
-			if (nStartAU == nMaxStart) {
-				// System.out.println("no, " + nStartAU + " is already chosen");
-				// Skip the largest chunk
-				nStartAU += nMaxSize;
-				// System.out.println("new start = " + nStartAU);
-				continue;
-			}
-			nEndAU = allocMap.getNextAllocatedAUAfter(nStartAU, nRequiredAU);
-			// System.out.println("nStartAU = " + nStartAU + ", nEndAU = " + nEndAU);
-			if (nEndAU==AllocationMap.EVENLONGER) nEndAU = nStartAU + nRequiredAU;
-			
-			nSize = nEndAU - nStartAU;
-			// System.out.println("nSize = " + nSize);
-			nRequiredAU -= nSize;
-			if (nRequiredAU < 0) {
-				// System.err.println("nRequiredAU = " + nRequiredAU);
-				nEndAU = nEndAU + nRequiredAU;
-				nSize = nEndAU - nStartAU;
-				nRequiredAU = 0;
+		m_lstReserved.add(res);
+		return res;
+	}
+	
+	/** Drops the remaining space of the reservation. */
+	public void releaseSpace(Reservation res) {
+		m_lstReserved.remove(res);
+	}
+	
+	/** Maximum number of intervals in a file information block */
+	int getMaxIntervals() {
+		return Integer.MAX_VALUE;
+	}
+	
+	private int getRequiredAUs(int nSectors) {
+		int nSectorsPerAU = getSectorsPerAU();
+		if (nSectorsPerAU > 1) {
+			if ((nSectors % nSectorsPerAU)!=0) nSectors = ((nSectors/nSectorsPerAU)+1)*nSectorsPerAU;
+		}
+		return nSectors / m_allocMap.getAUSize();
+	}
+	
+	/** Returns the free areas of the medium without the reserved space.
+		AU 0 is never used for files. */
+	private FreeExtentList getFreeExtents() {
+		FreeExtentList free = new FreeExtentList(m_allocMap, 1);
+		int nAUSize = m_allocMap.getAUSize();
+		for (Reservation res : m_lstReserved) {
+			for (Interval[] aint : res.m_plans.values()) {
+				for (Interval intv : aint) {
+					free.remove(intv.start / nAUSize, intv.length() / nAUSize);
+				}
 			}
-			// System.out.println("Allocated another part; interval (sectors) =  [" +nStartAU*nAUSize + ", " +  ((nStartAU+nSize)*nAUSize-1) + "]" );
-			intnew = new Interval(nStartAU * nAUSize, (nStartAU+nSize)*nAUSize-1);
-			intList.add(intnew); 
-			// System.out.println("Still needed: " + nRequiredAU);
-			nStartAU = nEndAU;
-			if (nRequiredAU <= 0) {
-				// we are done
-				return intList.toArray(new Interval[intList.size()]);
+		}
+		return free;
+	}
+	
+	/** Delivers the space reserved for the file if it has the given size
+		and its AUs are still free. The plan of the file is dropped in any 
+		case. */
+	private Interval[] takeReservedSpace(Directory dir, String sName, int nRequiredAU) {
+		if (sName == null) return null;
+		int nAUSize = m_allocMap.getAUSize();
+		for (Reservation res : m_lstReserved) {
+			if (res.m_dir != dir) continue;
+			Interval[] aint = res.m_plans.remove(sName.trim());
+			if (aint == null) continue;
+			int nSize = 0;
+			for (Interval intv : aint) {
+				nSize += intv.length() / nAUSize;
+				if (m_allocMap.findBit(intv.start / nAUSize, intv.end / nAUSize + 1, true) != AllocationMap.NOTFOUND) 
+					return null;
 			}
+			return (nSize == nRequiredAU)? aint : null;
 		}
-		// If we are here, we failed in the second pass.
 		return null;
 	}
 	
+	/** Chooses the space by the allocation policy. If the result has too
+		many intervals, the file is put into the largest areas instead. The
+		chosen space is removed from the list of free areas. */
+	private Interval[] planSpace(FreeExtentList free, int nRequiredAU, int nStarting) {
+		int nAUSize = m_allocMap.getAUSize();
+		// Leave some space for the FDIRs
+		int nFirstAU = nStarting / nAUSize + 1;
+		
+		FreeExtentList plan = new FreeExtentList(free);
+		Interval[] aint = getAllocationPolicy().place(plan, nRequiredAU, nFirstAU, nAUSize);
+		if (aint != null && aint.length > getMaxIntervals()) {
+			// System.out.println("Too many intervals (" + aint.length + "), using the largest areas");
+			plan = new FreeExtentList(free);
+			aint = AllocationPolicy.placeLargest(plan, nRequiredAU, nAUSize);
+		}
+		if (aint != null) free.set(plan);
+		return aint;
+	}
+	
+	/** Gets the allocation policy of the settings. The policy object is kept
+		as long as the setting does not change, since it may have a state. */
+	private AllocationPolicy getAllocationPolicy() {
+		String sPolicy = ImageFormat.getStringSetting(TIImageTool.ALLOCPOLICY, AllocationPolicy.LARGEST);
+		if (m_policy == null || !sPolicy.equals(m_sPolicy)) {
+			m_policy = AllocationPolicy.forName(sPolicy);
+			m_sPolicy = sPolicy;
+		}
+		return m_policy;
+	}
+	
 	public int getAllocatedSectorCount() {
 		return m_allocMap.countAllocated() * getSectorsPerAU();
 	}
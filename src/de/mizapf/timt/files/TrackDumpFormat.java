@@ -67,10 +67,15 @@ class TrackDumpFormat extends FloppyImageFormat {
 	/** Format index */
 	private int m_nFormatIndex;	
 	
-	static int vote(String sFile) throws IOException {
+	static final FormatDetector DETECTOR = new FormatDetector() {
+		public int vote(ImageProbe probe) throws IOException {
+			return TrackDumpFormat.vote(probe);
+		}
+	};
+	
+	static int vote(ImageProbe probe) throws IOException {
 
-		File fl = new File(sFile);
-		long nLength = fl.length();
+		long nLength = probe.getLength();
 
 		// File system size must be less than 3 MB
 		if (nLength==0 || nLength > 3000000) return 0;
@@ -345,6 +350,11 @@ class TrackDumpFormat extends FloppyImageFormat {
 		prepareNewImage(params);
 	}
 
+	@Override
+	FormatCodec createCodec() {
+		return new TrackDumpCodec();
+	}
+	
 	/** Prepare an empty image. The TrackDumpFormat has no additional data
 		outside of its format units. */
     @Override
@@ -118,6 +118,18 @@ public class Volume {
 		// System.out.println("readSector " + nSectorNumber);
 		return m_Image.readSector(nSectorNumber);
 	}
+	
+	/** Reads the given sectors in one pass over the image. Sectors that 
+		cannot be read are delivered as null. */
+	public Sector[] readSectors(int[] anSector) throws IOException {
+		return m_Image.readSectors(anSector);
+	}
+	
+	/** Reads the sectors of the intervals into the buffer, one interval after
+		the other. */
+	public void readSectors(Interval[] aint, byte[] dest, int nOffset) throws IOException, ImageException {
+		m_Image.readSectors(aint, dest, nOffset);
+	}
 		
 	// Called from Directory, TFile, this
 	void writeSector(Sector sect) throws ProtectedException {
@@ -275,6 +287,12 @@ public class Volume {
 	public Directory getRootDirectory() {
 		return m_FileSystem.getRootDirectory();
 	}
+	
+	/** Reads all directories and files of the volume. Subdirectories of
+		harddisk volumes are otherwise read when they are first used. */
+	public void loadTree() throws IOException, ImageException {
+		getRootDirectory().loadAll();
+	}
 
 	public TFile getFileByPath(String sArgument) throws FileNotFoundException {
 		// We assume that the path is built by path.path.path.file
@@ -313,6 +331,32 @@ public class Volume {
 	public Interval[] findFreeSpace(int nSectors, int nStarting) {
 		return m_FileSystem.findFreeSpace(nSectors, nStarting);
 	}
+	
+	/** Returns the space for the contents of a file that is inserted into
+		the directory. Delivers the reserved space for this file if 
+		available. */
+	Interval[] findFreeSpace(Directory dir, String sName, int nSectors, int nStarting) {
+		return m_FileSystem.findFreeSpace(dir, sName, nSectors, nStarting);
+	}
+	
+	/** Plans the space for the contents of several files that are inserted
+		into the directory one after another, so that each file gets the 
+		space planned for it. Must be followed by releaseSpace.
+		@param asNames Names of the files
+		@param anSectors Number of sectors of each file
+	*/
+	public TFileSystem.Reservation reserveSpace(Directory dir, String[] asNames, int[] anSectors) {
+		return m_FileSystem.reserveSpace(dir, asNames, anSectors, getReservedAUs() * getAUSize());
+	}
+	
+	public void releaseSpace(TFileSystem.Reservation res) {
+		m_FileSystem.releaseSpace(res);
+	}
+	
+	/** Maximum number of intervals that a file may consist of */
+	int getMaxIntervals() {
+		return m_FileSystem.getMaxIntervals();
+	}
 
 	// From CommandShell
 	public int getSystemAllocatedSectors() {
@@ -405,10 +449,31 @@ public class Volume {
 		return m_Image.redoPossible();
 	}
 	
+	public boolean undoPossible() {
+		return m_Image.undoPossible();
+	}
+	
 	public void rollback() {
 		m_Image.rollback();
 	}
 	
+	/** Opens the undo journal of the image file.
+		@return true if there are unsaved changes from a previous session
+	*/
+	public boolean openJournal() throws IOException {
+		if (!(m_Image instanceof FileImageFormat)) return false;
+		return ((FileImageFormat)m_Image).openJournal();
+	}
+	
+	/** Restores or discards the unsaved changes from a previous session. */
+	public void recoverJournal(boolean bRecover) throws IOException, ImageException {
+		((FileImageFormat)m_Image).recoverJournal(bRecover);
+		if (bRecover) {
+			buildTree();
+			readAllocationMap();
+		}
+	}
+	
 	// Called from SaveImageAction
 	/** Save all modified sectors to the image. A sector is modified 
 		when the cache has an entry of it, or when the cache has never been
@@ -425,14 +490,30 @@ public class Volume {
 	
 	/** Write all sectors to the new image. */
 	public void saveNewImage(FileImageFormat newImage) throws FileNotFoundException, IOException, ImageException {
+		saveNewImage(newImage, Runtime.getRuntime().availableProcessors(), null);
+	}
+	
+	/** Saves the volume to the new image, which then becomes the image of 
+		this volume.
+		@return false if the conversion was cancelled; the volume remains on
+		the old image
+	*/
+	public boolean saveNewImage(FileImageFormat newImage, int nThreads, FileImageFormat.Progress progress) throws FileNotFoundException, IOException, ImageException {
 		// Get the format (includes preparing the image) 
 		//newImage.setFileSystem(m_FileSystem);
 		// System.out.println("Save new image");
-		newImage.saveImageFromOld(m_Image);
+		if (!newImage.saveImageFromOld(m_Image, nThreads, progress)) {
+			newImage.close();
+			return false;
+		}
 		m_FileSystem.setImage(newImage);
 		
+		// The changes now belong to the new image
+		if (m_Image instanceof FileImageFormat) ((FileImageFormat)m_Image).deleteJournal();
 		m_Image = newImage;
+		newImage.startJournal();
 		// System.out.println(newImage.getClass().getName());
+		return true;
 	}
 		
 	public boolean isMemoryImage() {
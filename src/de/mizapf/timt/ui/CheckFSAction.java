@@ -54,6 +54,19 @@ public class CheckFSAction extends Activity {
 		DirectoryView dv = imagetool.getSelectedView();
 		Volume vol = dv.getVolume();
 		JCheckBox cb = null;
+		
+		// Directories are read on first use; the check needs all of them
+		try {
+			vol.loadTree();
+		}
+		catch (IOException iox) {
+			JOptionPane.showMessageDialog(m_parent, TIImageTool.langstr("IOError") + ": " + iox.getMessage(), TIImageTool.langstr("ReadError"), JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		catch (ImageException ix) {
+			JOptionPane.showMessageDialog(m_parent, TIImageTool.langstr("ImageError") + ": " + ix.getMessage(), TIImageTool.langstr("ReadError"), JOptionPane.ERROR_MESSAGE);
+			return;
+		}
 				
 		/* Part 0: Check CF7 inconsistency */
 		if (vol.isCF7Volume()) {
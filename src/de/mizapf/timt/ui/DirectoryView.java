@@ -522,7 +522,7 @@ public class DirectoryView implements WindowListener, ActionListener, MouseListe
 			if (!dirCurrent.isRootDirectory()) bDirPossible = false;
 			if (dirCurrent.getDirectories().length>2) bDirPossible = false;
 		}			
-		boolean bUndo = getVolume().isModified() && !getVolume().isNew();
+		boolean bUndo = getVolume().isModified() && !getVolume().isNew() && getVolume().undoPossible();
 		boolean bRedo = getVolume().redoPossible();
 		boolean bClipboard = m_app.clipboardNotEmpty();	
 		m_mEdit.activateMenuItems(bUndo, bRedo, true, bDirPossible, bClipboard, m_app.offersSerialConnection(), getVolume().isHFDCImage());
@@ -192,6 +192,15 @@ public class OpenImageAction extends Activity {
 						JOptionPane.showMessageDialog(m_parent, TIImageTool.langstr("ImageFWP"), TIImageTool.langstr("Warning"), JOptionPane.WARNING_MESSAGE);
 					}
 					
+					image.setCheckpoint();      // req
+					vol.nextGeneration(true);   // req
+					
+					// Unsaved changes from a previous session
+					if (!vol.isReadOnly() && vol.openJournal()) {
+						int nRet = JOptionPane.showConfirmDialog(m_parent, TIImageTool.langstr("JournalRecover"), TIImageTool.langstr("Attention"), JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+						vol.recoverJournal(nRet == JOptionPane.YES_OPTION);
+					}
+					
 					Directory root = vol.getRootDirectory();	
 					// ============== 
 					
@@ -199,8 +208,6 @@ public class OpenImageAction extends Activity {
 					
 					// Add a tab and show the root directory.
 					imagetool.addDirectoryView(root);
-					image.setCheckpoint();      // req
-					vol.nextGeneration(true);   // req
 				}
 			}
 			catch (ImageException ix) {
@@ -344,10 +344,28 @@ public class PasteAction extends Activity {
 			}
 
 			if (sError == null) {
+				TFileSystem.Reservation reserved = null;
 				try {
 					boolean bAbort = false;
 					String sImportName = null;
 
+					// Plan the space for the files at once; copying a directory
+					// plans its own files
+					int nFiles = 0;
+					for (Element el : list) {
+						if (el instanceof TFile) nFiles++;
+					}
+					int[] anSectors = new int[nFiles];
+					String[] asNames = new String[nFiles];
+					nFiles = 0;
+					for (Element el : list) {
+						if (el instanceof TFile) {
+							asNames[nFiles] = el.getName();
+							anSectors[nFiles++] = ((TFile)el).getUsedSectors();
+						}
+					}
+					reserved = volTarget.reserveSpace(dirTarget, asNames, anSectors);
+
 					for (Element el : list) {
 						// System.out.println("Element " + el);
 
@@ -502,6 +520,9 @@ public class PasteAction extends Activity {
 				catch (ProtectedException px) {
 					JOptionPane.showMessageDialog(dvCurrent.getFrame(), px.getMessage(), TIImageTool.langstr("PasteError"), JOptionPane.ERROR_MESSAGE); 
 				}	
+				finally {
+					volTarget.releaseSpace(reserved);
+				}
 				imagetool.refresh(null);				
 			}
 		}
@@ -530,38 +551,54 @@ public class PasteAction extends Activity {
 		// All files from dir
 		TFile[] files = dir.getFiles();
 		boolean bAbort = false;
-		for (int i=0; i < files.length && !bAbort; i++) {
-			TFile file = files[i];
-			TIFiles tif = TIFiles.createFromFile(file);
-			String sImportName = null;
-			boolean bRetry = false;
-			do {
-				boolean bNewName = false;
-				try {
-					dirNew.insertFile(tif.toByteArray(), sImportName, false);
-					bRetry = false;
-				}
-				catch (FileExistsException fex) {
-					bNewName = true;
-				}
-				catch (InvalidNameException fex) {
-					bNewName = true;
-				}
-				if (bNewName) {
-					bRetry = true;
-					sImportName = getAlternativeName(true, file.getName(), dvTarget.getFrame());
-					if (sImportName.equals(NAME_SKIP)) {
-						bRetry = false; // skip
-						sImportName = null;
+
+		// Plan the space for all files at once
+		int[] anSectors = new int[files.length];
+		String[] asNames = new String[files.length];
+		for (int i=0; i < files.length; i++) {
+			asNames[i] = files[i].getName();
+			anSectors[i] = files[i].getUsedSectors();
+		}
+		Volume volTarget = dirNew.getVolume();
+		TFileSystem.Reservation reserved = volTarget.reserveSpace(dirNew, asNames, anSectors);
+
+		try {
+			for (int i=0; i < files.length && !bAbort; i++) {
+				TFile file = files[i];
+				TIFiles tif = TIFiles.createFromFile(file);
+				String sImportName = null;
+				boolean bRetry = false;
+				do {
+					boolean bNewName = false;
+					try {
+						dirNew.insertFile(tif.toByteArray(), sImportName, false);
+						bRetry = false;
+					}
+					catch (FileExistsException fex) {
+						bNewName = true;
+					}
+					catch (InvalidNameException fex) {
+						bNewName = true;
 					}
-					else {		
-						if (sImportName.equals(NAME_ABORT)) {
-							bAbort = true;
+					if (bNewName) {
+						bRetry = true;
+						sImportName = getAlternativeName(true, file.getName(), dvTarget.getFrame());
+						if (sImportName.equals(NAME_SKIP)) {
+							bRetry = false; // skip
 							sImportName = null;
 						}
+						else {		
+							if (sImportName.equals(NAME_ABORT)) {
+								bAbort = true;
+								sImportName = null;
+							}
+						}
 					}
-				}
-			} while (bRetry && !bAbort);
+				} while (bRetry && !bAbort);
+			}
+		}
+		finally {
+			volTarget.releaseSpace(reserved);
 		}
 		dirNew.commit(false);
 		
@@ -130,7 +130,37 @@ public class SaveAsImageAction extends Activity {
 						throw new InternalException(TIImageTool.langstr("ImageUnknown") + ": " + ImageFormat.suffix[sd.getImageType()]);
 					}
 					
-					vol.saveNewImage(newImage);
+					final ProgressMonitor monitor = new ProgressMonitor(m_parent, TIImageTool.langstr("SaveAsProgress"), selectedFile.getName(), 0, 100);
+					FileImageFormat.Progress progress = new FileImageFormat.Progress() {
+						public boolean update(int nDone, int nTotal) {
+							final int nPercent = (int)(100L * nDone / nTotal);
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									monitor.setProgress(nPercent);
+								}
+							});
+							return !monitor.isCanceled();
+						}
+					};
+					
+					boolean bDone = false;
+					try {
+						bDone = vol.saveNewImage(newImage, Runtime.getRuntime().availableProcessors(), progress);
+					}
+					finally {
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								monitor.close();
+							}
+						});
+					}
+					if (!bDone) {
+						// The incomplete image is not kept
+						selectedFile.delete();
+						m_parent.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+						return;
+					}
+					
 					imagetool.addRecent(selectedFile.getAbsolutePath());
 					imagetool.refreshAllViews();
 					
@@ -24,13 +24,17 @@ import javax.swing.*;
 import java.awt.event.KeyEvent;
 import de.mizapf.timt.TIImageTool;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import de.mizapf.timt.files.*;
 import java.awt.Cursor;
 import java.util.regex.*;
 import de.mizapf.timt.util.NotImplementedException;
+import de.mizapf.timt.util.ContentMatcher;
 
 public class SearchAction extends Activity {
 
@@ -40,11 +44,35 @@ public class SearchAction extends Activity {
 	boolean m_searchSubdir;
 	SearchProgressView m_view;
 	boolean m_useRegex;
-	int m_count = 0;
+	AtomicInteger m_count;
 	Pattern m_pattern;
+	boolean m_ignoreCase;
+	
+	/** Words to search if not using regular expressions */
+	String[] m_terms;
+	ContentMatcher m_matcher;
 	int m_maxhits = 0;
 	boolean m_searchContents;
 	boolean m_searchDate;
+	boolean m_useIndex;
+	SearchIndex m_index;
+	long m_indexModified;
+	
+	/** Images are searched in parallel; the results of each image are 
+		handed over to the action thread in one piece. */
+	ExecutorService m_pool;
+	BlockingQueue<SearchResult[]> m_results;
+	
+	/** Number of unfinished tasks; DONE is queued when it drops to 0 */
+	AtomicInteger m_pending;
+	
+	/** Images opened in the tool; searched by the action thread */
+	List<File> m_openedImages;
+	
+	private final static SearchResult[] DONE = new SearchResult[0];
+	
+	/** Number of queued results of images before the workers have to wait */
+	private final static int MAXQUEUE = 256;
 		
 	public int getKeyCode() {
 		return KeyEvent.VK_F;
@@ -66,8 +94,6 @@ public class SearchAction extends Activity {
 		sd.setVisible(true);
 		
 		if (sd.confirmed()) {
-			ArrayList<File> allfiles = new ArrayList<File>();
-
 			m_searchString = sd.getSearchString().trim();
 			if (m_searchString.length()==0 || sd.getSelectedFiles()==null) {
 				m_parent.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
@@ -77,8 +103,10 @@ public class SearchAction extends Activity {
 			m_searchArchives = sd.searchArchives();
 			m_searchSubdir = sd.searchSubdirectories();
 			m_useRegex = sd.isRegex();
+			m_ignoreCase = sd.ignoreCase();
 			m_searchContents = sd.searchInsideFiles();
 			m_searchDate = sd.searchFileDate();
+			m_useIndex = sd.useIndex();
 
 			try {
 				m_maxhits = sd.getMaximumHits();
@@ -90,7 +118,7 @@ public class SearchAction extends Activity {
 			
 			if (m_useRegex) {
 				try {				
-					m_pattern = Pattern.compile(m_searchString);
+					m_pattern = Pattern.compile(m_searchString, m_ignoreCase? Pattern.CASE_INSENSITIVE : 0);
 				}
 				catch (PatternSyntaxException psx) {
 					JOptionPane.showMessageDialog(m_parent, TIImageTool.langstr("SearchInvalidRegex"), TIImageTool.langstr("SearchError"), JOptionPane.ERROR_MESSAGE);
@@ -102,36 +130,102 @@ public class SearchAction extends Activity {
 					return;
 				}
 			}
+			else {
+				if (sd.anyWord()) m_terms = m_searchString.split("\\s+");
+				else m_terms = new String[] { m_searchString };
+				m_matcher = ContentMatcher.create(m_terms, m_ignoreCase);
+			}
 			
-			m_count = 0;
+			m_count = new AtomicInteger(0);
 			m_parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 			
-			for (File f : sd.getSelectedFiles()) collectFiles(f, allfiles, false);
-			
-			ArrayList<SearchResult> list = new ArrayList<SearchResult>();
-			
 			m_view = new SearchProgressView(TIImageTool.langstr("Searching"), m_parent);
 			m_view.createGui(imagetool.boldFont);
 			m_view.setVisible(true);
 			
-			for (File image : allfiles) {
+			if (m_useIndex) loadIndex();
+
+			SearchResultFrame frame = imagetool.showSearchResult(TIImageTool.langstr("SearchResults"));
+			
+			m_pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			m_results = new ArrayBlockingQueue<SearchResult[]>(MAXQUEUE);
+			m_openedImages = Collections.synchronizedList(new ArrayList<File>());
+
+			// The extra task is finished when all walks have been started,
+			// so that the search does not end before
+			m_pending = new AtomicInteger(1);
+			for (File f : sd.getSelectedFiles()) walk(f, false);
+			taskDone();
+			
+			try {
+				SearchResult[] result = m_results.take();
+				while (result != DONE) {
+					frame.addResults(result);
+					result = m_results.take();
+				}
+			}
+			catch (InterruptedException ix) {
+				ix.printStackTrace();
+			}
+			m_pool.shutdownNow();
+			
+			// Opened images are only accessed by this thread
+			for (File image : m_openedImages) {
+				List<SearchResult> list = new ArrayList<SearchResult>();
 				search(image, list);
+				if (list.size() > 0) frame.addResults(list.toArray(new SearchResult[list.size()]));
 			}
+			frame.searchFinished();
+			
+			if (m_useIndex) saveIndex();
 			
 			if (m_view.stopRequested()) System.out.println(TIImageTool.langstr("SearchStop"));
-			if (m_count >=m_maxhits) System.out.println(TIImageTool.langstr("SearchMaxReached"));
+			if (m_count.get() >= m_maxhits) System.out.println(TIImageTool.langstr("SearchMaxReached"));
 			
-			SearchResult[] result = new SearchResult[list.size()];
-			list.toArray(result);
-			imagetool.showSearchResult(TIImageTool.langstr("SearchResults"), result); 
 			m_view.dispose();
 		}
 		m_parent.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
 	}
 	
-	private void collectFiles(File filedir, ArrayList<File> filelist, boolean nextlevel) {
+	private boolean stopped() {
+		return m_view.stopRequested() || m_count.get() >= m_maxhits;
+	}
+	
+	private void taskDone() {
+		if (m_pending.decrementAndGet()==0) {
+			try {
+				m_results.put(DONE);
+			}
+			catch (InterruptedException ix) {
+				ix.printStackTrace();
+			}
+		}
+	}
+	
+	/** Starts a task that collects the image files of the directory. */
+	private void walk(final File filedir, final boolean nextlevel) {
+		m_pending.incrementAndGet();
+		m_pool.execute(new Runnable() {
+			public void run() {
+				try {
+					if (!stopped()) collectFiles(filedir, nextlevel);
+				}
+				finally {
+					taskDone();
+				}
+			}
+		});
+	}
+	
+	private void collectFiles(File filedir, boolean nextlevel) {
 		if (filedir.isDirectory() && (!nextlevel || m_searchSubdir)) {
-			for (File child : filedir.listFiles()) collectFiles(child, filelist, true);
+			File[] children = filedir.listFiles();
+			if (children == null) return;
+			for (File child : children) {
+				// Subdirectories are walked by their own tasks
+				if (child.isDirectory() && m_searchSubdir) walk(child, true);
+				else collectFiles(child, true);
+			}
 		}
 		else {
 			boolean found = false;
@@ -142,35 +236,124 @@ public class SearchAction extends Activity {
 					break;
 				}
 			}
-			if (found) filelist.add(filedir);
+			if (found) scan(filedir);
+		}
+	}
+	
+	/** Starts a task that searches the image file. */
+	private void scan(final File imagefile) {
+		if (imagetool.hasAlreadyOpenedVolume(imagefile.getAbsolutePath())) {
+			m_openedImages.add(imagefile);
+			return;
+		}
+		m_pending.incrementAndGet();
+		m_pool.execute(new Runnable() {
+			public void run() {
+				try {
+					List<SearchResult> list = new ArrayList<SearchResult>();
+					search(imagefile, list);
+					if (list.size() > 0) m_results.put(list.toArray(new SearchResult[list.size()]));
+				}
+				catch (InterruptedException ix) {
+					// Search has been cancelled
+				}
+				finally {
+					taskDone();
+				}
+			}
+		});
+	}
+	
+	/** Adds a result if the maximum number has not been reached yet.
+		@return false if the maximum is reached
+	*/
+	private boolean addResult(List<SearchResult> list, String image, String path) {
+		int count = m_count.incrementAndGet();
+		if (count > m_maxhits) return false;
+		list.add(new SearchResult(image, path, m_searchString));
+		m_view.setResultCount(count);
+		return true;
+	}
+	
+	/** Loads the search index. The index is kept in memory for the next 
+		searches, but loaded again when the index file has been changed 
+		by another instance. */
+	private void loadIndex() {
+		File fileIndex = new File(settings.getPropertyString(TIImageTool.SEARCHINDEX));
+		if (m_index != null && fileIndex.lastModified() == m_indexModified) return;
+		m_index = new SearchIndex(fileIndex);
+		try {
+			m_index.load();
+		}
+		catch (IOException iox) {
+			System.err.println(TIImageTool.langstr("SearchIndexError") + ": " + iox.getMessage());
+		}
+		m_indexModified = fileIndex.lastModified();
+	}
+	
+	private void saveIndex() {
+		File fileIndex = new File(settings.getPropertyString(TIImageTool.SEARCHINDEX));
+		try {
+			m_index.save();
 		}
+		catch (IOException iox) {
+			System.err.println(TIImageTool.langstr("SearchIndexError") + ": " + iox.getMessage());
+		}
+		m_indexModified = fileIndex.lastModified();
 	}
 	
-	private void search(File imagefile, ArrayList<SearchResult> list) {
+	private void search(File imagefile, List<SearchResult> list) {
 		Volume vol = null;
 		boolean bOpened = false;
 		
+		if (stopped()) return;
+		
 		try {
 			String sAbsFile = imagefile.getAbsolutePath();  
-			FileImageFormat image = (FileImageFormat)ImageFormat.getImageFormat(sAbsFile);
-
-			System.out.println("Searching image " + sAbsFile);
-
+			
+			// Opened images may have unsaved changes, so they are always
+			// searched directly
 			if (imagetool.hasAlreadyOpenedVolume(sAbsFile)) {
+				System.out.println("Searching image " + sAbsFile);
 				vol = imagetool.getAlreadyOpenedVolume(sAbsFile);
 			}
-			else {			
+			else {
+				if (m_useIndex) {
+					SearchIndex.ImageEntry ie = m_index.getCurrent(imagefile);
+					if (ie != null) {
+						m_view.setFilename(sAbsFile);
+						if (!searchIndex(ie, list)) return;
+					}
+				}
+				System.out.println("Searching image " + sAbsFile);
+				FileImageFormat image = null;
+				try {
+					image = (FileImageFormat)ImageFormat.getImageFormat(sAbsFile);
+				}
+				catch (ImageException ix) {
+					// Not an image or an unknown format; remember it
+					if (m_useIndex && m_index.getCurrent(imagefile) == null) m_index.update(imagefile, null);
+					return;
+				}
 				vol = openImage(image);
-				if (vol == null) return;
+				if (vol == null) {
+					// Unsupported image; remember it
+					image.close();
+					if (m_useIndex && m_index.getCurrent(imagefile) == null) m_index.update(imagefile, null);
+					return;
+				}
 				bOpened = true;
 			}
 
 			m_view.setFilename(imagefile.getAbsolutePath());
-			if (!m_view.stopRequested() && m_count < m_maxhits) {
+			if (!stopped()) {
+				vol.loadTree();
 				searchDir(vol.getRootDirectory(), list);
+				// Only images whose tree could be read completely are indexed;
+				// loadTree fails for damaged directories
+				if (bOpened && m_useIndex && !stopped() && m_index.getCurrent(imagefile) == null) 
+					m_index.update(imagefile, vol);
 			}
-
-			if (bOpened) vol.close();
 		}
 		catch (IOException iox) {
 			iox.printStackTrace();
@@ -178,10 +361,40 @@ public class SearchAction extends Activity {
 		catch (ImageException ix) {
 			ix.printStackTrace();
 		}
+		finally {
+			try {
+				if (bOpened) vol.close();
+			}
+			catch (IOException iox) {
+				iox.printStackTrace();
+			}
+		}
+	}
+	
+	/** Searches the image by its index entry.
+		@return true if the image must be searched nevertheless; this is the
+		case for content searches that the index cannot rule out
+	*/
+	private boolean searchIndex(SearchIndex.ImageEntry ie, List<SearchResult> list) {
+		if (m_searchContents) {
+			return m_useRegex || SearchIndex.mayContain(ie, m_terms, m_ignoreCase);
+		}
+		for (SearchIndex.FileEntry fe : ie.files) {
+			if (stopped()) break;
+			if (fe.inArchive() && !m_searchArchives) continue;
+			String candidate = m_searchDate? fe.date : fe.name;
+			boolean found = m_useRegex? m_pattern.matcher(candidate).matches() : m_matcher.find(candidate);
+			if (found && !addResult(list, ie.path, fe.path)) break;
+		}
+		return false;
 	}
 	
 	// Simplified version of OpenImageAction.open 
-	private Volume openImage(FileImageFormat image) {
+	/** Opens the volume of the image.
+		@return Volume, or null if the image is not supported
+		@throws IOException if the image cannot be read
+	*/
+	private Volume openImage(FileImageFormat image) throws IOException {
 		
 		Volume vol = null;
 		try {
@@ -212,9 +425,8 @@ public class SearchAction extends Activity {
 		}
 		catch (ImageException ix) {
 		}
-		catch (FileNotFoundException fnfx) {
-		}
 		catch (IOException iox) {
+			throw iox;
 		}
 		catch (NumberFormatException nfx) {
 		}
@@ -224,23 +436,20 @@ public class SearchAction extends Activity {
 		return vol;
 	}
 	
-	private void searchDir(Directory dir, ArrayList<SearchResult> list) {
+	private void searchDir(Directory dir, List<SearchResult> list) {
 		for (TFile tf : dir.getFiles()) {		
-			if (m_view.stopRequested() || m_count >= m_maxhits) break;
+			if (stopped()) break;
+			boolean found = false;
 			if (m_useRegex) {
 				Matcher m = m_pattern.matcher(getCandidateString(tf));
-				if (m.matches()) {
-					list.add(new SearchResult(dir.getVolume().getImageName(), tf.getPathname(), m_searchString));
-					m_view.setResultCount(++m_count);
-				}
+				found = m.matches();
 			}
 			else {
 				// System.out.println(m_count + " - " + tf.getPathname());
-				if (getCandidateString(tf).contains(m_searchString)) {
-					list.add(new SearchResult(dir.getVolume().getImageName(), tf.getPathname(), m_searchString));
-					m_view.setResultCount(++m_count);
-				}
+				if (m_searchContents) found = contentMatches(tf);
+				else found = m_matcher.find(getCandidateString(tf).toString());
 			}
+			if (found && !addResult(list, dir.getVolume().getImageName(), tf.getPathname())) break;
 			
 			if (m_searchArchives && tf.hasArchiveFormat()) {
 				try {
@@ -261,36 +470,37 @@ public class SearchAction extends Activity {
 				}
 			}
 		}
-		if (m_view.stopRequested() || m_count >=m_maxhits) return;
+		if (stopped()) return;
 		for (Directory sdir : dir.getDirectories()) {
-			if (m_view.stopRequested() || m_count >=m_maxhits) return;
+			if (stopped()) return;
 			searchDir(sdir, list);
 		}
 	}
 	
-	private String getCandidateString(TFile tf) {
-		String res = null;
+	/** Searches the words in the contents of the file. The contents are 
+		searched in place, including the sector boundaries. */
+	private boolean contentMatches(TFile tf) {
+		try {
+			byte[] content = tf.getSectorContent();
+			return m_matcher.find(content, 0, content.length);
+		}
+		catch (IOException iox) {
+			return false;
+		}
+		catch (ImageException ix) {
+			return false;
+		}
+	}
+	
+	private CharSequence getCandidateString(TFile tf) {
+		CharSequence res = null;
 		if (m_searchDate) {
-			Time tm = tf.getUpdateTime();
-			String time = tm.toString();
-			if (time.length()==0) {
-				tm = tf.getCreationTime();
-				time = tm.toString();
-				if (time.length()==0) time = "none";
-			}				
-			res = time;
+			res = SearchIndex.getDate(tf);
 		}
 		else {
 			if (m_searchContents) {
 				try {
-					StringBuilder sb = new StringBuilder();
-					byte[] content = tf.getSectorContent();
-					for (int i=0; i < content.length; i++) {
-						int cont = content[i] & 0xff;
-						if (cont >= 32 && cont < 127) sb.append((char)cont);
-						else sb.append(" ");
-					}
-					res = sb.toString();
+					res = ContentMatcher.toCharSequence(tf.getSectorContent());
 				}
 				catch (IOException iox) {
 					res = " ";
@@ -30,8 +30,11 @@ import java.util.ArrayList;
 class SearchDialog extends ToolDialog {
 
 	JCheckBox m_chbRegex;
+	JCheckBox m_chbIgnoreCase;
+	JCheckBox m_chbAnyWord;
 	JCheckBox m_chbSubdir;
 	JCheckBox m_chbArchives;
+	JCheckBox m_chbIndex;
 	JTextField m_tfSearchString;
 	JRadioButton m_jrSearchFile;
 	JRadioButton m_jrSearchContent;
@@ -56,6 +59,8 @@ class SearchDialog extends ToolDialog {
 
 		Search text			___________
 		Regular expression [ ]
+		Ignore case [ ]
+		Find any of the words [ ]
 		
 		Search file names    (x)   file contents ( )   file dates ( ) 
 		
@@ -65,13 +70,14 @@ class SearchDialog extends ToolDialog {
 		Limit to extensions [...]
 		
 		Maximum hits [...]
+		Use the search index [x]
 				
 				+-------+			+-----------+
 				|	OK	|			|	Cancel	|
 				+-------+           +-----------+
 */	
 		prepareGui();
-		String[] texts = { "SearchText", "SearchRegex", "SearchFor", "SearchArchives", "SearchPath", "SearchSubdir", "SearchMax" };
+		String[] texts = { "SearchText", "SearchRegex", "SearchIgnoreCase", "SearchAnyWord", "SearchFor", "SearchArchives", "SearchPath", "SearchSubdir", "SearchMax", "SearchUseIndex" };
 		
 /*		int nColumnWidth = 0;
 		for (String stext : texts) {
@@ -83,6 +89,8 @@ class SearchDialog extends ToolDialog {
 		m_tfSearchString = putTextField(this, TIImageTool.langstr("SearchText"), "", nColumnWidth, 0); 
 
 		m_chbRegex = putCheckBox(this, TIImageTool.langstr("SearchRegex"), false, nColumnWidth);
+		m_chbIgnoreCase = putCheckBox(this, TIImageTool.langstr("SearchIgnoreCase"), false, nColumnWidth);
+		m_chbAnyWord = putCheckBox(this, TIImageTool.langstr("SearchAnyWord"), false, nColumnWidth);
 		add(Box.createVerticalStrut(10));
 		
 		int[] anFormat = new int[3];
@@ -112,6 +120,7 @@ class SearchDialog extends ToolDialog {
 		m_tfValidExtensions = putTextField(this, TIImageTool.langstr("SearchLimit"), ".dsk,.dtk,.hfe,.hd", nColumnWidth, 0); 
 		m_chbSubdir = putCheckBox(this, TIImageTool.langstr("SearchSubdir"), false, nColumnWidth);
 		m_tfMaxHits = putTextField(this, TIImageTool.langstr("SearchMax"), "1000", nColumnWidth, 0); 
+		m_chbIndex = putCheckBox(this, TIImageTool.langstr("SearchUseIndex"), true, nColumnWidth);
 		
 		add(Box.createVerticalGlue());
 
@@ -173,6 +182,15 @@ class SearchDialog extends ToolDialog {
 		return m_chbRegex.isSelected();
 	}
 	
+	boolean ignoreCase() {
+		return m_chbIgnoreCase.isSelected();
+	}
+	
+	/** Only used without regular expressions */
+	boolean anyWord() {
+		return m_chbAnyWord.isSelected();
+	}
+	
 	boolean searchInsideFiles() {
 		return m_jrSearchContent.isSelected();
 	}
@@ -201,6 +219,10 @@ class SearchDialog extends ToolDialog {
 		return m_chbArchives.isSelected();
 	}
 	
+	boolean useIndex() {
+		return m_chbIndex.isSelected();
+	}
+	
 	String[] getValidExtensions() {
 		String sValid = m_tfValidExtensions.getText();
 		String[] ext = null;
@@ -0,0 +1,362 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.ui;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.mizapf.timt.files.*;
+
+/** Persistent index of the files in image files, used by the search. For
+	each image file, the index keeps the length and modification time of 
+	the file, the list of its files (including the contents of archives)
+	with name, date, type, and size, and a filter of the character 
+	trigrams of the printable file contents.
+	
+	Searching for names and dates only needs the index. For content search,
+	the trigram filter excludes the images that cannot contain the search
+	text; the remaining images are still searched, since the filter may 
+	deliver false positives.
+	
+	File format:
+	
+	Header: Magic "TIMTIDX1", number of images (4)
+	
+	Image:  path (UTF), length (8), modification time (8), number of 
+	        files (4), files, number of filter words (4), filter words (8 each)
+	File:   path (UTF), name (UTF), date (UTF), type (UTF), sectors (4), 
+	        flags (1)
+	
+	Images may be indexed by several threads at the same time.
+*/
+class SearchIndex {
+
+	private final static byte[] MAGIC = { 'T', 'I', 'M', 'T', 'I', 'D', 'X', '1' };
+	
+	/** Flag for files inside of archives */
+	final static int ARCHIVE = 1;
+	
+	/** Printable characters from 32 to 126 */
+	private final static int CHARS = 95;
+	
+	/** Filter bits per trigram; gives about 22% of set bits */
+	private final static int BITS_PER_TRIGRAM = 4;
+	
+	private File m_fileIndex;
+	private Map<String, ImageEntry> m_mapImage;
+	private boolean m_bChanged;
+	
+	static class FileEntry {
+		String path;
+		String name;
+		String date;
+		String type;
+		int sectors;
+		int flags;
+		
+		boolean inArchive() {
+			return (flags & ARCHIVE)!=0;
+		}
+	}
+	
+	static class ImageEntry {
+		String path;
+		long length;
+		long modified;
+		FileEntry[] files;
+		long[] filter;
+	}
+	
+	SearchIndex(File fileIndex) {
+		m_fileIndex = fileIndex;
+		m_mapImage = new HashMap<String, ImageEntry>();
+		m_bChanged = false;
+	}
+	
+	/** Loads the index file. If the file does not exist or cannot be read,
+		the index is empty. */
+	synchronized void load() throws IOException {
+		m_mapImage.clear();
+		m_bChanged = false;
+		if (!m_fileIndex.exists()) return;
+		
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(m_fileIndex), 65536));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			dis.readFully(magic);
+			for (int i=0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) throw new IOException("Bad search index file " + m_fileIndex.getName());
+			}
+			int nImages = dis.readInt();
+			for (int i=0; i < nImages; i++) {
+				ImageEntry ie = new ImageEntry();
+				ie.path = dis.readUTF();
+				ie.length = dis.readLong();
+				ie.modified = dis.readLong();
+				ie.files = new FileEntry[dis.readInt()];
+				for (int j=0; j < ie.files.length; j++) {
+					FileEntry fe = new FileEntry();
+					fe.path = dis.readUTF();
+					fe.name = dis.readUTF();
+					fe.date = dis.readUTF();
+					fe.type = dis.readUTF();
+					fe.sectors = dis.readInt();
+					fe.flags = dis.readByte();
+					ie.files[j] = fe;
+				}
+				ie.filter = new long[dis.readInt()];
+				for (int j=0; j < ie.filter.length; j++) {
+					ie.filter[j] = dis.readLong();
+				}
+				m_mapImage.put(ie.path, ie);
+			}
+		}
+		catch (EOFException eofx) {
+			m_mapImage.clear();
+			throw new IOException("Truncated search index file " + m_fileIndex.getName());
+		}
+		finally {
+			dis.close();
+		}
+	}
+	
+	/** Saves the index if it has been changed. Entries of image files that
+		do not exist anymore are dropped. The index is written to a new file
+		that replaces the old one, so an interrupted save does not destroy 
+		the index. */
+	synchronized void save() throws IOException {
+		Iterator<ImageEntry> it = m_mapImage.values().iterator();
+		while (it.hasNext()) {
+			if (!new File(it.next().path).exists()) {
+				it.remove();
+				m_bChanged = true;
+			}
+		}
+		if (!m_bChanged) return;
+
+		File fileNew = new File(m_fileIndex.getPath() + ".new");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileNew), 65536));
+		try {
+			dos.write(MAGIC);
+			dos.writeInt(m_mapImage.size());
+			for (ImageEntry ie : m_mapImage.values()) {
+				dos.writeUTF(ie.path);
+				dos.writeLong(ie.length);
+				dos.writeLong(ie.modified);
+				dos.writeInt(ie.files.length);
+				for (FileEntry fe : ie.files) {
+					dos.writeUTF(fe.path);
+					dos.writeUTF(fe.name);
+					dos.writeUTF(fe.date);
+					dos.writeUTF(fe.type);
+					dos.writeInt(fe.sectors);
+					dos.writeByte(fe.flags);
+				}
+				dos.writeInt(ie.filter.length);
+				for (long word : ie.filter) {
+					dos.writeLong(word);
+				}
+			}
+		}
+		finally {
+			dos.close();
+		}
+		m_fileIndex.delete();
+		if (!fileNew.renameTo(m_fileIndex)) throw new IOException("Cannot rename " + fileNew.getName());
+		m_bChanged = false;
+	}
+	
+	/** Delivers the entry of the image file if it is up to date.
+		@return Entry, or null if the file is not indexed or has changed
+	*/
+	synchronized ImageEntry getCurrent(File image) {
+		ImageEntry ie = m_mapImage.get(image.getAbsolutePath());
+		if (ie == null) return null;
+		if (ie.length != image.length() || ie.modified != image.lastModified()) return null;
+		return ie;
+	}
+	
+	/** Indexes an image file. 
+		@param vol Volume of the image, or null if the image cannot be 
+		searched; the image is then indexed without files, so that it is
+		not opened again as long as it does not change
+	*/
+	void update(File image, Volume vol) {
+		ImageEntry ie = new ImageEntry();
+		ie.path = image.getAbsolutePath();
+		ie.length = image.length();
+		ie.modified = image.lastModified();
+		
+		List<FileEntry> list = new ArrayList<FileEntry>();
+		BitSet trigrams = new BitSet(CHARS * CHARS * CHARS);
+		
+		if (vol != null) addDirectory(vol.getRootDirectory(), 0, list, trigrams);
+		ie.files = list.toArray(new FileEntry[list.size()]);
+		ie.filter = createFilter(trigrams);
+		synchronized (this) {
+			m_mapImage.put(ie.path, ie);
+			m_bChanged = true;
+		}
+	}
+	
+	/** Adds the files of the directory in the order of the search. */
+	private static void addDirectory(Directory dir, int flags, List<FileEntry> list, BitSet trigrams) {
+		for (TFile tf : dir.getFiles()) {
+			FileEntry fe = new FileEntry();
+			fe.path = tf.getPathname();
+			fe.name = tf.getName();
+			fe.date = getDate(tf);
+			fe.type = tf.typeToString();
+			fe.sectors = tf.getAllocatedSectors();
+			fe.flags = flags;
+			list.add(fe);
+			
+			try {
+				addTrigrams(tf.getSectorContent(), trigrams);
+			}
+			catch (IOException iox) {
+				// No content
+			}
+			catch (ImageException ix) {
+				// No content
+			}
+			
+			if (tf.hasArchiveFormat()) {
+				try {
+					addDirectory(tf.unpackArchive(), flags | ARCHIVE, list, trigrams);
+				}
+				catch (IllegalOperationException iox) {
+					// just ignore
+				}
+				catch (FormatException fx) {
+					// just ignore
+				}
+				catch (IOException ixx) {
+					// just ignore
+				}
+				catch (ImageException imx) {
+					// just ignore
+				}
+			}
+		}
+		for (Directory sdir : dir.getDirectories()) {
+			addDirectory(sdir, flags, list, trigrams);
+		}
+	}
+	
+	/** Gets the date that is used for searching. */
+	static String getDate(TFile tf) {
+		Time tm = tf.getUpdateTime();
+		String time = tm.toString();
+		if (time.length()==0) {
+			tm = tf.getCreationTime();
+			time = tm.toString();
+			if (time.length()==0) time = "none";
+		}				
+		return time;
+	}
+	
+	/** Maps the byte to the printable characters; other bytes are searched
+		as spaces. */
+	private static int charCode(int by) {
+		if (by >= 32 && by < 127) return by - 32;
+		return 0;
+	}
+	
+	private static void addTrigrams(byte[] content, BitSet trigrams) {
+		if (content.length < 3) return;
+		int code = charCode(content[0] & 0xff) * CHARS + charCode(content[1] & 0xff);
+		for (int i=2; i < content.length; i++) {
+			code = (code % (CHARS * CHARS)) * CHARS + charCode(content[i] & 0xff);
+			trigrams.set(code);
+		}
+	}
+	
+	/** Creates the filter for the trigrams. Its size is a power of two 
+		with at least BITS_PER_TRIGRAM bits per trigram. */
+	private static long[] createFilter(BitSet trigrams) {
+		int nCount = trigrams.cardinality();
+		int nWords = 1;
+		while (nWords * 64 < nCount * BITS_PER_TRIGRAM) nWords <<= 1;
+		long[] filter = new long[nWords];
+		for (int code = trigrams.nextSetBit(0); code >= 0; code = trigrams.nextSetBit(code+1)) {
+			int bit = filterBit(code, nWords);
+			filter[bit >>> 6] |= 1L << (bit & 63);
+		}
+		return filter;
+	}
+	
+	private static int filterBit(int code, int nWords) {
+		// Multiplicative hash; the upper bits are the best mixed
+		int nBits = Integer.numberOfTrailingZeros(nWords) + 6;
+		return (code * 0x9e3779b1) >>> (32 - nBits);
+	}
+	
+	/** Checks whether the image may contain one of the texts in the contents
+		of its files. With case folding, all case variants of the trigrams
+		are tried.
+		@return false if the texts are certainly not contained
+	*/
+	static boolean mayContain(ImageEntry ie, String[] asText, boolean bIgnoreCase) {
+		for (String sText : asText) {
+			if (mayContain(ie, sText, bIgnoreCase)) return true;
+		}
+		return false;
+	}
+	
+	private static boolean mayContain(ImageEntry ie, String sText, boolean bIgnoreCase) {
+		if (sText.length() < 3) return ie.files.length > 0;
+		for (int i=0; i < sText.length(); i++) {
+			char c = sText.charAt(i);
+			// Other characters never match the contents
+			if (c < 32 || c >= 127) return false;
+		}
+		for (int i=2; i < sText.length(); i++) {
+			if (!hasTrigram(ie, sText.charAt(i-2), sText.charAt(i-1), sText.charAt(i), bIgnoreCase)) return false;
+		}
+		return true;
+	}
+	
+	private static boolean hasTrigram(ImageEntry ie, char c0, char c1, char c2, boolean bIgnoreCase) {
+		char[][] variant = new char[3][];
+		char[] ac = { c0, c1, c2 };
+		for (int i=0; i < 3; i++) {
+			if (bIgnoreCase && Character.isLetter(ac[i])) variant[i] = new char[] { Character.toUpperCase(ac[i]), Character.toLowerCase(ac[i]) };
+			else variant[i] = new char[] { ac[i] };
+		}
+		for (char v0 : variant[0]) {
+			for (char v1 : variant[1]) {
+				for (char v2 : variant[2]) {
+					int code = ((v0 - 32) * CHARS + (v1 - 32)) * CHARS + (v2 - 32);
+					int bit = filterBit(code, ie.filter.length);
+					if ((ie.filter[bit >>> 6] & (1L << (bit & 63)))!=0) return true;
+				}
+			}
+		}
+		return false;
+	}
+}
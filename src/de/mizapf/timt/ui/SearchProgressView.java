@@ -34,7 +34,7 @@ public class SearchProgressView extends JDialog implements ActionListener {
 	JButton m_btnStop;
 
 	int m_nColumnWidth;
-	boolean m_bStop;
+	volatile boolean m_bStop;
 	
 	public SearchProgressView(String sTitle, JFrame frmMain) {
 		super(frmMain, sTitle, false);
@@ -26,6 +26,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.List;
 
 import de.mizapf.timt.TIImageTool;
 
@@ -43,7 +44,13 @@ public class SearchResultFrame extends JFrame implements ActionListener {
 	int m_nRight;
 	int m_nHeight;
 	
-	SearchResult[] m_content;
+	/** Results are added while the search is running, from the action 
+		thread. They are only accessed in the event dispatch thread. */
+	List<SearchResult> m_content;
+	List<JLabel> m_lstPathLabel;
+	String m_lastVolume;
+	int m_nLine;
+	Color[] m_color;
 	
 	JTextArea m_jep;
 	
@@ -78,10 +85,10 @@ public class SearchResultFrame extends JFrame implements ActionListener {
 		super(sFile);
 		setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
 		m_app = app;
-		m_app.registerFrame(this);
 	}
 
-	public void createGui(SearchResult[] content, Font fontName, Dimension di) {	
+	public void createGui(Font fontName, Dimension di) {	
+		m_app.registerFrame(this);
 
 		m_mbar = new JMenuBar();
 		m_mFile = new JMenu(TIImageTool.langstr("SearchResultMenu"));
@@ -103,46 +110,21 @@ public class SearchResultFrame extends JFrame implements ActionListener {
 		m_jp = new JPanel();
 		m_jp.setLayout(new BoxLayout(m_jp, BoxLayout.Y_AXIS));
 		
-		int line = 0;
-		
-		Color[] color = new Color[3];
-		color[0] = new Color(180,200,220);
-		color[1] = new Color(220,230,240);
-		color[2] = new Color(230,241,252);
-		
-		int nLeft = 20;
-		int nRight = 20;
+		m_nLine = 0;
 		
-		for (int i=0; i < content.length; i++) {
-			if (content[i].path.length() > nLeft) nLeft = content[i].path.length();
-			if (content[i].image.length() > nRight) nRight = content[i].image.length();
-		}
-	
-		m_nLeft = m_app.getColumnWidth(nLeft) + TIImageTool.dialogHeight;
-		m_nRight = m_app.getColumnWidth(nRight) + TIImageTool.dialogHeight;
+		m_color = new Color[3];
+		m_color[0] = new Color(180,200,220);
+		m_color[1] = new Color(220,230,240);
+		m_color[2] = new Color(230,241,252);
 		
-		cntView.add(createLine(TIImageTool.langstr("SearchResultCol1"), TIImageTool.langstr("SearchResultCol2"), color[0], true));
+		// Widened when longer path names arrive
+		m_nLeft = m_app.getColumnWidth(20) + TIImageTool.dialogHeight;
+		m_nRight = m_app.getColumnWidth(20) + TIImageTool.dialogHeight;
 		
-		String lastVolume = null;
-	
-		if (content.length > 0) {
-			for (int i=0; i < content.length; i++) {		
-				String pathtext = "";		
-				if (lastVolume != content[i].image) {
-					pathtext = lastVolume = content[i].image;
-					line++;
-				}
-				Box box2 = createLine(content[i].path, pathtext, color[(line&1)+1], false); 
-				m_jp.add(box2);
-				box2.addMouseListener(new ClickListener(content[i].image, m_app.getActivity("OPENIMAGE")));
-			}
-		}
-		else {
-			Box box2 = createLine("--", TIImageTool.langstr("SearchResultNothing"), color[(line&1)+1], false); 
-			m_jp.add(box2);
-		}
+		m_content = new ArrayList<SearchResult>();
+		m_lstPathLabel = new ArrayList<JLabel>();
 		
-		m_content = content;
+		cntView.add(createLine(TIImageTool.langstr("SearchResultCol1"), TIImageTool.langstr("SearchResultCol2"), m_color[0], true));
 		
 		m_jp.add(Box.createVerticalGlue());
 		
@@ -155,6 +137,67 @@ public class SearchResultFrame extends JFrame implements ActionListener {
 		toFront();
 	}
 	
+	/** Adds the results of an image. May be called from any thread. */
+	public void addResults(SearchResult[] content) {
+		SwingUtilities.invokeLater(new AddResults(content));
+	}
+	
+	/** Shows a line if nothing was found. May be called from any thread. */
+	public void searchFinished() {
+		SwingUtilities.invokeLater(new AddResults(null));
+	}
+	
+	class AddResults implements Runnable {
+		SearchResult[] content;
+		
+		AddResults(SearchResult[] result) {
+			content = result;
+		}
+		
+		public void run() {
+			// Remove the glue
+			m_jp.remove(m_jp.getComponentCount()-1);
+			if (content != null) {
+				int nLeft = m_nLeft;
+				for (int i=0; i < content.length; i++) {
+					nLeft = Math.max(nLeft, m_app.getColumnWidth(content[i].path.length()) + TIImageTool.dialogHeight);
+				}
+				if (nLeft > m_nLeft) {
+					m_nLeft = nLeft;
+					for (JLabel jl : m_lstPathLabel) setWidth(jl, m_nLeft);
+				}
+
+				for (int i=0; i < content.length; i++) {		
+					String pathtext = "";		
+					if (m_lastVolume != content[i].image) {
+						pathtext = m_lastVolume = content[i].image;
+						m_nLine++;
+					}
+					Box box2 = createLine(content[i].path, pathtext, m_color[(m_nLine&1)+1], false); 
+					m_jp.add(box2);
+					box2.addMouseListener(new ClickListener(content[i].image, m_app.getActivity("OPENIMAGE")));
+					m_content.add(content[i]);
+				}
+			}
+			else {
+				if (m_content.size()==0) {
+					Box box2 = createLine("--", TIImageTool.langstr("SearchResultNothing"), m_color[(m_nLine&1)+1], false); 
+					m_jp.add(box2);
+				}
+			}
+			m_jp.add(Box.createVerticalGlue());
+			m_jp.revalidate();
+			m_jp.repaint();
+		}
+	}
+	
+	private void setWidth(JLabel jl, int nWidth) {
+		int nLineHeight = (int)(TIImageTool.dialogHeight * 1.3);
+		jl.setMinimumSize(new Dimension(nWidth, nLineHeight));
+		jl.setPreferredSize(new Dimension(nWidth, nLineHeight));
+		jl.setMaximumSize(new Dimension(nWidth, nLineHeight));
+	}
+	
 	Box createLine(String left, String right, Color col, boolean title) {
 
 		Box box1 = new Box(BoxLayout.X_AXIS);
@@ -165,9 +208,8 @@ public class SearchResultFrame extends JFrame implements ActionListener {
 		box1.add(Box.createHorizontalStrut(TIImageTool.dialogHeight/2));
 		
 		JLabel jlPath = new JLabel(left, SwingConstants.LEFT);
-		jlPath.setMinimumSize(new Dimension(m_nLeft, nLineHeight));
-		jlPath.setPreferredSize(new Dimension(m_nLeft, nLineHeight));
-		jlPath.setMaximumSize(new Dimension(m_nLeft, nLineHeight));
+		setWidth(jlPath, m_nLeft);
+		m_lstPathLabel.add(jlPath);
 		
 		jlPath.setFont(title? TIImageTool.boldFont : TIImageTool.dialogFont);
 		box1.add(jlPath);
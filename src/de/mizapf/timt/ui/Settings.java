@@ -126,7 +126,14 @@ public class Settings {
 		getPropertyString(TIImageTool.IMGSUF, "dsk,dtk,hfe,cf7,hd,chd,raw,bin,-");
 		getPropertyString(TIImageTool.CONTEXT, "false");
 		getPropertyString(TIImageTool.MEMORY, "false");
+		getPropertyString(TIImageTool.FUCACHE, "16");
+		getPropertyString(TIImageTool.CHDCOMPACT, "false");
+		getPropertyString(TIImageTool.UNDODEPTH, "100");
+		getPropertyString(TIImageTool.UNDOMEM, "64");
+		getPropertyString(TIImageTool.UNDOJOURNAL, "false");
+		getPropertyString(TIImageTool.ALLOCPOLICY, "largest");
 		getPropertyString(TIImageTool.GENOSPATH, "");
+		getPropertyString(TIImageTool.SEARCHINDEX, System.getProperty("user.home") + System.getProperty("file.separator") + ".tiimagetool.idx");
 	}
 	
 	public int checkProperties() {
@@ -0,0 +1,66 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.util;
+
+/** CCITT CRC16 (polynomial x^16+x^12+x^5+1, big-endian) as used by the
+	floppy and hard disk controllers. The calculation is table-driven, one
+	byte per step.
+*/
+public class CRC16 {
+
+	/** Usual start value */
+	public final static int INIT = 0xffff;
+
+	private final static int[] TABLE = createTable();
+
+	/** Value after the MFM sync bytes A1 A1 A1 */
+	public final static int MFMSYNC = update(INIT, new byte[] { (byte)0xa1, (byte)0xa1, (byte)0xa1 }, 0, 3);
+
+	private static int[] createTable() {
+		int[] table = new int[256];
+		for (int i=0; i < 256; i++) {
+			int rem = i << 8;
+			for (int j=0; j < 8; j++) {
+				if ((rem & 0x8000) == 0x8000)
+					rem = (rem << 1) ^ 0x1021;
+				else
+					rem = rem << 1;
+			}
+			table[i] = rem & 0xffff;
+		}
+		return table;
+	}
+
+	/** Continues the CRC calculation with the given byte. */
+	public static int update(int crc, int by) {
+		return ((crc << 8) ^ TABLE[((crc >> 8) ^ by) & 0xff]) & 0xffff;
+	}
+
+	/** Continues the CRC calculation with the given bytes. */
+	public static int update(int crc, byte[] aby, int nOffset, int nLength) {
+		int end = nOffset + nLength;
+		for (int i=nOffset; i < end; i++) {
+			crc = (crc << 8) ^ TABLE[((crc >> 8) ^ aby[i]) & 0xff];
+		}
+		return crc & 0xffff;
+	}
+}
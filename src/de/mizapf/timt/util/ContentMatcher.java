@@ -0,0 +1,230 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.util;
+
+import java.util.LinkedList;
+
+/** Searches texts in byte arrays without converting them to strings. Only
+	the printable characters (32 to 126) are compared; all other bytes are
+	treated as spaces. With case folding, lowercase letters are treated as
+	uppercase letters.
+	
+	A single text is searched by the Boyer-Moore-Horspool algorithm, several
+	texts by the Aho-Corasick algorithm.
+*/
+public abstract class ContentMatcher {
+
+	/** Translation of bytes to the compared characters */
+	protected int[] m_anMap;
+	
+	protected ContentMatcher(boolean bIgnoreCase) {
+		m_anMap = new int[256];
+		for (int i=0; i < 256; i++) {
+			if (i < 32 || i >= 127) m_anMap[i] = ' ';
+			else {
+				if (bIgnoreCase && i >= 'a' && i <= 'z') m_anMap[i] = i - 'a' + 'A';
+				else m_anMap[i] = i;
+			}
+		}
+	}
+	
+	/** Creates a matcher that finds any of the texts.
+		@param asText Texts; must not be empty
+	*/
+	public static ContentMatcher create(String[] asText, boolean bIgnoreCase) {
+		if (asText.length == 1) return new Horspool(asText[0], bIgnoreCase);
+		return new AhoCorasick(asText, bIgnoreCase);
+	}
+	
+	/** Checks whether one of the texts occurs in the given range. */
+	public abstract boolean find(byte[] content, int nOffset, int nLength);
+	
+	public boolean find(String s) {
+		byte[] content = new byte[s.length()];
+		for (int i=0; i < content.length; i++) {
+			char c = s.charAt(i);
+			// Characters beyond 255 never match
+			content[i] = (byte)((c < 256)? c : 0);
+		}
+		return find(content, 0, content.length);
+	}
+	
+	/** Delivers the printable characters of the content for regular 
+		expressions, without copying the content. */
+	public static CharSequence toCharSequence(byte[] content) {
+		return new PrintableSequence(content, 0, content.length);
+	}
+	
+	static class PrintableSequence implements CharSequence {
+		byte[] m_content;
+		int m_nOffset;
+		int m_nLength;
+		
+		PrintableSequence(byte[] content, int nOffset, int nLength) {
+			m_content = content;
+			m_nOffset = nOffset;
+			m_nLength = nLength;
+		}
+		
+		public char charAt(int index) {
+			if (index < 0 || index >= m_nLength) throw new IndexOutOfBoundsException(String.valueOf(index));
+			int ch = m_content[m_nOffset + index] & 0xff;
+			return (ch >= 32 && ch < 127)? (char)ch : ' ';
+		}
+		
+		public int length() {
+			return m_nLength;
+		}
+		
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > m_nLength || start > end) throw new IndexOutOfBoundsException(start + "," + end);
+			return new PrintableSequence(m_content, m_nOffset + start, end - start);
+		}
+		
+		public String toString() {
+			StringBuilder sb = new StringBuilder(m_nLength);
+			for (int i=0; i < m_nLength; i++) sb.append(charAt(i));
+			return sb.toString();
+		}
+	}
+	
+	/** Translates a search text. 
+		@return Translated text, or null if the text can never be found, 
+		since it contains non-printable characters
+	*/
+	protected int[] translate(String sText) {
+		int[] anText = new int[sText.length()];
+		for (int i=0; i < anText.length; i++) {
+			char c = sText.charAt(i);
+			if (c < 32 || c >= 127) return null;
+			anText[i] = m_anMap[c];
+		}
+		return anText;
+	}
+	
+	/** Boyer-Moore-Horspool search for a single text. */
+	static class Horspool extends ContentMatcher {
+		
+		private int[] m_anText;
+		private int[] m_anShift;
+		
+		Horspool(String sText, boolean bIgnoreCase) {
+			super(bIgnoreCase);
+			m_anText = translate(sText);
+			if (m_anText == null) return;
+			
+			int len = m_anText.length;
+			m_anShift = new int[128];
+			for (int i=0; i < m_anShift.length; i++) m_anShift[i] = len;
+			for (int i=0; i < len-1; i++) m_anShift[m_anText[i]] = len - 1 - i;
+		}
+		
+		public boolean find(byte[] content, int nOffset, int nLength) {
+			if (m_anText == null) return false;
+			int len = m_anText.length;
+			if (len == 0) return true;
+			
+			int nEnd = nOffset + nLength;
+			int pos = nOffset;
+			int nLast = m_anText[len-1];
+			while (pos + len <= nEnd) {
+				int ch = m_anMap[content[pos + len - 1] & 0xff];
+				if (ch == nLast) {
+					int i = len - 2;
+					while (i >= 0 && m_anMap[content[pos + i] & 0xff] == m_anText[i]) i--;
+					if (i < 0) return true;
+				}
+				pos += m_anShift[ch];
+			}
+			return false;
+		}
+	}
+	
+	/** Aho-Corasick search for several texts. The automaton is completed to 
+		a transition table, so each byte takes one step. */
+	static class AhoCorasick extends ContentMatcher {
+
+		/** Transitions: state * 128 + character */
+		private int[] m_anNext;
+		private boolean[] m_abFinal;
+		
+		AhoCorasick(String[] asText, boolean bIgnoreCase) {
+			super(bIgnoreCase);
+			
+			// Build the trie; state 0 is the root
+			int nMaxStates = 1;
+			for (String s : asText) nMaxStates += s.length();
+			m_anNext = new int[nMaxStates * 128];
+			m_abFinal = new boolean[nMaxStates];
+			for (int i=0; i < m_anNext.length; i++) m_anNext[i] = -1;
+			
+			int nStates = 1;
+			for (String s : asText) {
+				int[] anText = translate(s);
+				if (anText == null) continue;
+				int state = 0;
+				for (int ch : anText) {
+					if (m_anNext[state * 128 + ch] == -1) m_anNext[state * 128 + ch] = nStates++;
+					state = m_anNext[state * 128 + ch];
+				}
+				m_abFinal[state] = true;
+			}
+			
+			// Complete the transitions in breadth-first order, following 
+			// the failure links
+			int[] anFail = new int[nStates];
+			LinkedList<Integer> queue = new LinkedList<Integer>();
+			for (int ch=0; ch < 128; ch++) {
+				int next = m_anNext[ch];
+				if (next == -1) m_anNext[ch] = 0;
+				else {
+					anFail[next] = 0;
+					queue.add(next);
+				}
+			}
+			while (!queue.isEmpty()) {
+				int state = queue.removeFirst();
+				if (m_abFinal[anFail[state]]) m_abFinal[state] = true;
+				for (int ch=0; ch < 128; ch++) {
+					int next = m_anNext[state * 128 + ch];
+					int fallback = m_anNext[anFail[state] * 128 + ch];
+					if (next == -1) m_anNext[state * 128 + ch] = fallback;
+					else {
+						anFail[next] = fallback;
+						queue.add(next);
+					}
+				}
+			}
+		}
+		
+		public boolean find(byte[] content, int nOffset, int nLength) {
+			if (m_abFinal[0]) return true;
+			int state = 0;
+			int nEnd = nOffset + nLength;
+			for (int i=nOffset; i < nEnd; i++) {
+				state = m_anNext[state * 128 + m_anMap[content[i] & 0xff]];
+				if (m_abFinal[state]) return true;
+			}
+			return false;
+		}
+	}
+}
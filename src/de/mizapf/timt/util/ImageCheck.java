@@ -70,9 +70,9 @@ public class ImageCheck {
 							if (!first) ps.print(", ");
 							first = false;
 							ps.print(ainv[j]);
-							Integer[] aret = map.getUnallocatedLocations(ainv[j]);
-							if (aret.length>0) {
-								agl.setList(aret);
+							// Gaps are AU numbers, like for the FIBs
+							for (int au = ainv[j].start / map.getAUSize(); au <= ainv[j].end / map.getAUSize(); au++) {
+								if (!map.hasAllocated(au)) agl.addAU(au);
 							}
 						}
 					}
@@ -213,64 +213,18 @@ public class ImageCheck {
 		}
 	}
 	
-	/** Find out whether the given allocation unit is allocated to some file or directory. 
-		Also determine how many entities are allocated to this AU.
-	*/
-	static void findEntity(int au, Directory dir, AllocationDomain alloc, String dirName, PrintStream ps) {
-		TFile[] aFile = dir.getFiles();
-		Volume image = dir.getVolume();
-		int nAuSize = image.getAUSize();
-
-		if (au * nAuSize == dir.getFileIndexSector()) {
-			alloc.addEntity(dirName + ".#");
-//			System.out.println("found as FDR sector: " + au);
-		}
-		
-		int pos = 0;
-		for (int i=0; i < aFile.length; i++) {
-			StringBuilder sFullname = new StringBuilder();
-			if (dirName.length()>0) sFullname.append(dirName).append(".");
-			sFullname.append(aFile[i].getName());			
-			
-			for (int nFib : aFile[i].getFIBLocations()) {
-				if (nFib / nAuSize == au) {
-					alloc.addEntity(sFullname.toString() + ".#");
-//					System.out.println("found as FIB sector: " + au);
-				}
-			}
-			
-			Interval[] ainv = aFile[i].getAllocatedBlocks();
-			for (int j=0; j < ainv.length; j++) {
-				if ((ainv[j].start <= au * nAuSize) && (au * nAuSize <= ainv[j].end)) {
-					alloc.addEntity(sFullname.toString());
-					ps.println(String.format(TIImageTool.langstr("AUBelongs"), au, sFullname.toString(), pos, j));
-				}
-			}
-			pos++;
-		}
-		Directory[] ad = dir.getDirectories();
-
-		for (int i=0; i < ad.length; i++) {
-			if (ad[i].getDDRSector() / nAuSize==au) {
-				alloc.addEntity(dir.getName() + "." + ad[i].getName() + ".#");
-//				System.out.println("found as DIB sector: " + au);
-			}
-			if (dir == image.getRootDirectory()) 
-				findEntity(au, ad[i], alloc, ad[i].getName(), ps);
-			else
-				findEntity(au, ad[i], alloc, dir.getName() + "." + ad[i].getName(), ps);
-		}
-	}
-	
+	/** Finds allocated AUs that belong to no element or to more than one.
+		The owners of all AUs are collected in one walk through the
+		directory tree. */
 	public static void findAllocationFaults(Volume image, AllocationMap allocMap, ArrayList<AllocationDomain> list, PrintStream ps) {
-		boolean bLittle = image.isFloppyImage() || image.isCF7Volume();
 		int nMin = 2;
 		if (image.isHarddiskImage()) nMin = 64;
 //		System.out.println("total AUs = " + image.getVib().getTotalNumberOfAUs());
+		AllocationIndex index = new AllocationIndex(image);
 		for (int au=nMin; au < allocMap.getMaxAU(); au++) { 
 			if (allocMap.hasAllocated(au)) {
 				AllocationDomain alloc = new AllocationDomain(au);
-				findEntity(au, image.getRootDirectory(), alloc, "", ps);
+				index.getEntities(au, alloc, ps);
 				if (alloc.isFaulty()) list.add(alloc);
 			}
 		}		
@@ -0,0 +1,296 @@
+/****************************************************************************
+    This file is part of TIImageTool.
+
+    TIImageTool is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TIImageTool is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TIImageTool.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2023 Michael Zapf
+    www.mizapf.de
+
+****************************************************************************/
+
+package de.mizapf.timt.util;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Decoder for raw LZMA streams without header, as used for the hunks of
+	compressed CHD images. The decoded data must fit completely into the
+	target buffer, which also serves as the dictionary.
+
+	The implementation follows the LZMA specification by Igor Pavlov.
+*/
+public class LZMADecoder {
+
+	private final static int PROBBITS = 11;
+	private final static int PROBINIT = (1 << PROBBITS) / 2;
+	private final static int MOVEBITS = 5;
+	private final static int TOPVALUE = 1 << 24;
+
+	private final static int STATES = 12;
+	private final static int POSBITSMAX = 4;
+	private final static int LENTOPOSSTATES = 4;
+	private final static int ALIGNBITS = 4;
+	private final static int ENDPOSMODEL = 14;
+	private final static int FULLDISTANCES = 128;
+	private final static int MATCHMINLEN = 2;
+
+	private int m_nLc;
+	private int m_nLp;
+	private int m_nPb;
+
+	// Probability models
+	private short[] m_literal;
+	private short[] m_isMatch = new short[STATES << POSBITSMAX];
+	private short[] m_isRep = new short[STATES];
+	private short[] m_isRepG0 = new short[STATES];
+	private short[] m_isRepG1 = new short[STATES];
+	private short[] m_isRepG2 = new short[STATES];
+	private short[] m_isRep0Long = new short[STATES << POSBITSMAX];
+	private short[] m_posSlot = new short[LENTOPOSSTATES << 6];
+	private short[] m_posDecoders = new short[1 + FULLDISTANCES - ENDPOSMODEL];
+	private short[] m_align = new short[1 << ALIGNBITS];
+	private short[] m_lenCoder = new short[LENCODERSIZE];
+	private short[] m_repLenCoder = new short[LENCODERSIZE];
+
+	// Layout of the length coder: choice, choice2, low[16][8], mid[16][8], high[256]
+	private final static int LENLOW = 2;
+	private final static int LENMID = LENLOW + (16 << 3);
+	private final static int LENHIGH = LENMID + (16 << 3);
+	private final static int LENCODERSIZE = LENHIGH + 256;
+
+	// Range decoder
+	private byte[] m_abySource;
+	private int m_nSrcPos;
+	private int m_nSrcEnd;
+	private int m_nRange;
+	private int m_nCode;
+
+	/** Creates a decoder with the given literal context bits, literal
+		position bits, and position bits. */
+	public LZMADecoder(int lc, int lp, int pb) {
+		m_nLc = lc;
+		m_nLp = lp;
+		m_nPb = pb;
+		m_literal = new short[0x300 << (lc + lp)];
+	}
+
+	/** Decodes the source bytes into the destination buffer, which is
+		filled completely.
+		@throws IOException if the compressed data are corrupted
+	*/
+	public void decode(byte[] src, int offset, int length, byte[] dest) throws IOException {
+		initModels();
+		initRange(src, offset, length);
+
+		int rep0 = 0, rep1 = 0, rep2 = 0, rep3 = 0;
+		int state = 0;
+		int pos = 0;
+		int pbMask = (1 << m_nPb) - 1;
+		int lpMask = (1 << m_nLp) - 1;
+
+		while (pos < dest.length) {
+			int posState = pos & pbMask;
+			if (decodeBit(m_isMatch, (state << POSBITSMAX) + posState) == 0) {
+				// Literal
+				int prevByte = (pos > 0)? (dest[pos-1] & 0xff) : 0;
+				int base = 0x300 * (((pos & lpMask) << m_nLc) + (prevByte >>> (8 - m_nLc)));
+				int symbol = 1;
+				if (state >= 7) {
+					if (rep0 >= pos) throw new IOException("LZMA: Invalid distance");
+					int matchByte = dest[pos - rep0 - 1] & 0xff;
+					do {
+						int matchBit = (matchByte >> 7) & 1;
+						matchByte <<= 1;
+						int bit = decodeBit(m_literal, base + ((1 + matchBit) << 8) + symbol);
+						symbol = (symbol << 1) | bit;
+						if (matchBit != bit) break;
+					} while (symbol < 0x100);
+				}
+				while (symbol < 0x100) {
+					symbol = (symbol << 1) | decodeBit(m_literal, base + symbol);
+				}
+				dest[pos++] = (byte)symbol;
+				state = (state < 4)? 0 : ((state < 10)? state - 3 : state - 6);
+				continue;
+			}
+
+			int len;
+			if (decodeBit(m_isRep, state) != 0) {
+				if (pos == 0) throw new IOException("LZMA: Repeated match at start");
+				if (decodeBit(m_isRepG0, state) == 0) {
+					if (decodeBit(m_isRep0Long, (state << POSBITSMAX) + posState) == 0) {
+						// Short rep: single byte
+						state = (state < 7)? 9 : 11;
+						dest[pos] = dest[pos - rep0 - 1];
+						pos++;
+						continue;
+					}
+				}
+				else {
+					int dist;
+					if (decodeBit(m_isRepG1, state) == 0) {
+						dist = rep1;
+					}
+					else {
+						if (decodeBit(m_isRepG2, state) == 0) {
+							dist = rep2;
+						}
+						else {
+							dist = rep3;
+							rep3 = rep2;
+						}
+						rep2 = rep1;
+					}
+					rep1 = rep0;
+					rep0 = dist;
+				}
+				len = decodeLength(m_repLenCoder, posState);
+				state = (state < 7)? 8 : 11;
+			}
+			else {
+				rep3 = rep2;
+				rep2 = rep1;
+				rep1 = rep0;
+				len = decodeLength(m_lenCoder, posState);
+				state = (state < 7)? 7 : 10;
+				rep0 = decodeDistance(len);
+				if (rep0 == -1) throw new IOException("LZMA: Unexpected end marker");
+				if (rep0 < 0 || rep0 >= pos) throw new IOException("LZMA: Invalid distance");
+			}
+			len += MATCHMINLEN;
+			if (len > dest.length - pos) throw new IOException("LZMA: Data exceed the buffer");
+
+			// Copy the match; it may overlap the current position
+			int from = pos - rep0 - 1;
+			for (int i=0; i < len; i++) {
+				dest[pos++] = dest[from++];
+			}
+		}
+	}
+
+	private void initModels() {
+		Arrays.fill(m_literal, (short)PROBINIT);
+		Arrays.fill(m_isMatch, (short)PROBINIT);
+		Arrays.fill(m_isRep, (short)PROBINIT);
+		Arrays.fill(m_isRepG0, (short)PROBINIT);
+		Arrays.fill(m_isRepG1, (short)PROBINIT);
+		Arrays.fill(m_isRepG2, (short)PROBINIT);
+		Arrays.fill(m_isRep0Long, (short)PROBINIT);
+		Arrays.fill(m_posSlot, (short)PROBINIT);
+		Arrays.fill(m_posDecoders, (short)PROBINIT);
+		Arrays.fill(m_align, (short)PROBINIT);
+		Arrays.fill(m_lenCoder, (short)PROBINIT);
+		Arrays.fill(m_repLenCoder, (short)PROBINIT);
+	}
+
+	private void initRange(byte[] src, int offset, int length) throws IOException {
+		m_abySource = src;
+		m_nSrcPos = offset;
+		m_nSrcEnd = offset + length;
+		m_nRange = 0xffffffff;
+		m_nCode = 0;
+		if (nextByte() != 0) throw new IOException("LZMA: Invalid stream start");
+		for (int i=0; i < 4; i++) {
+			m_nCode = (m_nCode << 8) | nextByte();
+		}
+		if (m_nCode == m_nRange) throw new IOException("LZMA: Invalid stream start");
+	}
+
+	private int nextByte() throws IOException {
+		if (m_nSrcPos >= m_nSrcEnd) throw new IOException("LZMA: Unexpected end of data");
+		return m_abySource[m_nSrcPos++] & 0xff;
+	}
+
+	private void normalize() throws IOException {
+		if (Integer.compareUnsigned(m_nRange, TOPVALUE) < 0) {
+			m_nRange <<= 8;
+			m_nCode = (m_nCode << 8) | nextByte();
+		}
+	}
+
+	private int decodeBit(short[] probs, int index) throws IOException {
+		int prob = probs[index];
+		int bound = (m_nRange >>> PROBBITS) * prob;
+		int bit;
+		if (Integer.compareUnsigned(m_nCode, bound) < 0) {
+			m_nRange = bound;
+			probs[index] = (short)(prob + (((1 << PROBBITS) - prob) >>> MOVEBITS));
+			bit = 0;
+		}
+		else {
+			m_nRange -= bound;
+			m_nCode -= bound;
+			probs[index] = (short)(prob - (prob >>> MOVEBITS));
+			bit = 1;
+		}
+		normalize();
+		return bit;
+	}
+
+	private int decodeDirectBits(int numBits) throws IOException {
+		int res = 0;
+		for (int i=0; i < numBits; i++) {
+			m_nRange >>>= 1;
+			m_nCode -= m_nRange;
+			int t = -(m_nCode >>> 31);
+			m_nCode += m_nRange & t;
+			normalize();
+			res = (res << 1) + (t + 1);
+		}
+		return res;
+	}
+
+	private int decodeTree(short[] probs, int offset, int numBits) throws IOException {
+		int m = 1;
+		for (int i=0; i < numBits; i++) {
+			m = (m << 1) + decodeBit(probs, offset + m);
+		}
+		return m - (1 << numBits);
+	}
+
+	private int decodeReverseTree(short[] probs, int offset, int numBits) throws IOException {
+		int m = 1;
+		int symbol = 0;
+		for (int i=0; i < numBits; i++) {
+			int bit = decodeBit(probs, offset + m);
+			m = (m << 1) + bit;
+			symbol |= bit << i;
+		}
+		return symbol;
+	}
+
+	private int decodeLength(short[] coder, int posState) throws IOException {
+		if (decodeBit(coder, 0) == 0)
+			return decodeTree(coder, LENLOW + (posState << 3), 3);
+		if (decodeBit(coder, 1) == 0)
+			return 8 + decodeTree(coder, LENMID + (posState << 3), 3);
+		return 16 + decodeTree(coder, LENHIGH, 8);
+	}
+
+	private int decodeDistance(int len) throws IOException {
+		int lenState = (len > LENTOPOSSTATES - 1)? LENTOPOSSTATES - 1 : len;
+		int posSlot = decodeTree(m_posSlot, lenState << 6, 6);
+		if (posSlot < 4) return posSlot;
+
+		int numDirectBits = (posSlot >> 1) - 1;
+		int dist = (2 | (posSlot & 1)) << numDirectBits;
+		if (posSlot < ENDPOSMODEL) {
+			dist += decodeReverseTree(m_posDecoders, dist - posSlot, numDirectBits);
+		}
+		else {
+			dist += decodeDirectBits(numDirectBits - ALIGNBITS) << ALIGNBITS;
+			dist += decodeReverseTree(m_align, 0, ALIGNBITS);
+		}
+		return dist;
+	}
+}
@@ -21,6 +21,7 @@
 
 package de.mizapf.timt.util;
 import java.io.*;
+import java.util.Arrays;
 import de.mizapf.timt.files.FormatException;
 import de.mizapf.timt.TIImageTool;
 
@@ -30,24 +31,31 @@ public class LZW {
 	
 	byte[] m_abyRaw = null;
 	
-	class TableEntry {
-		int prefix;
-		int suffix;
-		
-		TableEntry(int i, int j) {
-			prefix = i;
-			suffix = j;
-		}
-	}
-
-	TableEntry[] m_aEntry;
-	int m_nPosition;
+	private static final int TABLESIZE = 4096;
 	
-	byte[] m_abyBuffer;
-	int m_nBufLen;
+	/** Dictionary for decompression: prefix code, last byte, first byte, 
+		and length of the sequence for each code */
+	int[] m_anPrefix;
+	byte[] m_abySuffix;
+	byte[] m_abyFirst;
+	int[] m_anLength;
+	
+	int m_nPosition;
 	
 	int m_nSavePrefix;
 	
+	/** Decoder state */
+	byte[] m_abyOutput;
+	Bitstream m_bsInput;
+	boolean m_bTerminate;
+	
+	/** Dictionary for compression: maps (prefix code, next byte) to the 
+		code of the extended sequence, using open addressing. */
+	int[] m_anHashKey;
+	int[] m_anHashCode;
+	
+	private static final int HASHSIZE = 8192;   // at least twice the table size
+	
 	class Bitstream {
 		byte[] m_abyBuffer;
 		int m_nWidth;
@@ -125,8 +133,8 @@ public class LZW {
 			
 			// Test whether the array must be expanded
 			if (nBytePos >= m_abyBuffer.length - 3) {
-				// Increase by 25%
-				byte[] abyNew = new byte[(int)(m_abyBuffer.length * 1.25)];
+				// Increase by 25%, but at least by the maximum code length
+				byte[] abyNew = new byte[Math.max((int)(m_abyBuffer.length * 1.25), m_abyBuffer.length + 4)];
 				System.arraycopy(m_abyBuffer, 0, abyNew, 0, m_abyBuffer.length);
 				m_abyBuffer = abyNew;
 				if (DEBUG>0) System.out.println("Increase buffer to " + abyNew.length);
@@ -199,11 +207,6 @@ public class LZW {
 	
 	public LZW(byte[] abyRaw) {
 		m_abyRaw = abyRaw;
-		m_aEntry = new TableEntry[4096];
-		for (int i=0; i < 258; i++) {
-			m_aEntry[i] = new TableEntry(-1, i);
-		}
-		m_abyBuffer = new byte[8];
 	}
 	
 	private void clearTable() {
@@ -211,176 +214,215 @@ public class LZW {
 		m_nSavePrefix = -1;
 	}
 	
-	private void getByteSequence(int key) {
-		if (DEBUG>0) System.out.println("get(" +  Utilities.toHex(key, 3) + ")");
-		if (key > m_nPosition) {
-			if (DEBUG>0) System.out.println("key=" +  Utilities.toHex(key, 3) + " not in table");
-		}
-		else {
-			if (key == m_nPosition) {
-				if (DEBUG>0) System.out.println("key=" + Utilities.toHex(key, 3) + " being created");
-				if (DEBUG>0) System.out.println("save prefix = " + Utilities.toHex(m_nSavePrefix, 3));
-				
-				// Get the byte sequence associated to this key
-				int pkey = m_nSavePrefix;
-				TableEntry te = m_aEntry[pkey];
-				int i = 1;
-				m_nBufLen = 0;
-				while (te.prefix!=-1) {
-					te = m_aEntry[te.prefix];
-					i++;
-				}
-				if (i+1 > m_abyBuffer.length) m_abyBuffer = new byte[i+1];
-				m_nBufLen = i+1; 
-
-				te = m_aEntry[pkey];
-				while (i>0) {
-					m_abyBuffer[i-1] = (byte)(te.suffix & 0xff);
-					if (te.prefix != -1) te = m_aEntry[te.prefix];
-					i--;
-				}
-				m_abyBuffer[m_nBufLen-1] = m_abyBuffer[0];
+	private void initDecoder() {
+		if (m_anPrefix == null) {
+			m_anPrefix = new int[TABLESIZE];
+			m_abySuffix = new byte[TABLESIZE];
+			m_abyFirst = new byte[TABLESIZE];
+			m_anLength = new int[TABLESIZE];
+			for (int i=0; i < 256; i++) {
+				m_anPrefix[i] = -1;
+				m_abySuffix[i] = (byte)i;
+				m_abyFirst[i] = (byte)i;
+				m_anLength[i] = 1;
 			}
-			else {
-				// Get the byte sequence associated to this key
-				TableEntry te = m_aEntry[key];
-				int i = 1;
-				m_nBufLen = 0;
-				while (te.prefix!=-1) {
-					te = m_aEntry[te.prefix];
-					i++;
-				}
-				if (i > m_abyBuffer.length) m_abyBuffer = new byte[i];
-				m_nBufLen = i; 
-				te = m_aEntry[key];
-				while (i>0) {
-					m_abyBuffer[i-1] = (byte)(te.suffix & 0xff);
-					if (te.prefix != -1) te = m_aEntry[te.prefix];
-					i--;
-				}
-			}
-			
-			if (DEBUG>0) System.out.println("Return (" + m_nBufLen + ") = " + Utilities.byteToHex(m_abyBuffer, m_nBufLen));
-			
-			// Insert new entry
-			if (m_nSavePrefix != -1) {
-				m_aEntry[m_nPosition] = new TableEntry(m_nSavePrefix, m_abyBuffer[0] & 0xff);
-				if (DEBUG>0) System.out.println("entry [" + Utilities.toHex(m_nPosition,3) + "] = (" + Utilities.toHex(m_nSavePrefix,3) + ", " + Utilities.toHex(m_abyBuffer[0]&0xff,3) + ")");
-				m_nPosition++;
-			}
-			else {
-				if (DEBUG>0) System.out.println("first character read ... no entry, saving " + Utilities.toHex(key, 3));
-			}
-			m_nSavePrefix = key;
 		}
+		m_bsInput = new Bitstream(m_abyRaw, 9);
+		m_bTerminate = false;
+		clearTable();
 	}
 	
-	public byte[] uncompress() throws FormatException {
-			// Clear code: [000]1 0000 0000 
-			// Stop code:  [000]1 0000 0001
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		PrintStream ps = new PrintStream(baos);
-		Bitstream bs = new Bitstream(m_abyRaw, 9);
-		int nValue = 0;
-		int nPeek257 = 0;
-		boolean bTerminate = false;
-		clearTable();
-		bs.resetWidth();
-
-		while (bs.available() && !bTerminate) {
-			nValue = bs.read();
+	/** Reads the next code that delivers a byte sequence and adds the new
+		dictionary entry. Clear codes are processed, and the bit width is 
+		adapted.
+		@return Code of the sequence, or -1 at the end of the data
+	*/
+	private int nextCode() throws FormatException {
+		Bitstream bs = m_bsInput;
+		while (bs.available() && !m_bTerminate) {
+			int nValue = bs.read();
 			if (nValue == 256) {
 				clearTable();
 				bs.resetWidth();
 				if (DEBUG>0) System.out.println("Got clear table code");
+				continue;
 			}
-			else {
-				if (nValue == 257) {
-					bTerminate = true;
-					if (DEBUG>0) System.out.println("Got termination code");
+			if (nValue == 257) {
+				m_bTerminate = true;
+				if (DEBUG>0) System.out.println("Got termination code");
+				break;
+			}
+			
+			if (nValue > m_nPosition || (nValue == m_nPosition && m_nSavePrefix == -1)) {
+				if (DEBUG>0) System.out.println("key=" +  Utilities.toHex(nValue, 3) + " not in table");
+				throw new FormatException(TIImageTool.langstr("Archive"), TIImageTool.langstr("LZWInvalidCode"));
+			}
+			
+			// Insert new entry; when the key is just being created, its 
+			// sequence starts with the sequence of the previous key
+			if (m_nSavePrefix != -1 && m_nPosition < TABLESIZE) {
+				byte byFirst = (nValue == m_nPosition)? m_abyFirst[m_nSavePrefix] : m_abyFirst[nValue];
+				m_anPrefix[m_nPosition] = m_nSavePrefix;
+				m_abySuffix[m_nPosition] = byFirst;
+				m_abyFirst[m_nPosition] = m_abyFirst[m_nSavePrefix];
+				m_anLength[m_nPosition] = m_anLength[m_nSavePrefix] + 1;
+				if (DEBUG>0) System.out.println("entry [" + Utilities.toHex(m_nPosition,3) + "] = (" + Utilities.toHex(m_nSavePrefix,3) + ", " + Utilities.toHex(byFirst & 0xff,3) + ")");
+				m_nPosition++;
+			}
+			m_nSavePrefix = nValue;
+			
+			if ((m_nPosition >> bs.getWidth()) !=0) {
+				if (bs.getWidth()==12) {
+					if (DEBUG>0) System.out.println("At end of table");
 				}
 				else {
-					getByteSequence(nValue); // in m_abyBuffer, len
-					baos.write(m_abyBuffer, 0, m_nBufLen);
-
-					if (DEBUG>0) {
-						for (int i=0; i < m_nBufLen; i++) System.out.print(Utilities.toHex(m_abyBuffer[i],2) + " ");
-						System.out.print("\"");
-						for (int i=0; i < m_nBufLen; i++) { if (m_abyBuffer[i] >=32) System.out.print((char)m_abyBuffer[i]); }
-						System.out.println("\"");
-						//System.out.println("hex: " + Utilities.byteToHex(m_abyBuffer, m_nBufLen));
-
-						System.out.println("p=" + m_nPosition + ", w=" + bs.getWidth() + ", s=" + (m_nPosition>>bs.getWidth()));
+					if (bs.read()==257) {
+						if (DEBUG>0) System.out.println("Found termination code; cancel increase");
+						m_bTerminate = true;
 					}
-					if ((m_nPosition >> bs.getWidth()) !=0) {
-						if (bs.getWidth()==12) {
-							 if (DEBUG>0) System.out.println("At end of table");
-						}
-						else {
-							if (bs.read()==257) {
-								if (DEBUG>0) System.out.println("Found termination code; cancel increase");
-								bTerminate = true;
-							}
-							else {
-								bs.pushBack();
-								bs.increaseWidth();
-								if (DEBUG>0) System.out.println("Increase width to " + bs.getWidth());
-							}
-						}
+					else {
+						bs.pushBack();
+						bs.increaseWidth();
+						if (DEBUG>0) System.out.println("Increase width to " + bs.getWidth());
 					}
 				}
 			}
+			return nValue;
 		}
+		if (!m_bTerminate) throw new FormatException(TIImageTool.langstr("Archive"), TIImageTool.langstr("LZWMissingEOA"));
+		return -1;
+	}
+	
+	/** Writes the sequence of the code into the array, starting at the
+		given position.
+		@return Length of the sequence
+	*/
+	private int expand(int nCode, byte[] abyDest, int nPos) {
+		int nLength = m_anLength[nCode];
+		int i = nPos + nLength;
+		for (int nKey = nCode; nKey != -1; nKey = m_anPrefix[nKey]) {
+			abyDest[--i] = m_abySuffix[nKey];
+		}
+		return nLength;
+	}
+	
+	/** Uncompresses the data into a new array. */
+	public byte[] uncompress() throws FormatException {
+		// Clear code: [000]1 0000 0000 
+		// Stop code:  [000]1 0000 0001
+		int nLength = uncompress(new byte[m_abyRaw.length * 3 + TABLESIZE], 0, true);
 		
 		if (DEBUG>0) {
-			System.out.println("bs.available = " + bs.available() + ", len = " + Utilities.toHex(m_abyRaw.length,4));
-			System.out.println("\n" + Utilities.hexdump(0, 0, baos.toByteArray(), baos.toByteArray().length, false));
+			System.out.println("\n" + Utilities.hexdump(0, 0, m_abyOutput, nLength, false));
 		}
-		
-		if (!bTerminate) throw new FormatException(TIImageTool.langstr("Archive"), TIImageTool.langstr("LZWMissingEOA"));
-		return baos.toByteArray();
+		return Arrays.copyOf(m_abyOutput, nLength);
 	}
 	
-	/** Delivers the index and the length of the sequence that fits the
-		current sub-sequence in the source array.
-		@return int[0] Position, int[1] length
+	/** Uncompresses the data into the given array. 
+		@return Number of bytes
+		@throws FormatException if the data are corrupt, or if they do not 
+		fit into the array
 	*/
-	private int[] findByteSequence(byte[] aby, int nStartPos) {
-		int[] anResult = new int[2];
-		int nPos = 0;
-		int nLength = 0;
-		int nPosTmp = 0; 
-		// System.out.println("Find byte sequence at position " + nStartPos + " starting with " + Utilities.toHex(aby[nStartPos],2) + " ; dictionary.length=" + m_nPosition);
-		while (nPos < m_nPosition) {
-			// Get the length of the current sequence
-			nLength = 0;
-			nPosTmp = nPos;
-			while (nPosTmp != -1) {
-				nLength++;
-				nPosTmp = m_aEntry[nPosTmp].prefix;
+	public int uncompress(byte[] abyDest, int nOffset) throws FormatException {
+		return uncompress(abyDest, nOffset, false);
+	}
+	
+	private int uncompress(byte[] abyDest, int nOffset, boolean bGrow) throws FormatException {
+		m_abyOutput = abyDest;
+		initDecoder();
+		int nPos = nOffset;
+		int nCode = 0;
+		while ((nCode = nextCode()) != -1) {
+			int nLength = m_anLength[nCode];
+			if (nPos + nLength > m_abyOutput.length) {
+				if (!bGrow) throw new FormatException(TIImageTool.langstr("Archive"), TIImageTool.langstr("LZWOutputFull"));
+				m_abyOutput = Arrays.copyOf(m_abyOutput, Math.max(m_abyOutput.length * 2, nPos + nLength));
 			}
-			// Back to the current index
-			// System.out.println("nLength = " + nLength);
-			nPosTmp = nPos;
-			boolean bFail = false;
-			int nOffset = nLength-1;
-			if (nStartPos + nOffset < aby.length) {
-				// Start from the end
-				while (nPosTmp != -1 && !bFail) {
-					// System.out.println("suffix = " + Utilities.toHex(m_aEntry[nPosTmp].suffix, 2));
-					if (m_aEntry[nPosTmp].suffix != (aby[nStartPos + nOffset] & 0xff)) bFail = true;
-					nOffset--;
-					nPosTmp = m_aEntry[nPosTmp].prefix;
-				}
-				// System.out.println("nPos = " + Utilities.toHex(nPos,3) + ": fail = " + bFail);
-				if (!bFail) {
-					anResult[0] = nPos;
-					anResult[1] = nLength;
-				}
+			nPos += expand(nCode, m_abyOutput, nPos);
+		}
+		return nPos - nOffset;
+	}
+	
+	/** Delivers the uncompressed data as a stream. The data are uncompressed
+		while reading; a corrupt archive causes an IOException. */
+	public InputStream getInputStream() {
+		initDecoder();
+		return new LZWInputStream();
+	}
+	
+	class LZWInputStream extends InputStream {
+		byte[] m_abySequence = new byte[TABLESIZE + 1];
+		int m_nSeqPos;
+		int m_nSeqLength;
+		
+		private boolean fill() throws IOException {
+			if (m_nSeqPos < m_nSeqLength) return true;
+			try {
+				int nCode = nextCode();
+				if (nCode == -1) return false;
+				m_nSeqLength = expand(nCode, m_abySequence, 0);
+				m_nSeqPos = 0;
+				return true;
+			}
+			catch (FormatException fx) {
+				throw new IOException(fx.getMessage());
 			}
-			nPos++;
 		}
-		return anResult;
+		
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return m_abySequence[m_nSeqPos++] & 0xff;
+		}
+		
+		public int read(byte[] aby, int nOffset, int nLength) throws IOException {
+			if (nLength == 0) return 0;
+			int nCount = 0;
+			while (nCount < nLength && fill()) {
+				int n = Math.min(nLength - nCount, m_nSeqLength - m_nSeqPos);
+				System.arraycopy(m_abySequence, m_nSeqPos, aby, nOffset + nCount, n);
+				m_nSeqPos += n;
+				nCount += n;
+			}
+			return (nCount == 0)? -1 : nCount;
+		}
+		
+		public int available() {
+			return m_nSeqLength - m_nSeqPos;
+		}
+	}
+	
+	/** Clears the dictionary for compression. The single bytes are not 
+		stored; their codes are the byte values. */
+	private void clearDictionary() {
+		if (m_anHashKey == null) {
+			m_anHashKey = new int[HASHSIZE];
+			m_anHashCode = new int[HASHSIZE];
+		}
+		Arrays.fill(m_anHashKey, -1);
+	}
+	
+	private int hashPosition(int key) {
+		int h = key * 0x9e3779b9;
+		int pos = (h ^ (h >>> 16)) & (HASHSIZE - 1);
+		while (m_anHashKey[pos] != -1 && m_anHashKey[pos] != key) {
+			pos = (pos + 1) & (HASHSIZE - 1);
+		}
+		return pos;
+	}
+	
+	/** Delivers the code of the sequence that consists of the sequence 
+		of the given code, followed by the given byte, or -1 if the sequence
+		is not in the dictionary. */
+	private int findCode(int prefix, int by) {
+		int pos = hashPosition((prefix << 8) | by);
+		return (m_anHashKey[pos] == -1)? -1 : m_anHashCode[pos];
+	}
+	
+	private void addCode(int prefix, int by, int code) {
+		int key = (prefix << 8) | by;
+		int pos = hashPosition(key);
+		m_anHashKey[pos] = key;
+		m_anHashCode[pos] = code;
 	}
 	
 	public byte[] compress() {
@@ -391,21 +433,31 @@ public class LZW {
 		Bitstream bs = new Bitstream(abyResult, 9);
 		bs.write(256);
 		clearTable();
+		clearDictionary();
 		bs.resetWidth();
 		
 		while (nPos < m_abyRaw.length) {
-			int[] anSeq = findByteSequence(m_abyRaw, nPos);
+			// Find the longest sequence in the dictionary that matches the
+			// input at this position
+			int nCode = m_abyRaw[nPos] & 0xff;
+			int nLength = 1;
+			while (nPos + nLength < m_abyRaw.length) {
+				int nNext = findCode(nCode, m_abyRaw[nPos + nLength] & 0xff);
+				if (nNext == -1) break;
+				nCode = nNext;
+				nLength++;
+			}
 			// Caution: next debug line may cause OutOfBounds 
 			if (DEBUG>0) {
 				System.out.print("input[" + Utilities.toHex(nPos,4) + "] = ");
 				System.out.print(Utilities.toHex(m_abyRaw[nPos],2) + "; " );
 				if (nPos+1 < m_abyRaw.length) System.out.print(Utilities.toHex(m_abyRaw[nPos+1],2));
 				System.out.println("");
-				System.out.println("output "+ Utilities.toHex(anSeq[0],3) + ", " + bs.getWidth() + " bits");
+				System.out.println("output "+ Utilities.toHex(nCode,3) + ", " + bs.getWidth() + " bits");
 			}
-			bs.write(anSeq[0]);
-			if (DEBUG>0) System.out.println("advance input by " + anSeq[1]);
-			nPos += anSeq[1];
+			bs.write(nCode);
+			if (DEBUG>0) System.out.println("advance input by " + nLength);
+			nPos += nLength;
 
 			// Insert new entry unless we are done
 			// We do not increase bit width when we are at the end of the input data
@@ -416,6 +468,7 @@ public class LZW {
 						if (DEBUG>0) System.out.println("At end of table");
 						bs.write(256);
 						clearTable();
+						clearDictionary();
 						bs.resetWidth();
 						bWrite = false;
 					}
@@ -425,8 +478,8 @@ public class LZW {
 					}
 				}
 				if (bWrite) {
-					m_aEntry[m_nPosition] = new TableEntry(anSeq[0], m_abyRaw[nPos]& 0xff);
-					if (DEBUG>0) System.out.println("Add new entry entry[" + Utilities.toHex(m_nPosition,3) + "] = (" + Utilities.toHex(anSeq[0], 3) + ", " + Utilities.toHex(m_abyRaw[nPos]&0xff,2) + ")");
+					addCode(nCode, m_abyRaw[nPos] & 0xff, m_nPosition);
+					if (DEBUG>0) System.out.println("Add new entry entry[" + Utilities.toHex(m_nPosition,3) + "] = (" + Utilities.toHex(nCode, 3) + ", " + Utilities.toHex(m_abyRaw[nPos]&0xff,2) + ")");
 					m_nPosition++;
 				}
 			}
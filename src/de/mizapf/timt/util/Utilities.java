@@ -247,24 +247,7 @@ public class Utilities {
 
 	public static int crc16_get(byte aby[], int nOffset, int nLength, int init) {
 		// Big-endian, x^16+x^12+x^5+1 = (1) 0001 0000 0010 0001 = 0x1021
-		int rem = init;
-		int n = 16;
-		// A popular variant complements rem here
-		int i;
-		int j;
-		for (i=0; i < nLength; i++) {
-			rem = (rem ^ (aby[i+nOffset] << (n-8)));
-			for (j=0; j <= 7; j++)	{
-				if ((rem & 0x8000) == 0x8000) {
-					rem = ((rem << 1) ^ 0x1021);
-				}
-				else {
-					rem = (rem << 1);
-				}
-			}
-		}
-		// A popular variant complements rem here
-		return (rem & 0xffff);
+		return CRC16.update(init, aby, nOffset, nLength);
 	}
 	
 	public static int getInt32be(byte[] aby, int nOffset) {